@@ -117,7 +117,10 @@ public class BasicNetwork implements Network {
                 }
 
                 // Some responses such as 204s do not have content.  We must check.
-                if (httpResponse.getEntity() != null) {
+                if (httpResponse.getEntity() != null && isStreamed(request, statusCode)) {
+                  streamEntity((StreamingRequest) request, httpResponse.getEntity());
+                  responseContents = null;
+                } else if (httpResponse.getEntity() != null) {
                   responseContents = entityToBytes(httpResponse.getEntity());
                 } else {
                   // Add 0 byte response as a way of honestly representing a
@@ -220,6 +223,30 @@ public class BasicNetwork implements Network {
         VolleyLog.v("HTTP ERROR(%s) %d ms to fetch %s", what, (now - start), url);
     }
 
+    /** Streaming requests read the body themselves, a cached response needs the data however. */
+    private boolean isStreamed(Request<?> request, int statusCode) {
+        return request instanceof StreamingRequest && !request.shouldCache() &&
+                statusCode >= 200 && statusCode <= 299;
+    }
+
+    /** Hands the contents of HttpEntity to the request. */
+    private void streamEntity(StreamingRequest request, HttpEntity entity)
+            throws IOException, ServerError {
+        try {
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            request.readStream(in);
+        } finally {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+        }
+    }
+
     /** Reads the contents of HttpEntity into a byte[]. */
     private byte[] entityToBytes(HttpEntity entity) throws IOException, ServerError {
         PoolingByteArrayOutputStream bytes =
@@ -217,12 +217,22 @@ public class ImageLoader {
         // track it.
         Request<Bitmap> newRequest = makeImageRequest(requestUrl, maxWidth, maxHeight, cacheKey);
 
-        mRequestQueue.add(newRequest);
         mInFlightRequests.put(cacheKey,
                 new BatchedImageRequest(newRequest, imageContainer));
+        enqueueRequest(cacheKey, newRequest);
         return imageContainer;
     }
 
+    /**
+     * Hands a new image request to the request queue. Subclasses can hold requests back to
+     * decide the order they go out in.
+     * @param cacheKey The cache key that is associated with the image request.
+     * @param request The request to send.
+     */
+    protected void enqueueRequest(String cacheKey, Request<Bitmap> request) {
+        mRequestQueue.add(request);
+    }
+
     protected Request<Bitmap> makeImageRequest(String requestUrl, int maxWidth, int maxHeight, final String cacheKey) {
         return new ImageRequest(requestUrl, new Listener<Bitmap>() {
             @Override
@@ -344,6 +354,14 @@ public class ImageLoader {
             }
         }
 
+        /**
+         * Returns the cache key of the request this container waits on, null if the bitmap was
+         * already cached.
+         */
+        public String getCacheKey() {
+            return mCacheKey;
+        }
+
         /**
          * Returns the bitmap associated with the request URL if it has been loaded, null otherwise.
          */
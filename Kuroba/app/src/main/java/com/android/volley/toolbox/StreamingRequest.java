@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request that reads the response body straight from the connection, instead of having it
+ * buffered into {@link NetworkResponse#data} first.
+ *
+ * <p>Only successful responses of requests that are not cached are streamed, the
+ * {@link NetworkResponse} passed to the request afterwards has {@code null} data.</p>
+ */
+public interface StreamingRequest {
+    /**
+     * Reads the response body. Called on the network dispatcher thread, and again if the request
+     * is retried.
+     *
+     * @param in the response body, closed for you after this returns
+     * @throws IOException if reading from the connection failed
+     */
+    public void readStream(InputStream in) throws IOException;
+}
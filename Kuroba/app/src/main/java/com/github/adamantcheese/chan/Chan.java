@@ -33,6 +33,7 @@ import com.github.adamantcheese.chan.core.di.SiteModule;
 import com.github.adamantcheese.chan.core.manager.ArchivesManager;
 import com.github.adamantcheese.chan.core.manager.BoardManager;
 import com.github.adamantcheese.chan.core.manager.FilterWatchManager;
+import com.github.adamantcheese.chan.core.pool.ChanLoaderFactory;
 import com.github.adamantcheese.chan.core.site.SiteService;
 import com.github.adamantcheese.chan.utils.AndroidUtils;
 import com.github.adamantcheese.chan.utils.Logger;
@@ -114,6 +115,12 @@ public class Chan extends Application implements Application.ActivityLifecycleCa
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        feather.instance(ChanLoaderFactory.class).onTrimMemory(level);
+    }
+
     private void activityEnteredForeground() {
         boolean lastForeground = getApplicationInForeground();
 
@@ -19,51 +19,101 @@ package com.github.adamantcheese.chan.core.cache;
 import androidx.annotation.AnyThread;
 import androidx.annotation.MainThread;
 import androidx.annotation.WorkerThread;
-import android.util.Pair;
 
+import com.github.adamantcheese.chan.core.settings.ChanSettings;
+import com.github.adamantcheese.chan.utils.IOUtils;
 import com.github.adamantcheese.chan.utils.Logger;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import okio.ByteString;
+
+/**
+ * Keeps track of the files in the cache directory with an in memory index, so that lookups don't
+ * touch the disk. Files are evicted least recently used first once the cache is over
+ * {@link ChanSettings#fileCacheSize}.
+ * <p>The index is persisted in an append-only journal in the cache directory, which is compacted
+ * when it grows too much compared to the index.
+ */
 public class CacheHandler {
     private static final String TAG = "CacheHandler";
-    private static final int TRIM_TRIES = 20;
-    private static final long FILE_CACHE_DISK_SIZE = 100 * 1024 * 1024;
-
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_TMP_FILE = "journal.tmp";
+    // Compact the journal when it has this many records more than there are files
+    private static final int JOURNAL_COMPACT_THRESHOLD = 2000;
+    // Partial downloads that were not continued for this long are deleted
+    private static final long PARTIAL_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static final String ADD = "ADD";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // Does all the disk work of the index, in order.
     private final ExecutorService pool = Executors.newFixedThreadPool(1);
 
     private final File directory;
+    private final File journalFile;
 
     /**
-     * An estimation of the current size of the directory. Used to check if trim must be run
-     * because the folder exceeds the maximum size.
+     * File names with their size, least recently used first. Guarded by itself.
+     */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final CountDownLatch indexLoaded = new CountDownLatch(1);
+
+    /**
+     * The size of all files in the index.
      */
     private AtomicLong size = new AtomicLong();
     private AtomicBoolean trimRunning = new AtomicBoolean(false);
 
+    // Pool thread only.
+    private Writer journalWriter;
+    private int journalRecords;
+
     public CacheHandler(File directory) {
         this.directory = directory;
+        journalFile = new File(directory, JOURNAL_FILE);
 
         createDirectories();
-        backgroundRecalculateSize();
+        pool.submit(this::loadIndex);
     }
 
+    /**
+     * Whether the file is completely in the cache. While the index is still loading the file itself
+     * is checked instead, the main thread doesn't wait for the index.
+     */
     @MainThread
     public boolean exists(String key) {
-        return get(key).exists();
+        String name = hash(key);
+        if (indexLoaded.getCount() > 0) {
+            // Files are only given their name once they are complete
+            return new File(directory, name).exists();
+        }
+
+        synchronized (index) {
+            return index.containsKey(name);
+        }
     }
 
     @MainThread
     public File get(String key) {
-        createDirectories();
-
         return new File(directory, hash(key));
     }
 
@@ -72,11 +122,42 @@ public class CacheHandler {
         return size;
     }
 
+    /**
+     * Mark a file in the cache as used, moving it to the back of the eviction queue.
+     */
     @MainThread
+    public void fileWasAccessed(File file) {
+        String name = file.getName();
+        // On the pool, after the index is loaded
+        pool.submit(() -> {
+            synchronized (index) {
+                if (index.get(name) == null) {
+                    return;
+                }
+            }
+
+            appendJournal(READ, name);
+        });
+    }
+
+    /**
+     * Add a completely written file to the index.
+     */
+    @AnyThread
     protected void fileWasAdded(File file) {
-        long adjustedSize = size.addAndGet(file.length());
+        String name = file.getName();
+        long fileSize = file.length();
+
+        waitForIndex();
+        long adjustedSize;
+        synchronized (index) {
+            Long previous = index.put(name, fileSize);
+            adjustedSize = size.addAndGet(fileSize - (previous == null ? 0 : previous));
+        }
+
+        pool.submit(() -> appendJournal(ADD, name, String.valueOf(fileSize)));
 
-        if (adjustedSize > FILE_CACHE_DISK_SIZE && trimRunning.compareAndSet(false, true)) {
+        if (adjustedSize > getMaxSize() && trimRunning.compareAndSet(false, true)) {
             pool.submit(() -> {
                 try {
                     trim();
@@ -89,23 +170,25 @@ public class CacheHandler {
         }
     }
 
+    /**
+     * Delete all files in the cache. This happens in the background, after the index is loaded.
+     */
     @MainThread
     public void clearCache() {
         Logger.d(TAG, "Clearing cache");
 
-        if (directory.exists() && directory.isDirectory()) {
-            for (File file : directory.listFiles()) {
-                if (!file.delete()) {
-                    Logger.d(TAG, "Could not delete cache file while clearing cache " +
-                            file.getName());
-                }
+        pool.submit(() -> {
+            synchronized (index) {
+                index.clear();
+                size.set(0);
             }
-        }
 
-        recalculateSize();
+            deleteCacheFiles();
+            writeJournal();
+        });
     }
 
-    @MainThread
+    @AnyThread
     public void createDirectories() {
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
@@ -115,64 +198,215 @@ public class CacheHandler {
         }
     }
 
-    @MainThread
-    private void backgroundRecalculateSize() {
-        pool.submit(this::recalculateSize);
+    @AnyThread
+    private long getMaxSize() {
+        return ChanSettings.fileCacheSize.get() * 1024L * 1024L;
     }
 
     @AnyThread
-    private void recalculateSize() {
-        long calculatedSize = 0;
+    private void waitForIndex() {
+        try {
+            indexLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                calculatedSize += file.length();
+    @WorkerThread
+    private void loadIndex() {
+        try {
+            if (journalFile.exists()) {
+                readJournal();
+            } else {
+                // Left over from before the index, their names can't be looked up anymore
+                deleteCacheFiles();
             }
+        } finally {
+            indexLoaded.countDown();
         }
 
-        size.set(calculatedSize);
+        if (!journalFile.exists()) {
+            writeJournal();
+        } else {
+            compactJournalIfNeeded();
+            deleteStalePartialFiles();
+        }
     }
 
     @WorkerThread
-    private void trim() {
-        File[] directoryFiles = directory.listFiles();
+    private void readJournal() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journalFile));
+
+            long totalSize = 0;
+            synchronized (index) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    journalRecords++;
+
+                    // A record cut short by a crash is skipped
+                    String[] parts = line.split(" ");
+                    if (parts.length == 3 && parts[0].equals(ADD)) {
+                        try {
+                            Long previous = index.put(parts[1], Long.parseLong(parts[2]));
+                            totalSize += Long.parseLong(parts[2]) - (previous == null ? 0 : previous);
+                        } catch (NumberFormatException ignored) {
+                        }
+                    } else if (parts.length == 2 && parts[0].equals(READ)) {
+                        index.get(parts[1]);
+                    } else if (parts.length == 2 && parts[0].equals(REMOVE)) {
+                        Long removed = index.remove(parts[1]);
+                        if (removed != null) {
+                            totalSize -= removed;
+                        }
+                    }
+                }
+            }
+
+            size.set(totalSize);
+        } catch (IOException e) {
+            Logger.e(TAG, "Error reading the cache journal", e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Replace the journal with one that only contains the current index.
+     */
+    @WorkerThread
+    private void writeJournal() {
+        IOUtils.closeQuietly(journalWriter);
+        journalWriter = null;
 
-        // Don't try to trim empty directories or just one file in it.
-        if (directoryFiles == null || directoryFiles.length <= 1) {
-            return;
+        List<Map.Entry<String, Long>> entries;
+        synchronized (index) {
+            entries = new ArrayList<>(index.entrySet());
         }
 
-        // Get all files with their last modified times.
-        List<Pair<File, Long>> files = new ArrayList<>(directoryFiles.length);
-        for (File file : directoryFiles) {
-            files.add(new Pair<>(file, file.lastModified()));
+        File tmpFile = new File(directory, JOURNAL_TMP_FILE);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmpFile));
+            for (Map.Entry<String, Long> entry : entries) {
+                writer.write(ADD + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            if (!tmpFile.renameTo(journalFile)) {
+                Logger.e(TAG, "Could not replace the cache journal");
+            }
+            journalRecords = entries.size();
+        } catch (IOException e) {
+            Logger.e(TAG, "Error writing the cache journal", e);
+        } finally {
+            IOUtils.closeQuietly(writer);
         }
+    }
 
-        // Sort by oldest first.
-        Collections.sort(files, (o1, o2) -> Long.signum(o1.second - o2.second));
+    @WorkerThread
+    private void appendJournal(String... record) {
+        try {
+            if (journalWriter == null) {
+                journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+            }
 
-        // Trim as long as the directory size exceeds the threshold and we haven't reached
-        // the trim limit.
-        long workingSize = size.get();
-        for (int i = 0; workingSize >= FILE_CACHE_DISK_SIZE && i < Math.min(files.size(), TRIM_TRIES); i++) {
-            File file = files.get(i).first;
+            for (int i = 0; i < record.length; i++) {
+                journalWriter.write(record[i]);
+                journalWriter.write(i < record.length - 1 ? " " : "\n");
+            }
+            journalWriter.flush();
+            journalRecords++;
+        } catch (IOException e) {
+            Logger.e(TAG, "Error appending to the cache journal", e);
+            IOUtils.closeQuietly(journalWriter);
+            journalWriter = null;
+        }
 
-            Logger.d(TAG, "Delete for trim " + file.getAbsolutePath());
-            workingSize -= file.length();
+        compactJournalIfNeeded();
+    }
 
-            boolean deleteResult = file.delete();
+    @WorkerThread
+    private void compactJournalIfNeeded() {
+        int indexSize;
+        synchronized (index) {
+            indexSize = index.size();
+        }
 
-            if (!deleteResult) {
-                Logger.e(TAG, "Failed to delete cache file for trim");
+        if (journalRecords > indexSize + JOURNAL_COMPACT_THRESHOLD) {
+            writeJournal();
+        }
+    }
+
+    @WorkerThread
+    private void deleteCacheFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equals(JOURNAL_FILE)) {
+                    continue;
+                }
+
+                if (!file.delete()) {
+                    Logger.d(TAG, "Could not delete cache file while clearing cache " +
+                            file.getName());
+                }
             }
         }
+    }
 
-        recalculateSize();
+    /**
+     * Partial downloads and streamed videos are not in the index, delete the ones that were
+     * abandoned.
+     */
+    @WorkerThread
+    private void deleteStalePartialFiles() {
+        long staleTime = System.currentTimeMillis() - PARTIAL_MAX_AGE;
+        File[] files = directory.listFiles((dir, name) ->
+                name.endsWith(FileCacheDownloader.PARTIAL_SUFFIX) ||
+                        name.contains(FileCacheDownloader.PROGRESS_SUFFIX) ||
+                        name.endsWith(FileCacheDataSource.STREAM_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                if (file.lastModified() < staleTime && !file.delete()) {
+                    Logger.d(TAG, "Could not delete stale partial file " + file.getName());
+                }
+            }
+        }
+    }
+
+    @WorkerThread
+    private void trim() {
+        long maxSize = getMaxSize();
+
+        // Least recently used first, the most recent file is always kept
+        List<String> evicted = new ArrayList<>();
+        synchronized (index) {
+            Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+            while (size.get() > maxSize && index.size() > 1 && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                iterator.remove();
+                size.addAndGet(-eldest.getValue());
+                evicted.add(eldest.getKey());
+            }
+        }
+
+        for (String name : evicted) {
+            File file = new File(directory, name);
+            Logger.d(TAG, "Delete for trim " + file.getAbsolutePath());
+
+            if (!file.delete() && file.exists()) {
+                Logger.e(TAG, "Failed to delete cache file for trim");
+            }
+
+            appendJournal(REMOVE, name);
+        }
     }
 
     @AnyThread
     private String hash(String key) {
-        return String.valueOf(key.hashCode());
+        return ByteString.encodeUtf8(key).sha1().hex();
     }
 }
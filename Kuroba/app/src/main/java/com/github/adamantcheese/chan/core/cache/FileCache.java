@@ -17,17 +17,18 @@
 package com.github.adamantcheese.chan.core.cache;
 
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.annotation.MainThread;
 
-import com.github.adamantcheese.chan.utils.Logger;
+import com.google.android.exoplayer2.source.DefaultMediaSourceEventListener;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.ProgressiveMediaSource;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.FileDataSource;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -42,21 +43,25 @@ public class FileCache implements FileCacheDownloader.Callback, FileCacheDataSou
     private static final String TAG = "FileCache";
     private static final int TIMEOUT = 10000;
     private static final int DOWNLOAD_POOL_SIZE = 2;
+    // Runs the other chunks of split downloads, the first chunk runs on the download pool
+    private static final int CHUNK_POOL_SIZE = DOWNLOAD_POOL_SIZE * (FileCacheDownloader.MAX_CHUNKS - 1);
 
     private final ExecutorService downloadPool = Executors.newFixedThreadPool(DOWNLOAD_POOL_SIZE);
+    private final ExecutorService chunkPool = Executors.newFixedThreadPool(CHUNK_POOL_SIZE);
     protected OkHttpClient httpClient;
 
     private final CacheHandler cacheHandler;
 
     private List<FileCacheDownloader> downloaders = new ArrayList<>();
 
-    public FileCache(File directory) {
-        httpClient = new OkHttpClient.Builder()
+    public FileCache(File directory, OkHttpClient okHttpClient) {
+        // Shares the connection pool with the rest of the app
+        httpClient = okHttpClient.newBuilder()
+                // Disable SPDY, causes reproducible timeouts, only one download at the same time and other fun stuff
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
                 .connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
                 .readTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
                 .writeTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
-                // Disable SPDY, causes reproducible timeouts, only one download at the same time and other fun stuff
-                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
                 .build();
 
         cacheHandler = new CacheHandler(directory);
@@ -90,7 +95,7 @@ public class FileCache implements FileCacheDownloader.Callback, FileCacheDataSou
         }
 
         File file = get(url);
-        if (file.exists()) {
+        if (cacheHandler.exists(url)) {
             handleFileImmediatelyAvailable(listener, file);
             return null;
         } else {
@@ -112,36 +117,34 @@ public class FileCache implements FileCacheDownloader.Callback, FileCacheDataSou
         FileCacheDataSource fileCacheSource = new FileCacheDataSource(uri, file);
         fileCacheSource.addListener(this);
 
-        // Attempt to get the data from a downloader already running for this URL,
-        // and fill it into our cache
+        // Read the data of a downloader already running for this URL as it comes in, instead of
+        // downloading it twice
         FileCacheDownloader runningDownloaderForKey = getDownloaderByKey(url);
         if (runningDownloaderForKey != null) {
-            runningDownloaderForKey.addListener(new FileCacheListener() {
-                @Override
-                public void beforePurgeOutput(File file) {
-                    try {
-                        fileCacheSource.fillCache(file);
-                    } catch (IOException e) {
-                        Logger.e(TAG, "Failed to fill cache!", e);
-                    }
-
-                    listener.onMediaSourceReady(new ProgressiveMediaSource.Factory(() -> fileCacheSource).createMediaSource(uri));
-                }
-            });
-
-            // Is it really OK to cancel here? Maybe a better way would be to just "peek"
-            // into the downloader data...
-            runningDownloaderForKey.cancel();
-        } else {
-            listener.onMediaSourceReady(new ProgressiveMediaSource.Factory(() -> fileCacheSource).createMediaSource(uri));
+            fileCacheSource.attachDownloader(runningDownloaderForKey);
         }
+
+        MediaSource mediaSource = new ProgressiveMediaSource.Factory(() -> fileCacheSource).createMediaSource(uri);
+        // The stream file is deleted once the player is done with it, unless it was completed
+        mediaSource.addEventListener(new Handler(Looper.getMainLooper()), new DefaultMediaSourceEventListener() {
+            @Override
+            public void onMediaPeriodCreated(int windowIndex, MediaSource.MediaPeriodId mediaPeriodId) {
+                fileCacheSource.periodCreated();
+            }
+
+            @Override
+            public void onMediaPeriodReleased(int windowIndex, MediaSource.MediaPeriodId mediaPeriodId) {
+                fileCacheSource.periodReleased();
+            }
+        });
+        listener.onMediaSourceReady(mediaSource);
     }
 
     public void createMediaSource(String url, MediaSourceCallback listener) {
         File file = get(url);
 
-        // The file needs to exist and to be complete, i.e. have no active downloader.
-        if (file.exists() && getDownloaderByKey(url) == null) {
+        // Files are only in the index once they are complete.
+        if (cacheHandler.exists(url)) {
             Uri uri = Uri.parse(file.toURI().toString());
             listener.onMediaSourceReady(new ProgressiveMediaSource.Factory(FileDataSource::new).createMediaSource(uri));
         } else {
@@ -177,20 +180,19 @@ public class FileCache implements FileCacheDownloader.Callback, FileCacheDataSou
     }
 
     private void handleFileImmediatelyAvailable(FileCacheListener listener, File file) {
-        // TODO: setLastModified doesn't seem to work on Android...
-        if (!file.setLastModified(System.currentTimeMillis())) {
-            Logger.e(TAG, "Could not set last modified time on file");
-        }
+        cacheHandler.fileWasAccessed(file);
         listener.onSuccess(file);
         listener.onEnd();
     }
 
     private FileCacheDownloader handleStartDownload(
             FileCacheListener listener, File file, String url) {
+        cacheHandler.createDirectories();
+
         FileCacheDownloader downloader = FileCacheDownloader.fromCallbackClientUrlOutputUserAgent(
                 this, httpClient, url, file);
         downloader.addListener(listener);
-        downloader.execute(downloadPool);
+        downloader.execute(downloadPool, chunkPool);
         downloaders.add(downloader);
         return downloader;
     }
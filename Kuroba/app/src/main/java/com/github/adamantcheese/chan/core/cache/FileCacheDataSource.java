@@ -3,9 +3,11 @@ package com.github.adamantcheese.chan.core.cache;
 import android.net.Uri;
 import android.util.Range;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.Nullable;
 
 import com.github.adamantcheese.chan.core.di.NetModule;
+import com.github.adamantcheese.chan.utils.IOUtils;
 import com.github.adamantcheese.chan.utils.Logger;
 import com.google.android.exoplayer2.upstream.BaseDataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
@@ -15,16 +17,24 @@ import com.google.android.exoplayer2.upstream.HttpDataSource;
 
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class FileCacheDataSource extends BaseDataSource {
+    static final String STREAM_SUFFIX = ".stream";
+
     private final String TAG = "FileCacheDataSource";
 
+    /**
+     * Keeps the downloaded parts of the file in a sparse file on disk next to the cache file.
+     * The cached ranges are kept in a tree map from their start to their (inclusive) end, they
+     * never overlap or touch each other.
+     */
     class PartialFileCache {
         class RegionStats {
             final List<Range<Long>> cachedRanges;
@@ -54,113 +64,98 @@ public class FileCacheDataSource extends BaseDataSource {
 
         private final String TAG = "PartialFileCache";
 
-        private List<Range<Long>> cachedRanges = new ArrayList<>();
-        private byte[] cachedRangesData;
+        private TreeMap<Long, Long> cachedRanges = new TreeMap<>();
+        private File backingFile;
+        private RandomAccessFile randomAccessFile;
         private long pos = 0;
         private long fileLength;
         private boolean firedCacheComplete = false;
         private List<Runnable> listeners = new ArrayList<>();
+        // Moved into the cache, the file is not ours to delete anymore
+        private boolean moved = false;
+        private volatile boolean deleted = false;
 
-        PartialFileCache(long fileLength) {
+        PartialFileCache(long fileLength) throws IOException {
             this.fileLength = fileLength;
-            cachedRangesData = new byte[(int) this.fileLength];
+            backingFile = File.createTempFile(file.getName(), STREAM_SUFFIX, file.getParentFile());
         }
 
         boolean isCached(long position, long length) {
-            for (Range<Long> r : cachedRanges) {
-                if (r.contains(Range.create(position, position + length - 1))) {
-                    return true;
-                }
-            }
-
-            return false;
+            Map.Entry<Long, Long> range = cachedRanges.floorEntry(position);
+            return range != null && range.getValue() >= position + length - 1;
         }
 
         boolean isCached(long length) {
             return isCached(pos, length);
         }
 
-        List<Range<Long>> determineMissingRanges() {
+        RegionStats getRegionStats(Range<Long> region) {
+            List<Range<Long>> cached = new ArrayList<>();
             List<Range<Long>> missing = new ArrayList<>();
 
-            long rangeStart = 0;
-            for (Range<Long> r : cachedRanges) {
-                if (rangeStart < r.getLower()) {
-                    missing.add(Range.create(rangeStart, r.getLower() - 1));
+            long position = region.getLower();
+            Long from = cachedRanges.floorKey(position);
+            for (Map.Entry<Long, Long> r : cachedRanges.tailMap(from == null ? position : from).entrySet()) {
+                if (r.getKey() > region.getUpper()) {
+                    break;
                 }
-                rangeStart = r.getUpper() + 1;
-            }
-
-            if (rangeStart < fileLength) {
-                missing.add(Range.create(rangeStart, fileLength - 1));
-            }
 
-            return missing;
-        }
+                if (r.getValue() < position) {
+                    continue;
+                }
 
-        RegionStats getRegionStats(Range<Long> region) {
-            List<Range<Long>> cached = new ArrayList<>();
-            List<Range<Long>> missing = new ArrayList<>();
+                if (r.getKey() > position) {
+                    missing.add(Range.create(position, r.getKey() - 1));
+                    position = r.getKey();
+                }
 
-            for (Range<Long> r : cachedRanges) {
-                try {
-                    cached.add(region.intersect(r));
-                } catch (IllegalArgumentException e) {} // Disjoint ranges.
+                long end = Math.min(r.getValue(), region.getUpper());
+                cached.add(Range.create(position, end));
+                position = end + 1;
             }
 
-            for (Range<Long> r : determineMissingRanges()) {
-                try {
-                    missing.add(region.intersect(r));
-                } catch (IllegalArgumentException e) {} // Disjoint ranges.
+            if (position <= region.getUpper()) {
+                missing.add(Range.create(position, region.getUpper()));
             }
 
             return new RegionStats(cached, missing);
         }
 
-        private boolean rangesAreContiguous(Range<Long> left, Range<Long> right) {
-            // Ranges like [0, 1] and [2, 3] are contiguous too.
-            return left.getUpper() + 1 >= right.getLower();
-        }
-
-        private void joinRange(int i, int j) {
-            Range<Long> left = cachedRanges.get(i);
-            Range<Long> right = cachedRanges.get(j);
-
-            Range<Long> newRange = left.extend(right);
-
-            cachedRanges.set(i, newRange);
-            cachedRanges.remove(j);
-        }
+        private void addRange(long start, long end) {
+            Map.Entry<Long, Long> previous = cachedRanges.floorEntry(start);
+            // Ranges like [0, 1] and [2, 3] are joined too.
+            if (previous != null && previous.getValue() + 1 >= start) {
+                start = previous.getKey();
+                end = Math.max(end, previous.getValue());
+            }
 
-        private void joinRanges() {
-            for (int i = 0; i < cachedRanges.size(); i++) {
-                while (i < cachedRanges.size() - 1
-                        && rangesAreContiguous(cachedRanges.get(i), cachedRanges.get(i + 1))) {
-                    joinRange(i, i + 1);
-                }
+            Map.Entry<Long, Long> next;
+            while ((next = cachedRanges.higherEntry(start)) != null && next.getKey() <= end + 1) {
+                end = Math.max(end, next.getValue());
+                cachedRanges.remove(next.getKey());
             }
+
+            cachedRanges.put(start, end);
         }
 
-        private int findRangeInsertPosition(long filePosition) {
-            int rangePosition = 0;
-            while (rangePosition < cachedRanges.size()
-                    && filePosition > cachedRanges.get(rangePosition).getLower()) {
-                rangePosition++;
+        private RandomAccessFile getFile() throws IOException {
+            if (randomAccessFile == null) {
+                randomAccessFile = new RandomAccessFile(backingFile, "rw");
             }
 
-            return rangePosition;
+            return randomAccessFile;
         }
 
-        void write(byte[] data, long offset, long length) {
-            int newRangePosition = findRangeInsertPosition(pos);
-            Range<Long> newRange = new Range<>(pos, pos + length - 1);
-            for (long i = 0; i < length; i++) {
-                cachedRangesData[(int) (newRange.getLower() + i)] = data[(int) (offset + i)];
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (length <= 0) {
+                return;
             }
 
-            cachedRanges.add(newRangePosition, newRange);
-            joinRanges();
+            RandomAccessFile f = getFile();
+            f.seek(pos);
+            f.write(data, offset, length);
 
+            addRange(pos, pos + length - 1);
             pos += length;
 
             if (isCacheComplete() && !firedCacheComplete) {
@@ -168,14 +163,14 @@ public class FileCacheDataSource extends BaseDataSource {
             }
         }
 
-        void read(byte[] buffer, long offset, long length) {
+        void read(byte[] buffer, int offset, int length) throws IOException {
             if (!isCached(length)) {
                 throw new IllegalArgumentException("tried to read uncached data!");
             }
 
-            for (int i = 0; i < length; i++) {
-                buffer[(int) offset + i] = cachedRangesData[(int) pos + i];
-            }
+            RandomAccessFile f = getFile();
+            f.seek(pos);
+            f.readFully(buffer, offset, length);
 
             pos += length;
         }
@@ -193,26 +188,55 @@ public class FileCacheDataSource extends BaseDataSource {
         }
 
         void fireCacheComplete() {
+            firedCacheComplete = true;
+
             for (Runnable listener : listeners) {
                 listener.run();
             }
-
-            firedCacheComplete = true;
         }
 
         boolean isCacheComplete() {
             return isCached(0, fileLength);
         }
 
-        byte[] getCacheBytes() {
-            return cachedRangesData;
+        /**
+         * Move the complete file to its place in the cache, it keeps being read from there.
+         */
+        boolean moveTo(File destination) {
+            closeFile();
+
+            if (!backingFile.renameTo(destination)) {
+                return false;
+            }
+
+            backingFile = destination;
+            moved = true;
+            return true;
+        }
+
+        void closeFile() {
+            IOUtils.closeQuietly(randomAccessFile);
+            randomAccessFile = null;
+        }
+
+        /**
+         * Close and delete the file, unless it was complete and moved into the cache.
+         */
+        synchronized void close() {
+            closeFile();
+
+            if (!moved && !deleted) {
+                deleted = true;
+                if (!backingFile.delete()) {
+                    Logger.e(TAG, "Could not delete the stream file " + backingFile.getName());
+                }
+            }
         }
     }
 
     private HttpDataSource dataSource;
     private PartialFileCache partialFileCache;
-    private byte[] dataToFillCache = null;
-    private int dataToFillCacheLength = 0;
+    private @Nullable FileCacheDownloader downloader;
     private PartialFileCache.RegionStats activeRegionStats;
     private Range<Long> httpActiveRange;
 
@@ -227,7 +251,15 @@ public class FileCacheDataSource extends BaseDataSource {
     private long fileLength = C.LENGTH_UNSET;
 
     private boolean prepared = false;
+    private boolean transferring = false;
+
+    // Whether a read is open and whether the player is done with this source, guarded by this.
+    // The loader thread opens and closes reads, the player releases the source on the main thread.
     private boolean opened = false;
+    private boolean released = false;
+
+    // Media periods of the player reading from this source, main thread only
+    private int periods = 0;
 
     public FileCacheDataSource(Uri uri, File file) {
         super(/* isNetwork= */ true);
@@ -243,41 +275,34 @@ public class FileCacheDataSource extends BaseDataSource {
         Logger.i(TAG, "detectLength: " + this.fileLength);
     }
 
-    private void prepare() throws HttpDataSource.HttpDataSourceException {
+    private void prepare() throws IOException {
         detectLength();
-        this.partialFileCache = new PartialFileCache(this.fileLength);
+        PartialFileCache partialFileCache = new PartialFileCache(this.fileLength);
         partialFileCache.addListener(() -> this.cacheComplete());
-
-        if (dataToFillCache != null) {
-            partialFileCache.write(dataToFillCache, 0, dataToFillCacheLength);
-            partialFileCache.seek(0);
-
-            dataToFillCache = null;
+        synchronized (this) {
+            this.partialFileCache = partialFileCache;
         }
 
         prepared = true;
     }
 
-    public void fillCache(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            dataToFillCache = new byte[(int) file.length()];
-            dataToFillCacheLength = fis.read(dataToFillCache);
-
-            // If it's null, this means we're not prepared yet (i.e. we don't know the real size
-            // of the video, which is required by partialFileCache). Just leave it here and wait
-            // until we're prepared.
-            if (partialFileCache != null) {
-                partialFileCache.write(dataToFillCache, 0, dataToFillCacheLength);
-                partialFileCache.seek(0);
-
-                dataToFillCache = null;
-            }
-        }
+    /**
+     * Read missing data from a download of the same file that is already running, falling back to
+     * our own requests for the parts it won't download.
+     */
+    public void attachDownloader(FileCacheDownloader downloader) {
+        this.downloader = downloader;
     }
 
     @Override
     public long open(DataSpec dataSpec) throws IOException {
-        if (!prepared) {
+        // From here on a release leaves deleting the partial file to close
+        synchronized (this) {
+            opened = true;
+        }
+
+        // Prepared again if the player was done with it once and starts reading again
+        if (!prepared || partialFileCache.deleted) {
             prepare();
         }
 
@@ -308,6 +333,7 @@ public class FileCacheDataSource extends BaseDataSource {
         }
 
         transferStarted(dataSpec);
+        transferring = true;
 
         return bytesRemaining;
     }
@@ -315,14 +341,27 @@ public class FileCacheDataSource extends BaseDataSource {
     private void activateHttpRange(Range<Long> range) throws HttpDataSource.HttpDataSourceException {
         if (httpActiveRange == null || !httpActiveRange.equals(range)) {
             // As this is reading sequentially, and our ranges are limited to the region
-            // our DataSpec was supposed to read, it's okay to assume we will read the entirety
-            // of our missing ranges, and we won't need to seek inside them.
-            dataSource.open(new DataSpec(uri, range.getLower(),
-                    range.getUpper() - range.getLower() + 1, null));
+            // our DataSpec was supposed to read, it's okay to assume we will read the rest
+            // of our missing ranges, and we won't need to seek inside them. The start of the
+            // range may already have been read from the downloader.
+            dataSource.open(new DataSpec(uri, pos, range.getUpper() - pos + 1, null));
             httpActiveRange = range;
         }
     }
 
+    private int readFromDownloader(byte[] buffer, int offset, int readLength) throws IOException {
+        if (downloader == null) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        int readBytes = downloader.readPartial(pos, buffer, offset, readLength);
+        if (readBytes <= 0) {
+            // It won't have this part, stop asking it.
+            downloader = null;
+        }
+        return readBytes;
+    }
+
     private long bytesRemaining() {
         return end - pos + 1;
     }
@@ -345,10 +384,17 @@ public class FileCacheDataSource extends BaseDataSource {
             partialFileCache.read(buffer, offset, readBytes);
         } else {
             Range<Long> missingRange = activeRegionStats.findMissingRange(pos);
-            activateHttpRange(missingRange);
-
-            readBytes = dataSource.read(buffer, offset, readLength);
-            partialFileCache.write(buffer, offset, readBytes);
+            int remainingBytesInRange = (int) Math.min(missingRange.getUpper() - pos + 1, maxReadableBytes);
+
+            readBytes = readFromDownloader(buffer, offset, remainingBytesInRange);
+            if (readBytes > 0) {
+                // The downloader already has it on disk, it is not written a second time
+                partialFileCache.seek(pos + readBytes);
+            } else {
+                activateHttpRange(missingRange);
+                readBytes = dataSource.read(buffer, offset, readLength);
+                partialFileCache.write(buffer, offset, readBytes);
+            }
         }
 
         if (readBytes > 0) {
@@ -360,10 +406,9 @@ public class FileCacheDataSource extends BaseDataSource {
     }
 
     public void cacheComplete() {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(partialFileCache.getCacheBytes());
-        } catch (Exception e) {
-            Logger.e(TAG, "cacheComplete: caught exception", e);
+        // Promote the file we have been writing to instead of writing it a second time.
+        if (!partialFileCache.moveTo(file)) {
+            Logger.e(TAG, "cacheComplete: could not move the file into the cache");
             return;
         }
 
@@ -390,10 +435,48 @@ public class FileCacheDataSource extends BaseDataSource {
                 dataSource.close();
             }
         } finally {
-            if (opened) {
-                opened = false;
+            if (transferring) {
+                transferring = false;
                 transferEnded();
             }
+
+            synchronized (this) {
+                opened = false;
+                if (partialFileCache != null) {
+                    if (released) {
+                        partialFileCache.close();
+                    } else {
+                        // Closed for a seek, the data is kept for when it's opened again
+                        partialFileCache.closeFile();
+                    }
+                }
+            }
+        }
+    }
+
+    @MainThread
+    void periodCreated() {
+        periods++;
+        synchronized (this) {
+            released = false;
+        }
+    }
+
+    /**
+     * When the player released all its media periods of this source the partial file is deleted,
+     * now or when the last read is closed.
+     */
+    @MainThread
+    void periodReleased() {
+        if (--periods > 0) {
+            return;
+        }
+
+        synchronized (this) {
+            released = true;
+            if (!opened && partialFileCache != null) {
+                partialFileCache.close();
+            }
         }
     }
 
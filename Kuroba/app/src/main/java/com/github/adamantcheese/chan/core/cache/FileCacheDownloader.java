@@ -18,42 +18,69 @@ package com.github.adamantcheese.chan.core.cache;
 
 import android.os.Handler;
 import android.os.Looper;
+
 import androidx.annotation.AnyThread;
 import androidx.annotation.MainThread;
 import androidx.annotation.WorkerThread;
 
 import com.github.adamantcheese.chan.core.di.NetModule;
-import com.github.adamantcheese.chan.core.settings.ChanSettings;
+import com.github.adamantcheese.chan.utils.IOUtils;
 import com.github.adamantcheese.chan.utils.Logger;
 
-import java.io.Closeable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
-import okhttp3.internal.Util;
-import okio.Buffer;
-import okio.BufferedSink;
-import okio.Okio;
-import okio.Source;
-
+import okio.BufferedSource;
+
+/**
+ * Downloads a file into the cache.
+ * <p>The data is written to a partial file next to the output, with a progress record that
+ * allows a failed or cancelled download to continue where it stopped with {@code Range} requests.
+ * Large files are split in chunks that are downloaded at the same time. The output file only
+ * appears once the download is complete.
+ */
 public class FileCacheDownloader implements Runnable {
     private static final String TAG = "FileCacheDownloader";
-    private static final long BUFFER_SIZE = 8192;
+    private static final int BUFFER_SIZE = 8192;
     private static final long NOTIFY_SIZE = BUFFER_SIZE * 8;
+    // Save the progress record every this many bytes, for when the app is killed mid download
+    private static final long SAVE_PROGRESS_SIZE = 512 * 1024;
+    // Files bigger than this are downloaded in multiple chunks
+    private static final long SPLIT_THRESHOLD = 1024 * 1024;
+    private static final long MIN_CHUNK_SIZE = 512 * 1024;
+    static final int MAX_CHUNKS = 4;
+
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String PROGRESS_SUFFIX = ".progress";
+
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
 
     private final OkHttpClient httpClient;
     private final String url;
     private final File output;
+    private final File partial;
+    private final File progress;
     private final Handler handler;
 
     // Main thread only.
@@ -64,10 +91,21 @@ public class FileCacheDownloader implements Runnable {
     private AtomicBoolean running = new AtomicBoolean(false);
     private AtomicBoolean cancel = new AtomicBoolean(false);
     private Future<?> future;
-
-    // Worker thread.
-    private Call call;
-    private ResponseBody body;
+    private ExecutorService chunkExecutor;
+
+    // Worker threads.
+    private AtomicBoolean chunkFailed = new AtomicBoolean(false);
+    private AtomicLong downloaded = new AtomicLong();
+    private AtomicLong notified = new AtomicLong();
+    private AtomicLong saved = new AtomicLong();
+
+    // Worker threads and readers of the partial data, guarded by progressLock.
+    private final Object progressLock = new Object();
+    private long contentLength = -1;
+    private String validator;
+    private List<Chunk> chunks;
+    private boolean completed = false;
+    private boolean ended = false;
 
     static FileCacheDownloader fromCallbackClientUrlOutputUserAgent(
             Callback callback, OkHttpClient httpClient, String url,
@@ -82,11 +120,18 @@ public class FileCacheDownloader implements Runnable {
         this.url = url;
         this.output = output;
 
+        partial = new File(output.getParentFile(), output.getName() + PARTIAL_SUFFIX);
+        progress = new File(output.getParentFile(), output.getName() + PROGRESS_SUFFIX);
         handler = new Handler(Looper.getMainLooper());
     }
 
+    /**
+     * Start the download on the executor, the other chunks of a split download run on the chunk
+     * executor.
+     */
     @MainThread
-    public void execute(ExecutorService executor) {
+    public void execute(ExecutorService executor, ExecutorService chunkExecutor) {
+        this.chunkExecutor = chunkExecutor;
         future = executor.submit(this);
     }
 
@@ -106,7 +151,7 @@ public class FileCacheDownloader implements Runnable {
     }
 
     /**
-     * Cancel this download.
+     * Cancel this download. The downloaded data is kept to continue from later.
      */
     @MainThread
     public void cancel() {
@@ -118,6 +163,68 @@ public class FileCacheDownloader implements Runnable {
         }
     }
 
+    /**
+     * Read the data at the position as soon as this downloader has it, blocking until then.
+     *
+     * @return the number of bytes read, or -1 if this downloader won't download the position.
+     */
+    @WorkerThread
+    public int readPartial(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (true) {
+            File source;
+            int toRead;
+            synchronized (progressLock) {
+                while (true) {
+                    if (completed) {
+                        source = output;
+                        toRead = length;
+                        break;
+                    }
+
+                    if (ended) {
+                        return -1;
+                    }
+
+                    if (chunks != null) {
+                        Chunk chunk = findChunk(position);
+                        if (chunk == null) {
+                            return -1;
+                        }
+
+                        long available = chunk.start + chunk.downloaded - position;
+                        if (available > 0) {
+                            source = partial;
+                            toRead = (int) Math.min(length, available);
+                            break;
+                        }
+                    }
+
+                    try {
+                        progressLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+
+            RandomAccessFile file;
+            try {
+                file = new RandomAccessFile(source, "r");
+            } catch (FileNotFoundException e) {
+                // The partial file was just moved or purged, check the state again
+                continue;
+            }
+
+            try {
+                file.seek(position);
+                return file.read(buffer, offset, toRead);
+            } finally {
+                IOUtils.closeQuietly(file);
+            }
+        }
+    }
+
     @AnyThread
     private void post(Runnable runnable) {
         handler.post(runnable);
@@ -147,25 +254,18 @@ public class FileCacheDownloader implements Runnable {
 
     @WorkerThread
     private void execute() {
-        Closeable sourceCloseable = null;
-        Closeable sinkCloseable = null;
-
         try {
             checkCancel();
 
-            ResponseBody body = getBody();
-
-            Source source = body.source();
-            sourceCloseable = source;
-
-            BufferedSink sink = Okio.buffer(Okio.sink(output));
-            sinkCloseable = sink;
-
-            checkCancel();
-
-            log("got input stream");
+            try {
+                download();
+            } catch (RestartException e) {
+                log("file changed on the server, restarting");
+                resetProgress();
+                download();
+            }
 
-            pipeBody(source, sink);
+            completeOutput();
 
             log("done");
 
@@ -192,14 +292,31 @@ public class FileCacheDownloader implements Runnable {
                 log("exception", e);
             }
 
+            // Keep what was downloaded if the download can continue from it later
+            boolean started;
+            boolean resumable;
+            synchronized (progressLock) {
+                started = chunks != null;
+                resumable = started && !isNotFound && validator != null && contentLength > 0;
+            }
+
+            if (resumable) {
+                saveProgress();
+                log("kept " + downloaded.get() + " of " + contentLength + " bytes");
+            }
+
+            final boolean purge = started && !resumable;
             final boolean finalIsNotFound = isNotFound;
             final boolean finalCancelled = cancelled;
             post(() -> {
-                for (FileCacheListener callback : listeners) {
-                    callback.beforePurgeOutput(output);
+                if (purge) {
+                    for (FileCacheListener callback : listeners) {
+                        callback.beforePurgeOutput(partial);
+                    }
+
+                    purgeOutput();
                 }
 
-                purgeOutput();
                 for (FileCacheListener callback : listeners) {
                     if (finalCancelled) {
                         callback.onCancel();
@@ -212,77 +329,304 @@ public class FileCacheDownloader implements Runnable {
                 callback.downloaderFinished(this);
             });
         } finally {
-            Util.closeQuietly(sourceCloseable);
-            Util.closeQuietly(sinkCloseable);
+            synchronized (progressLock) {
+                ended = true;
+                progressLock.notifyAll();
+            }
+        }
+    }
+
+    @WorkerThread
+    private void download() throws IOException {
+        if (loadProgress()) {
+            log("continuing at " + downloaded.get() + " of " + contentLength + " bytes");
+            downloadChunks(null);
+            return;
+        }
+
+        Response response = executeCall(newRequest()
+                .header("Range", "bytes=0-")
+                .build());
+        try {
+            checkCancel();
+
+            if (response.code() == 206) {
+                long[] contentRange = parseContentRange(response);
+                if (contentRange == null || contentRange[0] != 0) {
+                    throw new IOException("Invalid Content-Range");
+                }
+
+                String etag = response.header("ETag");
+                String lastModified = response.header("Last-Modified");
+
+                synchronized (progressLock) {
+                    contentLength = contentRange[2];
+                    validator = etag != null ? etag : lastModified;
+                    chunks = splitChunks(contentLength);
+                    progressLock.notifyAll();
+                }
+
+                RandomAccessFile file = new RandomAccessFile(partial, "rw");
+                try {
+                    file.setLength(contentLength);
+                } finally {
+                    IOUtils.closeQuietly(file);
+                }
+
+                downloadChunks(response);
+            } else {
+                // No range support, this can only be downloaded in one go
+                ResponseBody body = getBody(response);
+                synchronized (progressLock) {
+                    contentLength = body.contentLength();
+                    validator = null;
+                    chunks = new ArrayList<>();
+                    chunks.add(new Chunk(0, contentLength > 0 ? contentLength - 1 : -1));
+                    progressLock.notifyAll();
+                }
+
+                downloadChunk(chunks.get(0), response);
+            }
+        } finally {
+            IOUtils.closeQuietly(response);
+        }
+    }
 
-            if (call != null) {
-                call.cancel();
+    /**
+     * Download all unfinished chunks, the first one on this thread and the others on the chunk
+     * executor.
+     *
+     * @param firstResponse an already open response for the first chunk, or null.
+     */
+    @WorkerThread
+    private void downloadChunks(Response firstResponse) throws IOException {
+        List<Chunk> pending = new ArrayList<>();
+        synchronized (progressLock) {
+            for (Chunk chunk : chunks) {
+                if (!chunk.isDone()) {
+                    pending.add(chunk);
+                }
             }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i < pending.size(); i++) {
+            Chunk chunk = pending.get(i);
+            futures.add(chunkExecutor.submit(() -> {
+                downloadChunk(chunk, null);
+                return null;
+            }));
+        }
+
+        IOException failure = null;
+        try {
+            downloadChunk(pending.get(0), firstResponse);
+        } catch (IOException e) {
+            chunkFailed.set(true);
+            failure = e;
+        }
 
-            if (body != null) {
-                Util.closeQuietly(body);
+        // Wait for all chunks, none may be writing anymore when this returns
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                chunkFailed.set(true);
+                if (failure == null || failure instanceof AbortException) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunkFailed.set(true);
+                failure = new InterruptedIOException();
+                break;
             }
         }
+
+        if (failure != null) {
+            throw failure;
+        }
     }
 
+    /**
+     * Download the rest of a chunk into the partial file.
+     *
+     * @param response an already open response starting at the chunk position, or null to
+     *                 request the rest of the chunk.
+     */
     @WorkerThread
-    private ResponseBody getBody() throws IOException {
-        Request request = new Request.Builder()
-                .url(url)
-                .header("User-Agent", NetModule.USER_AGENT)
-                .build();
+    private void downloadChunk(Chunk chunk, Response response) throws IOException {
+        long position;
+        long end;
+        synchronized (progressLock) {
+            position = chunk.start + chunk.downloaded;
+            end = chunk.end;
+        }
+
+        Response owned = null;
+        RandomAccessFile file = null;
+        try {
+            if (response == null) {
+                Request.Builder request = newRequest()
+                        .header("Range", "bytes=" + position + "-" + end);
+                if (validator != null) {
+                    request.header("If-Range", validator);
+                }
 
-        call = httpClient.newBuilder()
-                .proxy(ChanSettings.getProxy())
-                .build()
-                .newCall(request);
+                response = owned = executeCall(request.build());
 
-        Response response = call.execute();
+                // A full response to If-Range means the file isn't the one we have parts of
+                long[] contentRange = parseContentRange(response);
+                if (response.code() != 206 || contentRange == null
+                        || contentRange[0] != position || contentRange[2] != contentLength) {
+                    throw new RestartException();
+                }
+            }
+
+            checkCancel();
+
+            BufferedSource source = getBody(response).source();
+            file = new RandomAccessFile(partial, "rw");
+            file.seek(position);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (end < 0 || position <= end) {
+                int toRead = end < 0 ? buffer.length : (int) Math.min(buffer.length, end - position + 1);
+                int read = source.read(buffer, 0, toRead);
+                if (read == -1) {
+                    break;
+                }
+
+                file.write(buffer, 0, read);
+                position += read;
+
+                synchronized (progressLock) {
+                    chunk.downloaded += read;
+                    progressLock.notifyAll();
+                }
+                onProgress(read);
+
+                checkCancel();
+            }
+
+            if (end >= 0 && position <= end) {
+                throw new IOException("Unexpected end of stream");
+            }
+
+            if (end < 0) {
+                // The length was unknown, the chunk ends where the stream did
+                synchronized (progressLock) {
+                    chunk.end = position - 1;
+                    contentLength = position;
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(file);
+            IOUtils.closeQuietly(owned);
+        }
+    }
+
+    @WorkerThread
+    private Request.Builder newRequest() {
+        return new Request.Builder()
+                .url(url)
+                .header("User-Agent", NetModule.USER_AGENT);
+    }
+
+    @WorkerThread
+    private Response executeCall(Request request) throws IOException {
+        Response response = httpClient.newCall(request).execute();
         if (!response.isSuccessful()) {
+            IOUtils.closeQuietly(response);
             throw new HttpCodeIOException(response.code());
         }
 
-        checkCancel();
+        return response;
+    }
 
-        body = response.body();
+    @WorkerThread
+    private ResponseBody getBody(Response response) throws IOException {
+        ResponseBody body = response.body();
         if (body == null) {
             throw new IOException("body == null");
         }
 
-        checkCancel();
-
         return body;
     }
 
     @WorkerThread
-    private void pipeBody(Source source, BufferedSink sink) throws IOException {
-        long contentLength = body.contentLength();
+    private long[] parseContentRange(Response response) {
+        String header = response.header("Content-Range");
+        if (header == null) {
+            return null;
+        }
 
-        long read;
-        long total = 0;
-        long notifyTotal = 0;
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(header);
+        if (!matcher.matches()) {
+            return null;
+        }
 
-        Buffer buffer = new Buffer();
+        try {
+            return new long[]{
+                    Long.parseLong(matcher.group(1)),
+                    Long.parseLong(matcher.group(2)),
+                    Long.parseLong(matcher.group(3))
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-        while ((read = source.read(buffer, BUFFER_SIZE)) != -1) {
-            sink.write(buffer, read);
-            total += read;
+    @WorkerThread
+    private List<Chunk> splitChunks(long length) {
+        int count = 1;
+        if (length > SPLIT_THRESHOLD) {
+            count = (int) Math.min(MAX_CHUNKS, length / MIN_CHUNK_SIZE);
+        }
 
-            if (total >= notifyTotal + NOTIFY_SIZE) {
-                notifyTotal = total;
-                log("progress " + (total / (float) contentLength));
-                postProgress(total, contentLength <= 0 ? total : contentLength);
-            }
+        List<Chunk> chunks = new ArrayList<>(count);
+        long chunkSize = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * chunkSize;
+            long end = i == count - 1 ? length - 1 : start + chunkSize - 1;
+            chunks.add(new Chunk(start, end));
+        }
+        return chunks;
+    }
 
-            checkCancel();
+    @AnyThread
+    private Chunk findChunk(long position) {
+        for (Chunk chunk : chunks) {
+            if (position >= chunk.start && (chunk.end < 0 || position <= chunk.end)) {
+                return chunk;
+            }
         }
+        return null;
+    }
 
-        Util.closeQuietly(source);
-        Util.closeQuietly(sink);
+    @WorkerThread
+    private void onProgress(int read) {
+        long total = downloaded.addAndGet(read);
+
+        long lastNotified = notified.get();
+        if (total >= lastNotified + NOTIFY_SIZE && notified.compareAndSet(lastNotified, total)) {
+            long length;
+            synchronized (progressLock) {
+                length = contentLength;
+            }
+            log("progress " + (total / (float) length));
+            postProgress(total, length <= 0 ? total : length);
+        }
 
-        call = null;
-        Util.closeQuietly(body);
-        body = null;
+        long lastSaved = saved.get();
+        if (total >= lastSaved + SAVE_PROGRESS_SIZE && saved.compareAndSet(lastSaved, total)) {
+            saveProgress();
+        }
     }
 
     @WorkerThread
@@ -290,15 +634,142 @@ public class FileCacheDownloader implements Runnable {
         if (cancel.get()) {
             throw new CancelException();
         }
+
+        if (chunkFailed.get()) {
+            throw new AbortException();
+        }
     }
 
+    /**
+     * Load the progress record of an earlier download of this file.
+     *
+     * @return true if there is downloaded data to continue from.
+     */
     @WorkerThread
+    private boolean loadProgress() {
+        if (!progress.exists() || !partial.exists()) {
+            purgeOutput();
+            return false;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(progress));
+            long length = Long.parseLong(reader.readLine());
+            String savedValidator = reader.readLine();
+
+            List<Chunk> savedChunks = new ArrayList<>();
+            long total = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                Chunk chunk = new Chunk(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+                chunk.downloaded = Long.parseLong(parts[2]);
+                savedChunks.add(chunk);
+                total += chunk.downloaded;
+            }
+
+            if (length <= 0 || partial.length() != length || savedValidator == null
+                    || savedValidator.isEmpty() || savedChunks.isEmpty()) {
+                throw new IOException("Invalid progress record");
+            }
+
+            synchronized (progressLock) {
+                contentLength = length;
+                validator = savedValidator;
+                chunks = savedChunks;
+                progressLock.notifyAll();
+            }
+            downloaded.set(total);
+            notified.set(total);
+            saved.set(total);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log("could not continue the download", e);
+            purgeOutput();
+            return false;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Write the progress record, only counting data that was written to the partial file.
+     */
+    @WorkerThread
+    private synchronized void saveProgress() {
+        StringBuilder record = new StringBuilder();
+        synchronized (progressLock) {
+            if (validator == null || contentLength <= 0 || chunks == null) {
+                return;
+            }
+
+            record.append(contentLength).append('\n').append(validator).append('\n');
+            for (Chunk chunk : chunks) {
+                record.append(chunk.start).append(' ')
+                        .append(chunk.end).append(' ')
+                        .append(chunk.downloaded).append('\n');
+            }
+        }
+
+        File tmp = new File(progress.getParentFile(), progress.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmp));
+            writer.write(record.toString());
+            writer.close();
+            writer = null;
+
+            if (!tmp.renameTo(progress)) {
+                log("could not replace the progress record");
+            }
+        } catch (IOException e) {
+            log("could not write the progress record", e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    @WorkerThread
+    private void resetProgress() {
+        purgeOutput();
+
+        synchronized (progressLock) {
+            contentLength = -1;
+            validator = null;
+            chunks = null;
+        }
+        chunkFailed.set(false);
+        downloaded.set(0);
+        notified.set(0);
+        saved.set(0);
+    }
+
+    @WorkerThread
+    private void completeOutput() throws IOException {
+        synchronized (progressLock) {
+            if (!partial.renameTo(output)) {
+                throw new IOException("Could not move the partial file to the output");
+            }
+
+            completed = true;
+            progressLock.notifyAll();
+        }
+
+        if (progress.exists() && !progress.delete()) {
+            log("could not delete the progress record");
+        }
+    }
+
+    @AnyThread
     private void purgeOutput() {
-        if (output.exists()) {
-            final boolean deleteResult = output.delete();
+        for (File file : new File[]{partial, progress}) {
+            if (file.exists()) {
+                final boolean deleteResult = file.delete();
 
-            if (!deleteResult) {
-                log("could not delete the file in purgeOutput");
+                if (!deleteResult) {
+                    log("could not delete the file in purgeOutput");
+                }
             }
         }
     }
@@ -312,11 +783,46 @@ public class FileCacheDownloader implements Runnable {
         });
     }
 
+    /**
+     * A range of the file, with how much of it is in the partial file.
+     */
+    private static class Chunk {
+        final long start;
+        // Inclusive, -1 when the length of the file is unknown
+        long end;
+        long downloaded;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isDone() {
+            return end >= 0 && start + downloaded > end;
+        }
+    }
+
     private static class CancelException extends IOException {
         public CancelException() {
         }
     }
 
+    /**
+     * Another chunk of the same download failed.
+     */
+    private static class AbortException extends IOException {
+        public AbortException() {
+        }
+    }
+
+    /**
+     * The file on the server is not the one the partial file is from.
+     */
+    private static class RestartException extends IOException {
+        public RestartException() {
+        }
+    }
+
     private static class HttpCodeIOException extends IOException {
         private int code;
 
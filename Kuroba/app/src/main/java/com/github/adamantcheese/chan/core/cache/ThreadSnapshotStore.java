@@ -0,0 +1,527 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.cache;
+
+import androidx.annotation.WorkerThread;
+
+import com.github.adamantcheese.chan.core.database.DatabaseSavedReplyManager;
+import com.github.adamantcheese.chan.core.manager.FilterEngine;
+import com.github.adamantcheese.chan.core.model.Post;
+import com.github.adamantcheese.chan.core.model.PostHttpIcon;
+import com.github.adamantcheese.chan.core.model.PostImage;
+import com.github.adamantcheese.chan.core.model.PostLinkable;
+import com.github.adamantcheese.chan.core.model.orm.Loadable;
+import com.github.adamantcheese.chan.core.settings.ChanSettings;
+import com.github.adamantcheese.chan.core.site.parser.CommentParser;
+import com.github.adamantcheese.chan.ui.text.StyledText;
+import com.github.adamantcheese.chan.utils.IOUtils;
+import com.github.adamantcheese.chan.utils.IntObjectMap;
+import com.github.adamantcheese.chan.utils.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.HttpUrl;
+
+import static com.github.adamantcheese.chan.utils.AndroidUtils.getRes;
+
+/**
+ * Keeps the parsed posts of recently loaded threads on disk, so that reopening a thread after the
+ * process died can show it right away and only has to parse the posts that are new.
+ * <p>
+ * A snapshot is a file per thread with the posts as they came out of the parser, the texts are
+ * stored as their {@link StyledText} runs. Those don't depend on the theme, but the names and sizes
+ * do depend on a few settings, a snapshot made with other ones is not used.
+ * <p>The posts are also stored as they were filtered and marked as saved replies. A snapshot is
+ * not used either after the filters of the board or the saved replies in the thread changed.
+ */
+public class ThreadSnapshotStore {
+    private static final String TAG = "ThreadSnapshotStore";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4b545331;
+    private static final int VERSION = 3;
+    private static final String EXTENSION = ".snap";
+    private static final int MAX_SNAPSHOTS = 100;
+
+    private static final int VALUE_INTEGER = 1;
+    private static final int VALUE_STRING = 2;
+    private static final int VALUE_THREAD_LINK = 3;
+    private static final int VALUE_SEARCH_LINK = 4;
+
+    private final File directory;
+    private final FilterEngine filterEngine;
+    private final DatabaseSavedReplyManager databaseSavedReplyManager;
+
+    public ThreadSnapshotStore(File directory, FilterEngine filterEngine,
+                               DatabaseSavedReplyManager databaseSavedReplyManager) {
+        this.directory = directory;
+        this.filterEngine = filterEngine;
+        this.databaseSavedReplyManager = databaseSavedReplyManager;
+    }
+
+    /**
+     * Reads the snapshot of the thread. The replies between the posts are linked up and the posts
+     * are ready to be shown.
+     *
+     * @return the snapshot, or null if there is none that can be used.
+     */
+    @WorkerThread
+    public Snapshot read(Loadable loadable) {
+        File file = snapshotFile(loadable);
+        if (!file.exists()) {
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !getSignature(loadable).equals(readString(in))) {
+                Logger.d(TAG, "Snapshot of " + file.getName() + " is outdated");
+                return null;
+            }
+
+            String lastModified = readString(in);
+            String etag = readString(in);
+            String tailLastModified = readString(in);
+            String tailEtag = readString(in);
+
+            int count = in.readInt();
+            List<Post> posts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Post post = readPost(in, loadable);
+                if (post.isSavedReply != databaseSavedReplyManager.isSaved(loadable.board, post.no)) {
+                    Logger.d(TAG, "Saved replies of " + file.getName() + " changed");
+                    return null;
+                }
+                posts.add(post);
+            }
+
+            linkReplies(posts);
+
+            Logger.d(TAG, "Read " + count + " posts of " + file.getName() + " in " +
+                    (System.currentTimeMillis() - start) + "ms");
+
+            // Used again, so the oldest ones are removed first
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+
+            return new Snapshot(posts, lastModified, etag, tailLastModified, tailEtag);
+        } catch (IOException | RuntimeException e) {
+            Logger.e(TAG, "Error reading snapshot " + file.getName(), e);
+            delete(file);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replaces the snapshot of the thread. The posts must not be changed until this returns.
+     *
+     * @param lastModified     the Last-Modified header of the last response of the whole thread, or null.
+     * @param etag             the ETag header of the last response of the whole thread, or null.
+     * @param tailLastModified the Last-Modified header of the last response of the tail, or null.
+     * @param tailEtag         the ETag header of the last response of the tail, or null.
+     */
+    @WorkerThread
+    public void write(Loadable loadable, List<Post> posts, String lastModified, String etag,
+                      String tailLastModified, String tailEtag) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Logger.e(TAG, "Unable to create snapshot directory " + directory.getAbsolutePath());
+            return;
+        }
+
+        File file = snapshotFile(loadable);
+        // Written next to it and moved over it, a reader never sees half a snapshot
+        File temp = new File(directory, file.getName() + ".tmp");
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, getSignature(loadable));
+            writeString(out, lastModified);
+            writeString(out, etag);
+            writeString(out, tailLastModified);
+            writeString(out, tailEtag);
+
+            out.writeInt(posts.size());
+            for (int i = 0; i < posts.size(); i++) {
+                writePost(out, posts.get(i));
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp.getName());
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Error writing snapshot " + file.getName(), e);
+            delete(temp);
+            return;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+
+        trim();
+    }
+
+    /**
+     * Deletes the oldest snapshots if there are too many.
+     */
+    @WorkerThread
+    private void trim() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null || files.length <= MAX_SNAPSHOTS) {
+            return;
+        }
+
+        long[] lastModified = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+        }
+        Arrays.sort(lastModified);
+        long cutoff = lastModified[files.length - MAX_SNAPSHOTS];
+
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                delete(file);
+            }
+        }
+    }
+
+    private File snapshotFile(Loadable loadable) {
+        String board = loadable.boardCode.replaceAll("[^A-Za-z0-9]", "_");
+        return new File(directory, loadable.siteId + "_" + board + "_" + loadable.no + EXTENSION);
+    }
+
+    /**
+     * Everything the parsed and filtered posts depend on besides the posts themselves.
+     */
+    private String getSignature(Loadable loadable) {
+        return getRes().getDisplayMetrics().scaledDensity + "," +
+                ChanSettings.anonymize.get() + "," +
+                ChanSettings.anonymizeIds.get() + "," +
+                ChanSettings.showAnonymousName.get() + "," +
+                ChanSettings.revealImageSpoilers.get() + "," +
+                filterEngine.getCompiledFilters(loadable.board).getSignature();
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Logger.e(TAG, "Could not delete " + file.getName());
+        }
+    }
+
+    private static void linkReplies(List<Post> posts) {
+        IntObjectMap<Post> byNo = new IntObjectMap<>(posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            Post post = posts.get(i);
+            byNo.put(post.no, post);
+        }
+
+        for (int i = 0; i < posts.size(); i++) {
+            Post source = posts.get(i);
+            for (int replyTo : source.repliesTo) {
+                Post target = byNo.get(replyTo);
+                if (target != null) {
+                    synchronized (target.repliesFrom) {
+                        target.repliesFrom.add(source.no);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writePost(DataOutputStream out, Post post) throws IOException {
+        out.writeInt(post.no);
+        out.writeInt(post.opId);
+        out.writeBoolean(post.isOP);
+        out.writeLong(post.time);
+        out.writeBoolean(post.deleted.get());
+
+        writeString(out, post.name);
+        writeString(out, post.subject);
+        writeString(out, post.tripcode);
+        writeString(out, post.id);
+        writeString(out, post.capcode);
+
+        writeStyledText(out, post.comment);
+        writeStyledText(out, post.subjectSpan);
+        writeStyledText(out, post.nameTripcodeIdCapcodeSpan);
+
+        out.writeInt(post.images.size());
+        for (int i = 0; i < post.images.size(); i++) {
+            PostImage image = post.images.get(i);
+            writeString(out, image.originalName);
+            writeUrl(out, image.thumbnailUrl);
+            writeUrl(out, image.spoilerThumbnailUrl);
+            writeUrl(out, image.imageUrl);
+            writeString(out, image.filename);
+            writeString(out, image.extension);
+            out.writeInt(image.imageWidth);
+            out.writeInt(image.imageHeight);
+            out.writeBoolean(image.spoiler);
+            out.writeLong(image.size);
+        }
+
+        if (post.httpIcons == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(post.httpIcons.size());
+            for (int i = 0; i < post.httpIcons.size(); i++) {
+                PostHttpIcon icon = post.httpIcons.get(i);
+                writeUrl(out, icon.url);
+                writeString(out, icon.name);
+            }
+        }
+
+        out.writeBoolean(post.isSavedReply);
+        out.writeInt(post.filterHighlightedColor);
+        out.writeBoolean(post.filterStub);
+        out.writeBoolean(post.filterRemove);
+        out.writeBoolean(post.filterWatch);
+        out.writeBoolean(post.filterReplies);
+
+        out.writeInt(post.repliesTo.size());
+        for (int replyTo : post.repliesTo) {
+            out.writeInt(replyTo);
+        }
+
+        // Only set on the op by the loader, after parsing
+        out.writeBoolean(post.isSticky());
+        out.writeBoolean(post.isClosed());
+        out.writeBoolean(post.isArchived());
+        out.writeInt(post.getReplies());
+        out.writeInt(post.getImagesCount());
+        out.writeInt(post.getUniqueIps());
+        out.writeLong(post.getLastModified());
+    }
+
+    private static Post readPost(DataInputStream in, Loadable loadable) throws IOException {
+        Post.Builder builder = new Post.Builder()
+                .board(loadable.board)
+                .id(in.readInt())
+                .opId(in.readInt())
+                .op(in.readBoolean())
+                .setUnixTimestampSeconds(in.readLong());
+        boolean deleted = in.readBoolean();
+
+        builder.name(readString(in))
+                .subject(readString(in))
+                .tripcode(readString(in))
+                .posterId(readString(in))
+                .moderatorCapcode(readString(in));
+
+        StyledText comment = readStyledText(in);
+        builder.comment(comment);
+        builder.linkables(new ArrayList<>(comment.getLinkables()));
+        builder.spans(readStyledText(in), readStyledText(in));
+
+        int imageCount = in.readInt();
+        List<PostImage> images = new ArrayList<>(imageCount);
+        for (int i = 0; i < imageCount; i++) {
+            images.add(new PostImage.Builder()
+                    .originalName(readString(in))
+                    .thumbnailUrl(readUrl(in))
+                    .spoilerThumbnailUrl(readUrl(in))
+                    .imageUrl(readUrl(in))
+                    .filename(readString(in))
+                    .extension(readString(in))
+                    .imageWidth(in.readInt())
+                    .imageHeight(in.readInt())
+                    .spoiler(in.readBoolean())
+                    .size(in.readLong())
+                    .build());
+        }
+        builder.images(images);
+
+        int iconCount = in.readInt();
+        if (iconCount >= 0) {
+            List<PostHttpIcon> icons = new ArrayList<>(iconCount);
+            for (int i = 0; i < iconCount; i++) {
+                icons.add(new PostHttpIcon(readUrl(in), readString(in)));
+            }
+            builder.setHttpIcons(icons);
+        }
+
+        builder.isSavedReply(in.readBoolean());
+        builder.filter(in.readInt(), in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean());
+
+        int repliesToCount = in.readInt();
+        Set<Integer> repliesTo = new HashSet<>(repliesToCount);
+        for (int i = 0; i < repliesToCount; i++) {
+            repliesTo.add(in.readInt());
+        }
+        builder.repliesTo(repliesTo);
+
+        builder.sticky(in.readBoolean())
+                .closed(in.readBoolean())
+                .archived(in.readBoolean())
+                .replies(in.readInt())
+                .images(in.readInt())
+                .uniqueIps(in.readInt())
+                .lastModified(in.readLong());
+
+        Post post = builder.build();
+        post.deleted.set(deleted);
+        return post;
+    }
+
+    private static void writeStyledText(DataOutputStream out, StyledText text) throws IOException {
+        if (text == null) {
+            writeString(out, null);
+            return;
+        }
+
+        writeString(out, text.toString());
+
+        int[] runs = text.getRuns();
+        out.writeInt(runs.length);
+        for (int run : runs) {
+            out.writeInt(run);
+        }
+
+        List<PostLinkable> linkables = text.getLinkables();
+        out.writeInt(linkables.size());
+        for (int i = 0; i < linkables.size(); i++) {
+            PostLinkable linkable = linkables.get(i);
+            out.writeByte(linkable.type.ordinal());
+            writeString(out, linkable.key.toString());
+            writeLinkableValue(out, linkable.value);
+        }
+    }
+
+    private static StyledText readStyledText(DataInputStream in) throws IOException {
+        String text = readString(in);
+        if (text == null) {
+            return null;
+        }
+
+        int[] runs = new int[in.readInt()];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = in.readInt();
+        }
+
+        PostLinkable[] linkables = new PostLinkable[in.readInt()];
+        for (int i = 0; i < linkables.length; i++) {
+            PostLinkable.Type type = PostLinkable.Type.values()[in.readByte()];
+            String key = readString(in);
+            // The theme is set when the text is rendered
+            linkables[i] = new PostLinkable(key, readLinkableValue(in), type);
+        }
+
+        return new StyledText(text, runs, linkables);
+    }
+
+    private static void writeLinkableValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Integer) {
+            out.writeByte(VALUE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof CommentParser.ThreadLink) {
+            CommentParser.ThreadLink link = (CommentParser.ThreadLink) value;
+            out.writeByte(VALUE_THREAD_LINK);
+            writeString(out, link.board);
+            out.writeInt(link.threadId);
+            out.writeInt(link.postId);
+        } else if (value instanceof CommentParser.SearchLink) {
+            CommentParser.SearchLink link = (CommentParser.SearchLink) value;
+            out.writeByte(VALUE_SEARCH_LINK);
+            writeString(out, link.board);
+            writeString(out, link.search);
+        } else {
+            out.writeByte(VALUE_STRING);
+            writeString(out, value == null ? null : value.toString());
+        }
+    }
+
+    private static Object readLinkableValue(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case VALUE_INTEGER:
+                return in.readInt();
+            case VALUE_THREAD_LINK:
+                return new CommentParser.ThreadLink(readString(in), in.readInt(), in.readInt());
+            case VALUE_SEARCH_LINK:
+                return new CommentParser.SearchLink(readString(in), readString(in));
+            case VALUE_STRING:
+                return readString(in);
+            default:
+                throw new IOException("Unknown linkable value");
+        }
+    }
+
+    private static void writeUrl(DataOutputStream out, HttpUrl url) throws IOException {
+        writeString(out, url == null ? null : url.toString());
+    }
+
+    private static HttpUrl readUrl(DataInputStream in) throws IOException {
+        String url = readString(in);
+        return url == null ? null : HttpUrl.parse(url);
+    }
+
+    // Not writeUTF, comments can be longer than it allows
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = string.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    public static class Snapshot {
+        public final List<Post> posts;
+        public final String lastModified;
+        public final String etag;
+        public final String tailLastModified;
+        public final String tailEtag;
+
+        private Snapshot(List<Post> posts, String lastModified, String etag,
+                         String tailLastModified, String tailEtag) {
+            this.posts = posts;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.tailLastModified = tailLastModified;
+            this.tailEtag = tailEtag;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.cache;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.WorkerThread;
+
+import com.github.adamantcheese.chan.utils.IOUtils;
+import com.github.adamantcheese.chan.utils.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Disk cache for thumbnails, separate from Volley's cache so that thumbnails and api responses
+ * don't evict each other. Thumbnails are small and never change, so instead of a file per entry
+ * they are appended to a few large segment files, with an in memory index of where each one is.
+ * When the cache is over its size the oldest segment is deleted as a whole. Thumbnails read from
+ * the older half of the segments are appended again, so the ones still in use aren't deleted with
+ * it.
+ * <p>
+ * Each record is a magic number, the key, the length of the data and the data. The index is
+ * rebuilt on startup by reading the record headers, a record cut off by the app dying is
+ * truncated away.
+ */
+public class ThumbnailDiskCache {
+    private static final String TAG = "ThumbnailDiskCache";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4b544331;
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final int SEGMENT_COUNT = 8;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+    // Reads and writes are tried again on a channel closed by an interrupt, at most this many times.
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Does all the writing, in order.
+    private final ExecutorService pool = Executors.newFixedThreadPool(1);
+
+    private final File directory;
+    private final long maxSize;
+    private final long segmentSize;
+
+    // All below guarded by this.
+    private final Map<String, Entry> index = new HashMap<>();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private boolean loaded;
+    private long size;
+    private long hits;
+    private long misses;
+
+    public ThumbnailDiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        segmentSize = Math.max(256 * 1024, maxSize / SEGMENT_COUNT);
+
+        pool.submit(this::load);
+    }
+
+    /**
+     * Whether the thumbnail is cached. Before the index finished loading nothing is.
+     */
+    @AnyThread
+    public synchronized boolean contains(String key) {
+        return loaded && index.containsKey(key);
+    }
+
+    /**
+     * Reads a cached thumbnail.
+     *
+     * @return the data, or null if it's not cached or could not be read.
+     */
+    @WorkerThread
+    public byte[] get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = index.get(key);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+
+        byte[] data = new byte[entry.length];
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // Positional reads don't move the channel, so readers and the writer don't interfere
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                long position = entry.offset;
+                while (buffer.hasRemaining()) {
+                    int read = entry.segment.channel().read(buffer, position);
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    position += read;
+                }
+                break;
+            } catch (ClosedChannelException e) {
+                // Closed by an interrupt of this or another thread, or the segment was evicted
+                if (Thread.currentThread().isInterrupted() || attempt == MAX_ATTEMPTS) {
+                    return null;
+                }
+            } catch (IOException e) {
+                Logger.w(TAG, "Could not read " + key, e);
+                return null;
+            }
+        }
+
+        if (isOld(entry.segment)) {
+            pool.submit(() -> write(key, data, entry));
+        }
+        return data;
+    }
+
+    /**
+     * Adds a thumbnail. The write happens in the background, it can be read once it's done.
+     */
+    @AnyThread
+    public void put(String key, byte[] data) {
+        if (data.length == 0 || data.length > MAX_ENTRY_SIZE) {
+            return;
+        }
+
+        pool.submit(() -> write(key, data, null));
+    }
+
+    public synchronized String getSummary() {
+        return index.size() + " thumbnails, " + (size / 1024) + "KB of " + (maxSize / 1024) + "KB in " +
+                segments.size() + " segments, " + hits + " hits, " + misses + " misses";
+    }
+
+    @WorkerThread
+    private void load() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Logger.e(TAG, "Unable to create thumbnail cache directory " + directory.getAbsolutePath());
+            return;
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        long[] numbers = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < numbers.length; i++) {
+            try {
+                String name = files[i].getName();
+                numbers[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+            } catch (NumberFormatException e) {
+                numbers[i] = -1;
+            }
+        }
+        Arrays.sort(numbers);
+
+        Map<String, Entry> loadedIndex = new HashMap<>();
+        ArrayDeque<Segment> loadedSegments = new ArrayDeque<>();
+        long loadedSize = 0;
+        for (long number : numbers) {
+            if (number < 0) {
+                continue;
+            }
+
+            try {
+                Segment segment = new Segment(number, segmentFile(number));
+                segment.size = scan(segment, loadedIndex);
+                segment.channel().truncate(segment.size);
+                loadedSegments.add(segment);
+                loadedSize += segment.size;
+            } catch (IOException e) {
+                Logger.e(TAG, "Error loading segment " + number + ", deleting it", e);
+                if (!segmentFile(number).delete()) {
+                    Logger.e(TAG, "Could not delete segment " + number);
+                }
+            }
+        }
+
+        synchronized (this) {
+            index.putAll(loadedIndex);
+            segments.addAll(loadedSegments);
+            size = loadedSize;
+            loaded = true;
+        }
+
+        trim();
+    }
+
+    /**
+     * Adds the records of the segment to the index.
+     *
+     * @return the length of the segment up to the last complete record.
+     */
+    @WorkerThread
+    private long scan(Segment segment, Map<String, Entry> into) {
+        DataInputStream in = null;
+        long position = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            while (true) {
+                if (in.readInt() != MAGIC) {
+                    break;
+                }
+                byte[] key = new byte[in.readUnsignedShort()];
+                in.readFully(key);
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_ENTRY_SIZE) {
+                    break;
+                }
+                long dataOffset = position + 4 + 2 + key.length + 4;
+                if (dataOffset + length > segment.file.length()) {
+                    break;
+                }
+                skipFully(in, length);
+
+                into.put(new String(key, UTF8), new Entry(segment, dataOffset, length));
+                position = dataOffset + length;
+            }
+        } catch (IOException e) {
+            // EOF or a broken record, everything up to here is good
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return position;
+    }
+
+    /**
+     * Whether the segment is in the older half, the entries read from it are appended again.
+     */
+    private synchronized boolean isOld(Segment segment) {
+        Segment newest = segments.peekLast();
+        return newest != null && newest.number - segment.number >= SEGMENT_COUNT / 2;
+    }
+
+    /**
+     * Appends a record for the key, unless the key is in the index with another entry than
+     * {@code replaced}. That's null for new thumbnails, and the read entry when appending it again.
+     */
+    @WorkerThread
+    private void write(String key, byte[] data, Entry replaced) {
+        Segment segment;
+        synchronized (this) {
+            if (!loaded || index.get(key) != replaced) {
+                return;
+            }
+            segment = segments.peekLast();
+        }
+
+        byte[] keyBytes = key.getBytes(UTF8);
+        if (keyBytes.length > 0xffff) {
+            return;
+        }
+
+        try {
+            if (segment == null || segment.size >= segmentSize) {
+                long number = segment == null ? 0 : segment.number + 1;
+                segment = new Segment(number, segmentFile(number));
+                synchronized (this) {
+                    segments.add(segment);
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + keyBytes.length + 4 + data.length);
+            buffer.putInt(MAGIC);
+            buffer.putShort((short) keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.putInt(data.length);
+            buffer.put(data);
+            buffer.flip();
+
+            long offset = segment.size;
+            long position = offset;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        position += segment.channel().write(buffer, position);
+                    }
+                    break;
+                } catch (ClosedChannelException e) {
+                    // Closed by an interrupted reader, write the record again from its start
+                    if (attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    buffer.rewind();
+                    position = offset;
+                }
+            }
+            segment.size = position;
+
+            synchronized (this) {
+                index.put(key, new Entry(segment, position - data.length, data.length));
+                size += position - offset;
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Error writing thumbnail", e);
+            return;
+        }
+
+        trim();
+    }
+
+    /**
+     * Deletes the oldest segments until the cache is within its size, never the one being written.
+     */
+    @WorkerThread
+    private void trim() {
+        while (true) {
+            Segment oldest;
+            synchronized (this) {
+                if (size <= maxSize || segments.size() <= 1) {
+                    return;
+                }
+
+                oldest = segments.pollFirst();
+                size -= oldest.size;
+                for (Iterator<Entry> iterator = index.values().iterator(); iterator.hasNext(); ) {
+                    if (iterator.next().segment == oldest) {
+                        iterator.remove();
+                    }
+                }
+            }
+
+            oldest.delete();
+        }
+    }
+
+    private File segmentFile(long number) {
+        return new File(directory, number + SEGMENT_EXTENSION);
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static class Segment {
+        private final long number;
+        private final File file;
+        // Guarded by this.
+        private FileChannel channel;
+        private boolean deleted;
+        // Writer thread only.
+        private long size;
+
+        private Segment(long number, File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        /**
+         * The channel all reads and writes of the segment share. An interrupt during one of them
+         * closes it for everyone, so it's opened again here until the segment is deleted.
+         */
+        private synchronized FileChannel channel() throws IOException {
+            if (deleted) {
+                throw new ClosedChannelException();
+            }
+            if (!channel.isOpen()) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        private synchronized void delete() {
+            deleted = true;
+            IOUtils.closeQuietly(channel);
+            if (!file.delete()) {
+                Logger.e(TAG, "Could not delete segment " + number);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Entry(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
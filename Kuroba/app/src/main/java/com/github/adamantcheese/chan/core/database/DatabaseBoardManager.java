@@ -53,11 +53,11 @@ public class DatabaseBoardManager {
     }
 
     public Callable<Void> updateIncludingUserFields(final Board board) {
-        return () -> {
+        return DatabaseManager.coalescing("updateBoard", board.id, () -> {
             helper.boardsDao.update(board);
 
             return null;
-        };
+        });
     }
 
     public Callable<Void> updateIncludingUserFields(final List<Board> boards) {
@@ -7,6 +7,7 @@ import com.github.adamantcheese.chan.Chan;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.orm.PostHide;
 import com.github.adamantcheese.chan.core.site.Site;
+import com.github.adamantcheese.chan.utils.IntObjectMap;
 import com.github.adamantcheese.chan.utils.Logger;
 import com.github.adamantcheese.chan.utils.PostUtils;
 import com.j256.ormlite.stmt.DeleteBuilder;
@@ -17,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +38,13 @@ public class DatabaseHideManager {
     @Inject
     DatabaseHelper helper;
 
+    /**
+     * The PostHide rows by site id and board code, then post no. A board is loaded on the database
+     * thread when it's opened, after that the writes below keep it up to date once they commit.
+     * Lookups come from other threads, all access is synchronized on this map.
+     */
+    private final Map<String, IntObjectMap<PostHide>> hiddenByBoard = new HashMap<>();
+
     public DatabaseHideManager() {
         inject(this);
     }
@@ -44,84 +53,102 @@ public class DatabaseHideManager {
         return () -> {
             Chan.injector().provider(DatabaseManager.class).get().trimTable(helper.postHideDao, "posthide",
                     POST_HIDE_TRIM_TRIGGER, POST_HIDE_TRIM_COUNT);
+            invalidateCache();
 
             return null;
         };
     }
 
     /**
-     * Searches for hidden posts in the PostHide table then checks whether there are posts with a reply
-     * to already hidden posts and if there are hides them as well.
+     * Drop the cached hidden posts, for when the table was changed without going through this class.
      */
-    public List<Post> filterHiddenPosts(List<Post> posts, int siteId, String board) {
-        return Chan.injector().provider(DatabaseManager.class).get().runTask(() -> {
-            List<Integer> postNoList = new ArrayList<>(posts.size());
-            for (Post post : posts) {
-                postNoList.add(post.no);
-            }
+    public void invalidateCache() {
+        synchronized (hiddenByBoard) {
+            hiddenByBoard.clear();
+        }
+    }
 
-            @SuppressLint("UseSparseArrays")
-            Map<Integer, Post> postsFastLookupMap = new LinkedHashMap<>();
-            for (Post post : posts) {
-                postsFastLookupMap.put(post.no, post);
+    /**
+     * Load the hidden posts of the board in the background, so that filtering its posts doesn't
+     * have to wait for the database.
+     */
+    public void preloadBoard(int siteId, String board) {
+        synchronized (hiddenByBoard) {
+            if (hiddenByBoard.containsKey(boardKey(siteId, board))) {
+                return;
             }
+        }
 
-            applyFiltersToReplies(posts, postsFastLookupMap);
+        Chan.injector().provider(DatabaseManager.class).get().runTaskAsync(loadBoard(siteId, board));
+    }
 
-            Map<Integer, PostHide> hiddenPostsFastLookupMap = getHiddenPosts(
-                    siteId,
-                    board,
-                    postNoList);
+    /**
+     * Looks up the hidden posts in the cached PostHide table then checks whether there are posts with a reply
+     * to already hidden posts and if there are hides them as well.
+     * This only waits for the database if the board was not preloaded yet.
+     */
+    public List<Post> filterHiddenPosts(List<Post> posts, int siteId, String board) {
+        @SuppressLint("UseSparseArrays")
+        Map<Integer, Post> postsFastLookupMap = new LinkedHashMap<>();
+        for (Post post : posts) {
+            postsFastLookupMap.put(post.no, post);
+        }
 
-            // find replies to hidden posts and add them to the PostHide table in the database
-            // and to the hiddenPostsFastLookupMap
-            hideRepliesToAlreadyHiddenPosts(postsFastLookupMap, hiddenPostsFastLookupMap);
+        applyFiltersToReplies(posts, postsFastLookupMap);
 
-            List<Post> resultList = new ArrayList<>();
+        Map<Integer, PostHide> hiddenPostsFastLookupMap = getHiddenPosts(
+                siteId,
+                board,
+                posts);
 
-            // filter out hidden posts
-            for (Post post : postsFastLookupMap.values()) {
-                if (post.filterRemove) {
-                    // this post is already filtered by some custom filter
-                    continue;
-                }
+        // find replies to hidden posts and queue them to be added to the PostHide table in the
+        // database, and add them to the hiddenPostsFastLookupMap
+        hideRepliesToAlreadyHiddenPosts(postsFastLookupMap, hiddenPostsFastLookupMap);
 
-                PostHide hiddenPost = findHiddenPost(hiddenPostsFastLookupMap, post, siteId, board);
-                if (hiddenPost != null) {
-                    if (hiddenPost.hide) {
-                        // hide post
-                        Post newPost = rebuildPostWithCustomFilter(
-                                post,
-                                0,
-                                true,
-                                false,
-                                false,
-                                hiddenPost.hideRepliesToThisPost);
-
-                        resultList.add(newPost);
-                    } else {
-                        // remove post
-                        if (post.isOP) {
-                            // hide OP post only if the user hid the whole thread
-                            if (!hiddenPost.wholeThread) {
-                                resultList.add(post);
-                            }
+        List<Post> resultList = new ArrayList<>();
+
+        // filter out hidden posts
+        for (Post post : postsFastLookupMap.values()) {
+            if (post.filterRemove) {
+                // this post is already filtered by some custom filter
+                continue;
+            }
+
+            PostHide hiddenPost = findHiddenPost(hiddenPostsFastLookupMap, post, siteId, board);
+            if (hiddenPost != null) {
+                if (hiddenPost.hide) {
+                    // hide post
+                    Post newPost = rebuildPostWithCustomFilter(
+                            post,
+                            0,
+                            true,
+                            false,
+                            false,
+                            hiddenPost.hideRepliesToThisPost);
+
+                    resultList.add(newPost);
+                } else {
+                    // remove post
+                    if (post.isOP) {
+                        // hide OP post only if the user hid the whole thread
+                        if (!hiddenPost.wholeThread) {
+                            resultList.add(post);
                         }
                     }
-                } else {
-                    // no record of hidden post in the DB
-                    resultList.add(post);
                 }
+            } else {
+                // no record of hidden post in the DB
+                resultList.add(post);
             }
-            //return posts that are NOT hidden
-            return resultList;
-        });
+        }
+        //return posts that are NOT hidden
+        return resultList;
     }
 
     private void hideRepliesToAlreadyHiddenPosts(
             Map<Integer, Post> postsFastLookupMap,
             Map<Integer, PostHide> hiddenPostsFastLookupMap
-    ) throws SQLException {
+    ) {
 
         List<PostHide> newHiddenPosts = new ArrayList<>();
 
@@ -153,9 +180,8 @@ public class DatabaseHideManager {
             return;
         }
 
-        for (PostHide postHide : newHiddenPosts) {
-            helper.postHideDao.createIfNotExists(postHide);
-        }
+        // this runs as a read task, the writes go through the write queue
+        Chan.injector().provider(DatabaseManager.class).get().runTaskAsync(addPostsHide(newHiddenPosts));
     }
 
     private void applyFiltersToReplies(List<Post> posts, Map<Integer, Post> postsFastLookupMap) {
@@ -180,26 +206,90 @@ public class DatabaseHideManager {
     private Map<Integer, PostHide> getHiddenPosts(
             int siteId,
             String board,
-            List<Integer> postNoList) throws SQLException {
+            List<Post> posts) {
+        String key = boardKey(siteId, board);
 
-        Set<PostHide> hiddenInDatabase = new HashSet<>(helper.postHideDao.queryBuilder().where()
-                .in("no", postNoList)
-                .and()
-                .eq("site", siteId)
-                .and()
-                .eq("board", board)
-                .query());
+        IntObjectMap<PostHide> hidden;
+        synchronized (hiddenByBoard) {
+            hidden = hiddenByBoard.get(key);
+        }
+
+        if (hidden == null) {
+            // Not preloaded or still loading. Loaded in between the writes so that none of them can be missed
+            hidden = Chan.injector().provider(DatabaseManager.class).get().runTask(loadBoard(siteId, board));
+        }
 
         @SuppressLint("UseSparseArrays")
         Map<Integer, PostHide> hiddenMap = new HashMap<>();
 
-        for (PostHide postHide : hiddenInDatabase) {
-            hiddenMap.put(postHide.no, postHide);
+        synchronized (hiddenByBoard) {
+            for (Post post : posts) {
+                PostHide postHide = hidden.get(post.no);
+                if (postHide != null) {
+                    hiddenMap.put(post.no, postHide);
+                }
+            }
         }
 
         return hiddenMap;
     }
 
+    private Callable<IntObjectMap<PostHide>> loadBoard(int siteId, String board) {
+        return () -> {
+            String key = boardKey(siteId, board);
+            synchronized (hiddenByBoard) {
+                IntObjectMap<PostHide> hidden = hiddenByBoard.get(key);
+                if (hidden != null) {
+                    return hidden;
+                }
+            }
+
+            List<PostHide> hiddenInDatabase = helper.postHideDao.queryBuilder().where()
+                    .eq("site", siteId)
+                    .and()
+                    .eq("board", board)
+                    .query();
+
+            IntObjectMap<PostHide> hidden = new IntObjectMap<>(hiddenInDatabase.size());
+            for (PostHide postHide : hiddenInDatabase) {
+                hidden.put(postHide.no, postHide);
+            }
+
+            Chan.injector().provider(DatabaseManager.class).get().runAfterCommit(() -> {
+                synchronized (hiddenByBoard) {
+                    hiddenByBoard.put(key, hidden);
+                }
+            });
+            return hidden;
+        };
+    }
+
+    private void cacheHide(PostHide postHide) {
+        Chan.injector().provider(DatabaseManager.class).get().runAfterCommit(() -> {
+            synchronized (hiddenByBoard) {
+                IntObjectMap<PostHide> hidden = hiddenByBoard.get(boardKey(postHide.site, postHide.board));
+                if (hidden != null) {
+                    hidden.put(postHide.no, postHide);
+                }
+            }
+        });
+    }
+
+    private void cacheUnhide(PostHide postHide) {
+        Chan.injector().provider(DatabaseManager.class).get().runAfterCommit(() -> {
+            synchronized (hiddenByBoard) {
+                IntObjectMap<PostHide> hidden = hiddenByBoard.get(boardKey(postHide.site, postHide.board));
+                if (hidden != null) {
+                    hidden.remove(postHide.no);
+                }
+            }
+        });
+    }
+
+    private static String boardKey(int siteId, String board) {
+        return siteId + "/" + board;
+    }
+
     /**
      * Takes filter parameters from the post and assigns them to all posts in the current reply chain.
      * If some post already has another filter's parameters - does not overwrite them.
@@ -320,6 +410,7 @@ public class DatabaseHideManager {
             }
 
             helper.postHideDao.createIfNotExists(hide);
+            cacheHide(hide);
 
             return null;
         };
@@ -333,6 +424,7 @@ public class DatabaseHideManager {
                 }
 
                 helper.postHideDao.createIfNotExists(postHide);
+                cacheHide(postHide);
             }
 
             return null;
@@ -356,6 +448,7 @@ public class DatabaseHideManager {
                         .eq("board", postHide.board);
 
                 deleteBuilder.delete();
+                cacheUnhide(postHide);
             }
 
             return null;
@@ -378,6 +471,7 @@ public class DatabaseHideManager {
     public Callable<Void> clearAllThreadHides() {
         return () -> {
             TableUtils.clearTable(helper.getConnectionSource(), PostHide.class);
+            invalidateCache();
 
             return null;
         };
@@ -397,6 +491,15 @@ public class DatabaseHideManager {
             builder.where().eq("site", site.id());
             builder.delete();
 
+            synchronized (hiddenByBoard) {
+                String prefix = site.id() + "/";
+                for (Iterator<String> iterator = hiddenByBoard.keySet().iterator(); iterator.hasNext(); ) {
+                    if (iterator.next().startsWith(prefix)) {
+                        iterator.remove();
+                    }
+                }
+            }
+
             return null;
         };
     }
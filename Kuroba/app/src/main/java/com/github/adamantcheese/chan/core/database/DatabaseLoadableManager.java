@@ -28,12 +28,12 @@ import com.j256.ormlite.stmt.QueryBuilder;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 
@@ -45,7 +45,8 @@ public class DatabaseLoadableManager {
     @Inject
     DatabaseHelper helper;
 
-    private Map<Loadable, Loadable> cachedLoadables = new HashMap<>();
+    // Accessed from the reader threads too
+    private final ConcurrentMap<Loadable, Loadable> cachedLoadables = new ConcurrentHashMap<>();
 
     public DatabaseLoadableManager() {
         inject(this);
@@ -56,7 +57,7 @@ public class DatabaseLoadableManager {
      * whose list indexes or titles have changed.
      */
     public Callable<Void> flush() {
-        return () -> {
+        return DatabaseManager.coalescing("flushLoadables", null, () -> {
             List<Loadable> toFlush = new ArrayList<>();
             for (Loadable loadable : cachedLoadables.values()) {
                 if (loadable.dirty) {
@@ -74,7 +75,7 @@ public class DatabaseLoadableManager {
             }
 
             return null;
-        };
+        });
     }
 
     /**
@@ -93,7 +94,18 @@ public class DatabaseLoadableManager {
 
         // We only cache THREAD loadables in the db
         if (loadable.isThreadMode()) {
-            return Chan.injector().provider(DatabaseManager.class).get().runTask(getLoadable(loadable));
+            Loadable cachedLoadable = cachedLoadables.get(loadable);
+            if (cachedLoadable != null) {
+                return cachedLoadable;
+            }
+
+            // Look it up without waiting for the writer, only creating it has to go through there
+            DatabaseManager databaseManager = Chan.injector().provider(DatabaseManager.class).get();
+            Loadable result = databaseManager.runReadTask(findLoadable(loadable));
+            if (result == null) {
+                result = databaseManager.runTask(getLoadable(loadable));
+            }
+            return result;
         } else {
             return loadable;
         }
@@ -123,8 +135,45 @@ public class DatabaseLoadableManager {
         helper.loadableDao.refresh(loadable);
         loadable.site = Chan.injector().instance(SiteRepository.class).forId(loadable.siteId);
         loadable.board = loadable.site.board(loadable.boardCode);
-        cachedLoadables.put(loadable, loadable);
-        return loadable;
+        Loadable existing = cachedLoadables.putIfAbsent(loadable, loadable);
+        return existing != null ? existing : loadable;
+    }
+
+    /**
+     * Read-only lookup of a thread loadable, for {@link DatabaseManager#runReadTask(Callable)}.
+     * Returns null if it isn't in the database yet.
+     */
+    private Callable<Loadable> findLoadable(final Loadable loadable) {
+        return () -> {
+            Loadable result = queryLoadable(loadable);
+            if (result == null) {
+                return null;
+            }
+
+            result.site = Chan.injector().instance(SiteRepository.class).forId(result.siteId);
+            result.board = result.site.board(result.boardCode);
+            Loadable existing = cachedLoadables.putIfAbsent(result, result);
+            return existing != null ? existing : result;
+        };
+    }
+
+    private Loadable queryLoadable(Loadable loadable) throws SQLException {
+        QueryBuilder<Loadable, Integer> builder = helper.loadableDao.queryBuilder();
+        List<Loadable> results = builder.where()
+                .eq("site", loadable.siteId).and()
+                .eq("mode", loadable.mode)
+                .and().eq("board", loadable.boardCode)
+                .and().eq("no", loadable.no)
+                .query();
+
+        if (results.size() > 1) {
+            Log.w(TAG, "Multiple loadables found for where Loadable.equals() would return true");
+            for (Loadable result : results) {
+                Log.w(TAG, result.toString());
+            }
+        }
+
+        return results.isEmpty() ? null : results.get(0);
     }
 
     private Callable<Loadable> getLoadable(final Loadable loadable) {
@@ -138,22 +187,7 @@ public class DatabaseLoadableManager {
                 Logger.v(TAG, "Cached loadable found");
                 return cachedLoadable;
             } else {
-                QueryBuilder<Loadable, Integer> builder = helper.loadableDao.queryBuilder();
-                List<Loadable> results = builder.where()
-                        .eq("site", loadable.siteId).and()
-                        .eq("mode", loadable.mode)
-                        .and().eq("board", loadable.boardCode)
-                        .and().eq("no", loadable.no)
-                        .query();
-
-                if (results.size() > 1) {
-                    Log.w(TAG, "Multiple loadables found for where Loadable.equals() would return true");
-                    for (Loadable result : results) {
-                        Log.w(TAG, result.toString());
-                    }
-                }
-
-                Loadable result = results.isEmpty() ? null : results.get(0);
+                Loadable result = queryLoadable(loadable);
                 if (result == null) {
                     Log.d(TAG, "Creating loadable");
                     helper.loadableDao.create(loadable);
@@ -164,8 +198,9 @@ public class DatabaseLoadableManager {
                     result.board = result.site.board(result.boardCode);
                 }
 
-                cachedLoadables.put(result, result);
-                return result;
+                // A reader may have cached it in the meantime
+                Loadable existing = cachedLoadables.putIfAbsent(result, result);
+                return existing != null ? existing : result;
             }
         };
     }
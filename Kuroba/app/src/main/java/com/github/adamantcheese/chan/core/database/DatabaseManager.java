@@ -23,14 +23,22 @@ import androidx.annotation.NonNull;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.misc.TransactionManager;
 
+import com.github.adamantcheese.chan.BuildConfig;
 import com.github.adamantcheese.chan.Chan;
+import com.github.adamantcheese.chan.utils.LatencyStats;
 import com.github.adamantcheese.chan.utils.Logger;
 
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -48,13 +56,45 @@ import static com.github.adamantcheese.chan.Chan.inject;
  * {@link Callable} that needs to be queued on either {@link #runTaskAsync(Callable)},
  * {@link #runTaskAsync(Callable, TaskResult)} or {@link #runTask(Callable)}.<br>
  * You often want the sync flavour for queries that return data, it waits for the task to be finished on the other thread.<br>
- * Use the async versions when you don't care when the query is done.
+ * Use the async versions when you don't care when the query is done.<br>
+ * Async tasks are queued and run in batches, all tasks that are waiting when a batch starts share one transaction.
+ * When a task fails the transaction is rolled back and the batch runs again without it.
+ * Sync tasks wait in the same queue, all tasks run in the order they were queued.
+ * Tasks started from within a task run as part of its transaction.
+ * Writes wrapped with {@link #coalescing(String, Object, Callable)} replace an equal write that is still queued.<br>
+ * Read-only queries can instead go through {@link #runReadTask(Callable)} or {@link #runReadTaskAsync(Callable, TaskResult)},
+ * they run on a small pool of reader threads and don't wait behind writes.
  */
 public class DatabaseManager {
     private static final String TAG = "DatabaseManager";
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final int READER_THREADS = 3;
 
     private final ExecutorService backgroundExecutor;
     private Thread executorThread;
+    private final ThreadPoolExecutor readExecutor;
+    private final ThreadLocal<Boolean> inReadTask = new ThreadLocal<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Async tasks waiting for the next batch, and the coalescing ones among them by key
+    private final Object queueLock = new Object();
+    private final ArrayDeque<QueuedTask<?>> queue = new ArrayDeque<>();
+    private final Map<WriteKey, QueuedTask<?>> queuedByKey = new HashMap<>();
+    private boolean drainScheduled = false;
+
+    // Metrics for the developer screen, guarded by queueLock
+    private int maxQueueDepth = 0;
+    private long batchCount = 0;
+    private long coalescedCount = 0;
+    private final LatencyStats asyncLatency = new LatencyStats();
+    private final LatencyStats syncLatency = new LatencyStats();
+    private final LatencyStats readLatency = new LatencyStats();
+    private long mainThreadSyncCount = 0;
+
+    // Results of tasks started from within a task and the actions of runAfterCommit, for when the
+    // transaction commits. Executor thread only.
+    private final List<Runnable> nestedResults = new ArrayList<>();
+    private final List<Runnable> commitActions = new ArrayList<>();
 
     @Inject
     DatabaseHelper helper;
@@ -77,6 +117,14 @@ public class DatabaseManager {
                 1000L, TimeUnit.DAYS,
                 new LinkedBlockingQueue<>());
 
+        // WAL is enabled in DatabaseHelper, so every reader thread gets its own connection from
+        // the pool and a consistent snapshot without a transaction
+        readExecutor = new ThreadPoolExecutor(
+                READER_THREADS, READER_THREADS,
+                30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        readExecutor.allowCoreThreadTimeOut(true);
+
         databaseLoadableManager = new DatabaseLoadableManager();
         databasePinManager = new DatabasePinManager(databaseLoadableManager);
         databaseHistoryManager = new DatabaseHistoryManager(databaseLoadableManager);
@@ -166,6 +214,13 @@ public class DatabaseManager {
             e.printStackTrace();
         }
 
+        synchronized (queueLock) {
+            o += "\nQueued tasks: " + queue.size() + " (max " + maxQueueDepth + ")\n";
+            o += "Async tasks: " + asyncLatency + ", in " + batchCount + " batches, " + coalescedCount + " coalesced\n";
+            o += "Sync tasks: " + syncLatency + ", " + mainThreadSyncCount + " from the main thread\n";
+            o += "Read tasks: " + readLatency + "\n";
+        }
+
         return o;
     }
 
@@ -193,22 +248,264 @@ public class DatabaseManager {
         });
     }
 
+    @SuppressWarnings("unchecked")
     public <T> void runTaskAsync(final Callable<T> taskCallable, final TaskResult<T> taskResult) {
-        executeTask(taskCallable, taskResult);
+        if (Thread.currentThread() == executorThread) {
+            // Already in a task, run it as part of it
+            executeTask(taskCallable, taskResult);
+            return;
+        }
+
+        WriteKey key = taskCallable instanceof CoalescingCallable ? ((CoalescingCallable<T>) taskCallable).key : null;
+
+        synchronized (queueLock) {
+            if (key != null) {
+                QueuedTask<T> queued = (QueuedTask<T>) queuedByKey.get(key);
+                if (queued != null) {
+                    queued.coalesce(taskCallable, taskResult);
+                    coalescedCount++;
+                    return;
+                }
+            }
+
+            QueuedTask<T> task = new QueuedTask<>(key, taskCallable, taskResult);
+            queue.add(task);
+            if (key != null) {
+                queuedByKey.put(key, task);
+            }
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            scheduleDrain();
+        }
     }
 
     public <T> T runTask(final Callable<T> taskCallable) {
+        boolean mainThread = Looper.myLooper() == Looper.getMainLooper();
+        if (mainThread && BuildConfig.DEBUG) {
+            Logger.w(TAG, "runTask() called on the main thread from " + new Throwable().getStackTrace()[1]);
+        }
+
+        long start = System.nanoTime();
         try {
             return executeTask(taskCallable, null).get();
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
+        } finally {
+            synchronized (queueLock) {
+                syncLatency.add(System.nanoTime() - start);
+                if (mainThread) {
+                    mainThreadSyncCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run an action once the transaction of the task that is running commits, for state kept in
+     * memory that has to match the database. It is not run when the transaction is rolled back.
+     * Can only be called from within a task.
+     */
+    public void runAfterCommit(Runnable action) {
+        if (Thread.currentThread() != executorThread) {
+            throw new IllegalStateException("runAfterCommit() called outside of a task");
+        }
+        commitActions.add(action);
+    }
+
+    /**
+     * Run a read-only task on one of the reader threads and wait for the result. Unlike
+     * {@link #runTask(Callable)} this doesn't wait for queued writes or run in a transaction, the task
+     * sees the data of the last committed write. It must not write to the database itself.
+     */
+    public <T> T runReadTask(final Callable<T> taskCallable) {
+        // A write task reads its own uncommitted changes, and readers shouldn't wait on each other
+        if (Thread.currentThread() == executorThread || inReadTask.get() != null) {
+            try {
+                return taskCallable.call();
+            } catch (Exception e) {
+                Logger.e(TAG, "runReadTask", e);
+                throw new RuntimeException(e);
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            return readExecutor.submit(new ReadCallable<>(taskCallable, null)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            synchronized (queueLock) {
+                readLatency.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Async version of {@link #runReadTask(Callable)}, the result is delivered on the main thread.
+     */
+    public <T> void runReadTaskAsync(final Callable<T> taskCallable, final TaskResult<T> taskResult) {
+        readExecutor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                new ReadCallable<>(taskCallable, taskResult).call();
+            } catch (Exception ignored) {
+                // Already logged
+            } finally {
+                synchronized (queueLock) {
+                    readLatency.add(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Mark a write task as one that always writes the current state of a row, so that it supersedes
+     * any earlier write for the same operation and row that is still queued with {@link #runTaskAsync}.
+     * The earlier write is then not run at all; its result callback gets the result of the later one.
+     *
+     * @param operation name of the write, tasks for different operations are never coalesced.
+     * @param row       identifies what's written, compared with equals. May be null when the
+     *                  operation always writes the same rows.
+     */
+    public static <T> Callable<T> coalescing(String operation, Object row, Callable<T> taskCallable) {
+        return new CoalescingCallable<>(new WriteKey(operation, row), taskCallable);
+    }
+
+    // Called with queueLock held
+    private void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            backgroundExecutor.execute(this::drainQueue);
+        }
+    }
+
+    /**
+     * Run the queued tasks until the queue is empty. Async tasks run in batches, a sync task ends
+     * the batch before it and runs in its own transaction.
+     */
+    private void drainQueue() {
+        executorThread = Thread.currentThread();
+
+        while (true) {
+            List<QueuedTask<?>> batch = new ArrayList<>();
+            QueuedTask<?> syncTask = null;
+            synchronized (queueLock) {
+                while (batch.size() < MAX_BATCH_SIZE && !queue.isEmpty()) {
+                    QueuedTask<?> task = queue.peek();
+                    if (task.syncTask != null) {
+                        if (batch.isEmpty()) {
+                            syncTask = queue.poll();
+                        }
+                        break;
+                    }
+
+                    queue.poll();
+                    if (task.key != null) {
+                        queuedByKey.remove(task.key);
+                    }
+                    batch.add(task);
+                }
+
+                if (batch.isEmpty() && syncTask == null) {
+                    drainScheduled = false;
+                    return;
+                }
+            }
+
+            if (syncTask != null) {
+                syncTask.syncTask.run();
+            } else {
+                runBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Run async tasks in a single transaction. A failing task is logged, the transaction is rolled
+     * back and the other tasks are run again without it.
+     */
+    private void runBatch(List<QueuedTask<?>> batch) {
+        List<QueuedTask<?>> tasks = new ArrayList<>(batch);
+        boolean committed = false;
+        while (!committed && !tasks.isEmpty()) {
+            clearCommitState();
+            try {
+                TransactionManager.callInTransaction(helper.getConnectionSource(), () -> {
+                    for (QueuedTask<?> task : tasks) {
+                        task.run();
+                    }
+                    return null;
+                });
+                committed = true;
+            } catch (Exception e) {
+                if (!removeFailed(tasks)) {
+                    // Not a task, the commit itself failed
+                    Logger.e(TAG, "drainQueue", e);
+                    break;
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        synchronized (queueLock) {
+            batchCount++;
+            for (QueuedTask<?> task : batch) {
+                asyncLatency.add(now - task.queuedAt);
+            }
+        }
+
+        if (committed) {
+            onCommitted();
+            for (QueuedTask<?> task : tasks) {
+                task.deliver();
+            }
+        }
+    }
+
+    private boolean removeFailed(List<QueuedTask<?>> tasks) {
+        for (int i = 0; i < tasks.size(); i++) {
+            if (tasks.get(i).failed) {
+                tasks.remove(i);
+                return true;
+            }
         }
+        return false;
+    }
+
+    private void clearCommitState() {
+        nestedResults.clear();
+        commitActions.clear();
+    }
+
+    private void onCommitted() {
+        for (Runnable action : commitActions) {
+            try {
+                action.run();
+            } catch (Exception e) {
+                Logger.e(TAG, "runAfterCommit", e);
+            }
+        }
+
+        for (Runnable result : nestedResults) {
+            mainHandler.post(result);
+        }
+
+        clearCommitState();
     }
 
     private <T> Future<T> executeTask(final Callable<T> taskCallable, final TaskResult<T> taskResult) {
         if (Thread.currentThread() == executorThread) {
-            DatabaseCallable<T> databaseCallable = new DatabaseCallable<>(taskCallable, taskResult);
-            T result = databaseCallable.call();
+            // Already in a task, run it as part of its transaction. If it throws the task it was
+            // started from fails, unless that one handles it.
+            T result;
+            try {
+                result = taskCallable.call();
+            } catch (Exception e) {
+                Logger.e(TAG, "executeTask", e);
+                throw new RuntimeException(e);
+            }
+            if (taskResult != null) {
+                nestedResults.add(() -> taskResult.onComplete(result));
+            }
 
             return new Future<T>() {
                 @Override
@@ -237,7 +534,12 @@ public class DatabaseManager {
                 }
             };
         } else {
-            return backgroundExecutor.submit(new DatabaseCallable<>(taskCallable, taskResult));
+            FutureTask<T> future = new FutureTask<>(new DatabaseCallable<>(taskCallable, taskResult));
+            synchronized (queueLock) {
+                queue.add(new QueuedTask<>(future));
+                scheduleDrain();
+            }
+            return future;
         }
     }
 
@@ -252,12 +554,12 @@ public class DatabaseManager {
 
         @Override
         public T call() {
-            executorThread = Thread.currentThread();
-
+            clearCommitState();
             try {
                 final T result = TransactionManager.callInTransaction(helper.getConnectionSource(), taskCallable);
+                onCommitted();
                 if (taskResult != null) {
-                    new Handler(Looper.getMainLooper()).post(() -> taskResult.onComplete(result));
+                    mainHandler.post(() -> taskResult.onComplete(result));
                 }
                 return result;
             } catch (Exception e) {
@@ -267,6 +569,125 @@ public class DatabaseManager {
         }
     }
 
+    private class ReadCallable<T> implements Callable<T> {
+        private final Callable<T> taskCallable;
+        private final TaskResult<T> taskResult;
+
+        private ReadCallable(Callable<T> taskCallable, TaskResult<T> taskResult) {
+            this.taskCallable = taskCallable;
+            this.taskResult = taskResult;
+        }
+
+        @Override
+        public T call() {
+            inReadTask.set(Boolean.TRUE);
+            try {
+                final T result = taskCallable.call();
+                if (taskResult != null) {
+                    mainHandler.post(() -> taskResult.onComplete(result));
+                }
+                return result;
+            } catch (Exception e) {
+                Logger.e(TAG, "runReadTask", e);
+                throw new RuntimeException(e);
+            } finally {
+                inReadTask.remove();
+            }
+        }
+    }
+
+    private class QueuedTask<T> {
+        private final WriteKey key;
+        private final long queuedAt = System.nanoTime();
+        private Callable<T> taskCallable;
+        private final List<TaskResult<T>> taskResults = new ArrayList<>(1);
+        // Set for a runTask waiting its turn, it runs on its own instead of in a batch
+        private final FutureTask<T> syncTask;
+
+        // Set when the task threw during the last run, it's left out of the next one
+        private boolean failed;
+        private T result;
+
+        private QueuedTask(WriteKey key, Callable<T> taskCallable, TaskResult<T> taskResult) {
+            this.key = key;
+            this.taskCallable = taskCallable;
+            if (taskResult != null) {
+                taskResults.add(taskResult);
+            }
+            syncTask = null;
+        }
+
+        private QueuedTask(FutureTask<T> syncTask) {
+            key = null;
+            this.syncTask = syncTask;
+        }
+
+        private void coalesce(Callable<T> taskCallable, TaskResult<T> taskResult) {
+            this.taskCallable = taskCallable;
+            if (taskResult != null) {
+                taskResults.add(taskResult);
+            }
+        }
+
+        private void run() throws Exception {
+            try {
+                result = taskCallable.call();
+            } catch (Exception e) {
+                Logger.e(TAG, "executeTask", e);
+                failed = true;
+                throw e;
+            }
+        }
+
+        private void deliver() {
+            if (!taskResults.isEmpty()) {
+                mainHandler.post(() -> {
+                    for (TaskResult<T> taskResult : taskResults) {
+                        taskResult.onComplete(result);
+                    }
+                });
+            }
+        }
+    }
+
+    private static class CoalescingCallable<T> implements Callable<T> {
+        private final WriteKey key;
+        private final Callable<T> taskCallable;
+
+        private CoalescingCallable(WriteKey key, Callable<T> taskCallable) {
+            this.key = key;
+            this.taskCallable = taskCallable;
+        }
+
+        @Override
+        public T call() throws Exception {
+            return taskCallable.call();
+        }
+    }
+
+    private static class WriteKey {
+        private final String operation;
+        private final Object row;
+
+        private WriteKey(String operation, Object row) {
+            this.operation = operation;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WriteKey)) return false;
+            WriteKey other = (WriteKey) o;
+            return operation.equals(other.operation) && (row == null ? other.row == null : row.equals(other.row));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * operation.hashCode() + (row == null ? 0 : row.hashCode());
+        }
+    }
+
     public interface TaskResult<T> {
         void onComplete(T result);
     }
@@ -71,21 +71,26 @@ public class DatabasePinManager {
     }
 
     public Callable<Pin> updatePin(final Pin pin) {
-        return () -> {
+        return DatabaseManager.coalescing("updatePin", pin.id, () -> {
             helper.pinDao.update(pin);
             return pin;
-        };
+        });
     }
 
     public Callable<List<Pin>> updatePins(final List<Pin> pins) {
-        return () -> {
+        Set<Integer> pinIds = new HashSet<>();
+        for (int i = 0; i < pins.size(); i++) {
+            pinIds.add(pins.get(i).id);
+        }
+
+        return DatabaseManager.coalescing("updatePins", pinIds, () -> {
             for (int i = 0; i < pins.size(); i++) {
                 Pin pin = pins.get(i);
                 helper.pinDao.update(pin);
             }
 
             return null;
-        };
+        });
     }
 
     public Callable<List<Pin>> getPins() {
@@ -58,10 +58,10 @@ public class DatabaseSiteManager {
     }
 
     public Callable<SiteModel> update(final SiteModel site) {
-        return () -> {
+        return DatabaseManager.coalescing("updateSite", site.id, () -> {
             helper.siteDao.update(site);
             return site;
-        };
+        });
     }
 
     public Callable<SiteModel> updateId(final SiteModel site, final int newId) {
@@ -85,7 +85,7 @@ public class DatabaseSiteManager {
     }
 
     public Callable<Void> updateOrdering(final List<Integer> siteIdsWithCorrectOrder) {
-        return () -> {
+        return DatabaseManager.coalescing("updateSiteOrdering", null, () -> {
             for (int i = 0; i < siteIdsWithCorrectOrder.size(); i++) {
                 Integer id = siteIdsWithCorrectOrder.get(i);
                 SiteModel m = helper.siteDao.queryForId(id);
@@ -93,7 +93,7 @@ public class DatabaseSiteManager {
                 helper.siteDao.update(m);
             }
             return null;
-        };
+        });
     }
 
     public Callable<Void> deleteSite(Site site) {
@@ -21,7 +21,9 @@ import android.content.Context;
 
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.ImageLoader;
+import com.github.adamantcheese.chan.core.cache.ThumbnailDiskCache;
 import com.github.adamantcheese.chan.core.net.BitmapLruImageCache;
+import com.github.adamantcheese.chan.core.net.ThumbnailLoader;
 import com.github.adamantcheese.chan.core.saver.ImageSaver;
 import com.github.adamantcheese.chan.ui.theme.ThemeHelper;
 
@@ -46,10 +48,16 @@ public class AppModule {
 
     @Provides
     @Singleton
-    public ImageLoader provideImageLoader(RequestQueue requestQueue) {
+    public ThumbnailLoader provideThumbnailLoader(RequestQueue requestQueue, ThumbnailDiskCache diskCache) {
         final int runtimeMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
         final int lruImageCacheSize = runtimeMemory / 8;
-        return new ImageLoader(requestQueue, new BitmapLruImageCache(lruImageCacheSize));
+        return new ThumbnailLoader(requestQueue, new BitmapLruImageCache(lruImageCacheSize), diskCache);
+    }
+
+    @Provides
+    @Singleton
+    public ImageLoader provideImageLoader(ThumbnailLoader thumbnailLoader) {
+        return thumbnailLoader;
     }
 
     @Provides
@@ -32,6 +32,7 @@ import com.github.adamantcheese.chan.core.pool.ChanLoaderFactory;
 import com.github.adamantcheese.chan.core.repository.BoardRepository;
 import com.github.adamantcheese.chan.core.settings.json.JsonSettings;
 import com.github.adamantcheese.chan.core.site.Site;
+import com.github.adamantcheese.chan.core.site.parser.PostParseScheduler;
 import com.github.adamantcheese.chan.core.site.sites.chan4.Chan4;
 
 import org.codejargon.feather.Provides;
@@ -66,6 +67,12 @@ public class ManagerModule {
         return new ChanLoaderFactory();
     }
 
+    @Provides
+    @Singleton
+    public PostParseScheduler providePostParseScheduler() {
+        return new PostParseScheduler();
+    }
+
     @Provides
     @Singleton
     public WatchManager provideWatchManager(
@@ -20,35 +20,88 @@ import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
 import com.github.adamantcheese.chan.BuildConfig;
 import com.github.adamantcheese.chan.core.cache.FileCache;
-import com.github.adamantcheese.chan.core.net.ProxiedHurlStack;
+import com.github.adamantcheese.chan.core.cache.ThreadSnapshotStore;
+import com.github.adamantcheese.chan.core.cache.ThumbnailDiskCache;
+import com.github.adamantcheese.chan.core.database.DatabaseManager;
+import com.github.adamantcheese.chan.core.manager.FilterEngine;
+import com.github.adamantcheese.chan.core.net.CachingDns;
+import com.github.adamantcheese.chan.core.net.OkHttpStack;
+import com.github.adamantcheese.chan.core.net.SettingsProxySelector;
+import com.github.adamantcheese.chan.core.settings.ChanSettings;
 import com.github.adamantcheese.chan.core.site.http.HttpCallManager;
 
 import org.codejargon.feather.Provides;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Singleton;
 
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
 import static com.github.adamantcheese.chan.utils.AndroidUtils.getAppContext;
 
 public class NetModule {
     private static final int VOLLEY_CACHE_SIZE = 10 * 1024 * 1024;
+    private static final int THUMBNAIL_CACHE_SIZE = 50 * 1024 * 1024;
     public static final String USER_AGENT = "Kuroba/" + BuildConfig.VERSION_NAME;
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * The one client all networking goes through, Volley included. The captcha layouts and
+     * VichanAntispam use it as is. Everything that needs other settings, like the file cache and
+     * HttpCallManager, derives a client from this one with {@link OkHttpClient#newBuilder()}, which
+     * keeps the connection pool and DNS cache shared.
+     */
+    @Provides
+    @Singleton
+    public OkHttpClient provideOkHttpClient() {
+        ConnectionPool connectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, 5, TimeUnit.MINUTES);
+
+        // Pooled connections were made with the old proxy setting
+        ChanSettings.proxyEnabled.addCallback((setting, value) -> connectionPool.evictAll());
+        ChanSettings.proxyAddress.addCallback((setting, value) -> connectionPool.evictAll());
+        ChanSettings.proxyPort.addCallback((setting, value) -> connectionPool.evictAll());
+
+        return new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                .dns(new CachingDns(Dns.SYSTEM))
+                .proxySelector(new SettingsProxySelector())
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .build();
+    }
 
     @Provides
     @Singleton
-    public RequestQueue provideRequestQueue() {
+    public RequestQueue provideRequestQueue(OkHttpClient okHttpClient) {
         File cacheDir = getCacheDir();
         return Volley.newRequestQueue(getAppContext(),
                 USER_AGENT,
-                new ProxiedHurlStack(USER_AGENT),
+                new OkHttpStack(okHttpClient, USER_AGENT),
                 new File(cacheDir, Volley.DEFAULT_CACHE_DIR), VOLLEY_CACHE_SIZE);
     }
 
     @Provides
     @Singleton
-    public FileCache provideFileCache() {
-        return new FileCache(new File(getCacheDir(), "filecache"));
+    public FileCache provideFileCache(OkHttpClient okHttpClient) {
+        return new FileCache(new File(getCacheDir(), "filecache"), okHttpClient);
+    }
+
+    @Provides
+    @Singleton
+    public ThumbnailDiskCache provideThumbnailDiskCache() {
+        return new ThumbnailDiskCache(new File(getCacheDir(), "thumbnails"), THUMBNAIL_CACHE_SIZE);
+    }
+
+    @Provides
+    @Singleton
+    public ThreadSnapshotStore provideThreadSnapshotStore(FilterEngine filterEngine, DatabaseManager databaseManager) {
+        return new ThreadSnapshotStore(new File(getCacheDir(), "threads"), filterEngine,
+                databaseManager.getDatabaseSavedReplyManager());
     }
 
     private File getCacheDir() {
@@ -62,7 +115,7 @@ public class NetModule {
 
     @Provides
     @Singleton
-    public HttpCallManager provideHttpCallManager() {
-        return new HttpCallManager();
+    public HttpCallManager provideHttpCallManager(OkHttpClient okHttpClient) {
+        return new HttpCallManager(okHttpClient);
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.manager;
+
+import com.github.adamantcheese.chan.core.manager.WatchManager.PinWatcher;
+import com.github.adamantcheese.chan.core.model.orm.Board;
+import com.github.adamantcheese.chan.core.model.orm.Loadable;
+import com.github.adamantcheese.chan.core.site.Site;
+import com.github.adamantcheese.chan.core.site.SiteActions;
+import com.github.adamantcheese.chan.core.site.sites.chan4.Chan4PagesRequest;
+import com.github.adamantcheese.chan.utils.IntObjectMap;
+import com.github.adamantcheese.chan.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which pin watchers need to load their thread in an update cycle.
+ * <p>
+ * Instead of every watched thread being downloaded on its own timer, the threads index of each
+ * board with watched pins is requested once per cycle. The index lists every live thread with its
+ * last modified time; only threads that were modified since the watcher last loaded them are
+ * reloaded. A thread that is no longer in the index has 404'd or been archived, it gets one
+ * immediate load to let the thread loader confirm which of the two it is.
+ * <p>
+ * Sites without {@link Site.Feature#THREAD_INDEX}, and boards whose index failed to load, fall back
+ * to updating every watcher with its own timer.
+ */
+public class BoardIndexScheduler implements SiteActions.PagesListener {
+    private static final String TAG = "BoardIndexScheduler";
+
+    private final PageRequestManager pageRequestManager;
+    private final Callback callback;
+
+    // Boards with an index request in flight, keyed by site id and board code
+    private final Map<String, BoardCycle> requestingBoards = new HashMap<>();
+
+    public BoardIndexScheduler(PageRequestManager pageRequestManager, Callback callback) {
+        this.pageRequestManager = pageRequestManager;
+        this.callback = callback;
+    }
+
+    /**
+     * Start an update cycle for the given watchers. Watchers of boards without an index are
+     * updated immediately, the others once their board's index has been received.
+     */
+    public void update(List<PinWatcher> pinWatchers, boolean fromBackground) {
+        Map<String, BoardCycle> cycles = new HashMap<>();
+        for (PinWatcher pinWatcher : pinWatchers) {
+            Loadable loadable = pinWatcher.getPin().loadable;
+            if (loadable.board == null || !loadable.board.site.feature(Site.Feature.THREAD_INDEX)) {
+                callback.onPinWatcherUpdate(pinWatcher, fromBackground);
+                continue;
+            }
+
+            String key = boardKey(loadable.board);
+            BoardCycle cycle = requestingBoards.get(key);
+            if (cycle != null) {
+                // The index of the previous cycle is still on its way, ride along with it
+                cycle.add(pinWatcher, fromBackground);
+                continue;
+            }
+
+            cycle = cycles.get(key);
+            if (cycle == null) {
+                cycle = new BoardCycle(loadable.board);
+                cycles.put(key, cycle);
+            }
+            cycle.add(pinWatcher, fromBackground);
+        }
+
+        for (Map.Entry<String, BoardCycle> entry : cycles.entrySet()) {
+            BoardCycle cycle = entry.getValue();
+            requestingBoards.put(entry.getKey(), cycle);
+            Logger.d(TAG, "Requesting threads index for /" + cycle.board.code + "/ with " + cycle.pinWatchers.size() + " watched threads");
+            cycle.board.site.actions().pages(cycle.board, this);
+        }
+    }
+
+    /**
+     * @return {@code true} while there are board indexes that have been requested but not yet received.
+     */
+    public boolean isRequesting() {
+        return !requestingBoards.isEmpty();
+    }
+
+    @Override
+    public void onPagesReceived(Board b, Chan4PagesRequest.Pages pages) {
+        BoardCycle cycle = requestingBoards.remove(boardKey(b));
+        if (cycle == null) {
+            return;
+        }
+
+        // A board always has threads, an empty index means the request failed
+        if (pages.pages.isEmpty()) {
+            Logger.w(TAG, "No threads index for /" + b.code + "/, updating watchers separately");
+            for (PinWatcher pinWatcher : cycle.pinWatchers) {
+                callback.onPinWatcherUpdate(pinWatcher, cycle.fromBackground);
+            }
+        } else {
+            // Share the index with the last page notifications, it's the same request
+            pageRequestManager.onPagesReceived(b, pages);
+
+            IntObjectMap<Chan4PagesRequest.ThreadNoTimeModPair> index = new IntObjectMap<>();
+            for (Chan4PagesRequest.Page page : pages.pages) {
+                if (page.threads == null) continue;
+                for (Chan4PagesRequest.ThreadNoTimeModPair thread : page.threads) {
+                    index.put(thread.no, thread);
+                }
+            }
+
+            for (PinWatcher pinWatcher : cycle.pinWatchers) {
+                Chan4PagesRequest.ThreadNoTimeModPair thread = index.get(pinWatcher.getPin().loadable.no);
+                if (thread != null) {
+                    callback.onPinWatcherIndexed(pinWatcher, thread.modified);
+                } else {
+                    callback.onPinWatcherMissing(pinWatcher, cycle.fromBackground);
+                }
+            }
+        }
+
+        callback.onBoardIndexDone();
+    }
+
+    private static String boardKey(Board board) {
+        return board.site.id() + "/" + board.code;
+    }
+
+    private static class BoardCycle {
+        private final Board board;
+        private final List<PinWatcher> pinWatchers = new ArrayList<>();
+        private boolean fromBackground;
+
+        private BoardCycle(Board board) {
+            this.board = board;
+        }
+
+        private void add(PinWatcher pinWatcher, boolean fromBackground) {
+            if (!pinWatchers.contains(pinWatcher)) {
+                pinWatchers.add(pinWatcher);
+            }
+            this.fromBackground |= fromBackground;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * The watcher has to be updated without an index, on its own timer.
+         */
+        void onPinWatcherUpdate(PinWatcher pinWatcher, boolean fromBackground);
+
+        /**
+         * The watcher's thread is in the index and was last modified at {@code modified}.
+         */
+        void onPinWatcherIndexed(PinWatcher pinWatcher, long modified);
+
+        /**
+         * The watcher's thread is no longer in the index of its board.
+         */
+        void onPinWatcherMissing(PinWatcher pinWatcher, boolean fromBackground);
+
+        /**
+         * A requested board index was received and its watchers were dispatched.
+         */
+        void onBoardIndexDone();
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.manager;
+
+import android.text.TextUtils;
+
+import androidx.annotation.AnyThread;
+
+import com.github.adamantcheese.chan.core.model.Post;
+import com.github.adamantcheese.chan.core.model.PostImage;
+import com.github.adamantcheese.chan.core.model.orm.Filter;
+import com.github.adamantcheese.chan.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import okio.ByteString;
+
+/**
+ * The enabled filters of a board, compiled so that all of them are matched with a single pass over
+ * each field of a post.
+ * <p>Word and "exact sentence" filters are merged into one keyword automaton per {@link FilterType},
+ * filters using a /regex/ or wildcards are still matched with their own pattern.
+ * <p>Immutable, and thus safe to use on any thread. Obtain through {@link FilterEngine#getCompiledFilters}.
+ */
+public class CompiledFilters {
+    private static final String TAG = "CompiledFilters";
+
+    private static final FilterType[] FIELDS = FilterType.values();
+
+    private final Filter[] filters;
+    private final String signature;
+    // Indexed by the ordinal of the FilterType, null if no filter applies to that field
+    private final FieldMatcher[] fieldMatchers = new FieldMatcher[FIELDS.length];
+
+    CompiledFilters(FilterEngine filterEngine, List<Filter> filters) {
+        this.filters = filters.toArray(new Filter[0]);
+        signature = createSignature(this.filters);
+
+        FieldMatcher.Builder[] builders = new FieldMatcher.Builder[FIELDS.length];
+        for (int i = 0; i < this.filters.length; i++) {
+            Filter filter = this.filters[i];
+
+            List<String> words = new ArrayList<>();
+            boolean sentence = parseKeywords(filter.pattern, words);
+            Pattern pattern = null;
+            if (words.isEmpty()) {
+                pattern = filterEngine.compile(filter.pattern);
+                if (pattern == null) {
+                    Logger.e(TAG, "Invalid pattern");
+                    continue;
+                }
+            }
+
+            for (FilterType field : FIELDS) {
+                if ((filter.type & field.flag) == 0) {
+                    continue;
+                }
+
+                FieldMatcher.Builder builder = builders[field.ordinal()];
+                if (builder == null) {
+                    builder = new FieldMatcher.Builder();
+                    builders[field.ordinal()] = builder;
+                }
+
+                if (pattern != null) {
+                    builder.addPattern(i, pattern);
+                } else {
+                    for (String word : words) {
+                        builder.addKeyword(i, word, !sentence);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < builders.length; i++) {
+            if (builders[i] != null) {
+                fieldMatchers[i] = builders[i].build();
+            }
+        }
+    }
+
+    /**
+     * A hash of everything of the filters that changes how posts are filtered, the same as long as
+     * the filters of the board are not changed.
+     */
+    @AnyThread
+    public String getSignature() {
+        return signature;
+    }
+
+    private static String createSignature(Filter[] filters) {
+        StringBuilder text = new StringBuilder();
+        for (Filter filter : filters) {
+            text.append(filter.type).append(' ')
+                    .append(filter.action).append(' ')
+                    .append(filter.color).append(' ')
+                    .append(filter.applyToReplies).append(' ')
+                    .append(filter.pattern).append('\n');
+        }
+        return ByteString.encodeUtf8(text.toString()).sha1().hex();
+    }
+
+    /**
+     * Match all filters against the post.
+     *
+     * @return the matching filters, in the order they were given.
+     */
+    @AnyThread
+    public List<Filter> matches(Post.Builder post) {
+        if (filters.length == 0) {
+            return Collections.emptyList();
+        }
+
+        boolean[] matched = new boolean[filters.length];
+
+        match(FilterType.TRIPCODE, post.tripcode, matched);
+        match(FilterType.NAME, post.name, matched);
+        if (fieldMatchers[FilterType.COMMENT.ordinal()] != null) {
+            match(FilterType.COMMENT, post.comment.toString(), matched);
+        }
+        match(FilterType.ID, post.posterId, matched);
+        match(FilterType.SUBJECT, post.subject, matched);
+        if (post.images != null && fieldMatchers[FilterType.FILENAME.ordinal()] != null) {
+            StringBuilder filename = new StringBuilder();
+            for (PostImage image : post.images) {
+                filename.append(image.filename).append(" ");
+            }
+            match(FilterType.FILENAME, filename.toString(), matched);
+        }
+
+        List<Filter> result = new ArrayList<>();
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                result.add(filters[i]);
+            }
+        }
+        return result;
+    }
+
+    private void match(FilterType field, String text, boolean[] matched) {
+        FieldMatcher fieldMatcher = fieldMatchers[field.ordinal()];
+        if (fieldMatcher != null && !TextUtils.isEmpty(text)) {
+            fieldMatcher.match(text, matched);
+        }
+    }
+
+    /**
+     * Split the pattern of a non-regex filter into the keywords it searches for, the same way
+     * {@link FilterEngine#compile(String)} builds its pattern.
+     *
+     * @param words filled with the keywords, stays empty if the pattern needs a regex.
+     * @return {@code true} for an "exact sentence", {@code false} for separate words.
+     */
+    private static boolean parseKeywords(String rawPattern, List<String> words) {
+        if (TextUtils.isEmpty(rawPattern) ||
+                (rawPattern.charAt(0) == '/' && rawPattern.matches("^/(.*)/(i?)$"))) {
+            return false;
+        }
+
+        if (rawPattern.length() >= 2 && rawPattern.charAt(0) == '"' && rawPattern.charAt(rawPattern.length() - 1) == '"') {
+            String sentence = rawPattern.substring(1, rawPattern.length() - 1);
+            if (!sentence.isEmpty()) {
+                words.add(sentence);
+            }
+            return true;
+        }
+
+        for (String word : rawPattern.split(" ")) {
+            // Wildcards and empty words (from double spaces) are left to the regex
+            if (word.isEmpty() || word.indexOf('*') >= 0) {
+                words.clear();
+                break;
+            }
+            words.add(word);
+        }
+        return false;
+    }
+
+    private static class FieldMatcher {
+        private final KeywordAutomaton keywords;
+        private final int[] patternFilters;
+        private final Pattern[] patterns;
+
+        private FieldMatcher(KeywordAutomaton keywords, int[] patternFilters, Pattern[] patterns) {
+            this.keywords = keywords;
+            this.patternFilters = patternFilters;
+            this.patterns = patterns;
+        }
+
+        private void match(String text, boolean[] matched) {
+            if (keywords != null) {
+                keywords.match(text, matched);
+            }
+
+            for (int i = 0; i < patterns.length; i++) {
+                int filter = patternFilters[i];
+                if (!matched[filter]) {
+                    try {
+                        matched[filter] = patterns[i].matcher(text).find();
+                    } catch (IllegalArgumentException e) {
+                        Logger.w(TAG, "matcher.find() exception", e);
+                    }
+                }
+            }
+        }
+
+        private static class Builder {
+            private final KeywordAutomaton.Builder keywords = new KeywordAutomaton.Builder();
+            private final List<Integer> patternFilters = new ArrayList<>();
+            private final List<Pattern> patterns = new ArrayList<>();
+
+            private void addKeyword(int filter, String keyword, boolean wholeWord) {
+                keywords.add(filter, keyword, wholeWord);
+            }
+
+            private void addPattern(int filter, Pattern pattern) {
+                patternFilters.add(filter);
+                patterns.add(pattern);
+            }
+
+            private FieldMatcher build() {
+                int[] filters = new int[patternFilters.size()];
+                for (int i = 0; i < filters.length; i++) {
+                    filters[i] = patternFilters.get(i);
+                }
+                return new FieldMatcher(keywords.isEmpty() ? null : keywords.build(),
+                        filters, patterns.toArray(new Pattern[0]));
+            }
+        }
+    }
+
+    /**
+     * Aho-Corasick automaton over case folded chars, finds all keywords in a text in one pass.
+     */
+    private static class KeywordAutomaton {
+        // Per state, the sorted chars it has a transition on and the states they lead to
+        private final char[][] transitionChars;
+        private final int[][] transitionStates;
+        private final int[] fail;
+        // The nearest state reachable through fail links that ends a keyword, or -1
+        private final int[] outputLink;
+        // The keywords ending in each state
+        private final int[][] outputs;
+
+        private final int[] keywordLength;
+        private final int[] keywordFilter;
+        private final boolean[] keywordWholeWord;
+
+        private KeywordAutomaton(Builder builder) {
+            int stateCount = builder.states.size();
+            transitionChars = new char[stateCount][];
+            transitionStates = new int[stateCount][];
+            outputs = new int[stateCount][];
+            for (int state = 0; state < stateCount; state++) {
+                TreeMap<Character, Integer> transitions = builder.states.get(state);
+                transitionChars[state] = new char[transitions.size()];
+                transitionStates[state] = new int[transitions.size()];
+                int i = 0;
+                for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+                    transitionChars[state][i] = transition.getKey();
+                    transitionStates[state][i] = transition.getValue();
+                    i++;
+                }
+
+                List<Integer> stateOutputs = builder.outputs.get(state);
+                outputs[state] = new int[stateOutputs.size()];
+                for (int j = 0; j < stateOutputs.size(); j++) {
+                    outputs[state][j] = stateOutputs.get(j);
+                }
+            }
+
+            int keywordCount = builder.keywordFilter.size();
+            keywordLength = new int[keywordCount];
+            keywordFilter = new int[keywordCount];
+            keywordWholeWord = new boolean[keywordCount];
+            for (int i = 0; i < keywordCount; i++) {
+                keywordLength[i] = builder.keywordLength.get(i);
+                keywordFilter[i] = builder.keywordFilter.get(i);
+                keywordWholeWord[i] = builder.keywordWholeWord.get(i);
+            }
+
+            // Breadth first, so that the fail state of a state is always done before the state itself
+            fail = new int[stateCount];
+            outputLink = new int[stateCount];
+            Arrays.fill(outputLink, -1);
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int child : transitionStates[0]) {
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int i = 0; i < transitionChars[state].length; i++) {
+                    char c = transitionChars[state][i];
+                    int child = transitionStates[state][i];
+
+                    int failState = fail[state];
+                    while (failState != 0 && next(failState, c) < 0) {
+                        failState = fail[failState];
+                    }
+                    int failTarget = next(failState, c);
+                    fail[child] = failTarget >= 0 ? failTarget : 0;
+                    outputLink[child] = outputs[fail[child]].length > 0 ? fail[child] : outputLink[fail[child]];
+
+                    queue.add(child);
+                }
+            }
+        }
+
+        private int next(int state, char c) {
+            int i = Arrays.binarySearch(transitionChars[state], c);
+            return i >= 0 ? transitionStates[state][i] : -1;
+        }
+
+        private void match(String text, boolean[] matched) {
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = fold(text.charAt(i));
+
+                int next;
+                while ((next = next(state, c)) < 0 && state != 0) {
+                    state = fail[state];
+                }
+                state = next >= 0 ? next : 0;
+
+                for (int out = outputs[state].length > 0 ? state : outputLink[state]; out >= 0; out = outputLink[out]) {
+                    for (int keyword : outputs[out]) {
+                        int filter = keywordFilter[keyword];
+                        if (!matched[filter] && (!keywordWholeWord[keyword] ||
+                                (isBoundary(text, i + 1 - keywordLength[keyword]) && isBoundary(text, i + 1)))) {
+                            matched[filter] = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Same as \b: between a word and a non word char, with the text edges counting as non word chars
+        private static boolean isBoundary(String text, int index) {
+            boolean before = index > 0 && isWordChar(text.charAt(index - 1));
+            boolean after = index < text.length() && isWordChar(text.charAt(index));
+            return before != after;
+        }
+
+        private static boolean isWordChar(char c) {
+            return c == '_' || Character.isLetterOrDigit(c);
+        }
+
+        private static char fold(char c) {
+            return Character.toLowerCase(Character.toUpperCase(c));
+        }
+
+        private static class Builder {
+            private final List<TreeMap<Character, Integer>> states = new ArrayList<>();
+            private final List<List<Integer>> outputs = new ArrayList<>();
+
+            private final List<Integer> keywordLength = new ArrayList<>();
+            private final List<Integer> keywordFilter = new ArrayList<>();
+            private final List<Boolean> keywordWholeWord = new ArrayList<>();
+
+            private Builder() {
+                addState();
+            }
+
+            private void add(int filter, String keyword, boolean wholeWord) {
+                int state = 0;
+                for (int i = 0; i < keyword.length(); i++) {
+                    char c = fold(keyword.charAt(i));
+                    Integer next = states.get(state).get(c);
+                    if (next == null) {
+                        next = addState();
+                        states.get(state).put(c, next);
+                    }
+                    state = next;
+                }
+
+                outputs.get(state).add(keywordFilter.size());
+                keywordLength.add(keyword.length());
+                keywordFilter.add(filter);
+                keywordWholeWord.add(wholeWord);
+            }
+
+            private int addState() {
+                states.add(new TreeMap<>());
+                outputs.add(new ArrayList<>());
+                return states.size() - 1;
+            }
+
+            private boolean isEmpty() {
+                return keywordFilter.isEmpty();
+            }
+
+            private KeywordAutomaton build() {
+                return new KeywordAutomaton(this);
+            }
+        }
+    }
+}
@@ -90,6 +90,8 @@ public class FilterEngine {
 
     private final Map<String, Pattern> patternCache = new HashMap<>();
     private final List<Filter> enabledFilters = new ArrayList<>();
+    // Compiled filters by board unique id, built when first requested and cleared on update
+    private final Map<String, CompiledFilters> compiledFilters = new HashMap<>();
 
     @Inject
     public FilterEngine(DatabaseManager databaseManager) {
@@ -149,6 +151,30 @@ public class FilterEngine {
         }
     }
 
+    /**
+     * Get the enabled filters for the board, compiled to match all of them in one go.
+     * The filters are copied, so the result can be used on other threads.
+     */
+    public CompiledFilters getCompiledFilters(Board board) {
+        String uniqueId = BoardHelper.boardUniqueId(board);
+        synchronized (compiledFilters) {
+            CompiledFilters compiled = compiledFilters.get(uniqueId);
+            if (compiled == null) {
+                List<Filter> boardFilters = new ArrayList<>();
+                for (int i = 0; i < enabledFilters.size(); i++) {
+                    Filter filter = enabledFilters.get(i);
+                    if (matchesBoard(filter, board)) {
+                        boardFilters.add(filter.clone());
+                    }
+                }
+
+                compiled = new CompiledFilters(this, boardFilters);
+                compiledFilters.put(uniqueId, compiled);
+            }
+            return compiled;
+        }
+    }
+
     public int getFilterBoardCount(Filter filter) {
         if (filter.allBoards) {
             return -1;
@@ -337,5 +363,9 @@ public class FilterEngine {
 
         enabledFilters.clear();
         enabledFilters.addAll(enabled);
+
+        synchronized (compiledFilters) {
+            compiledFilters.clear();
+        }
     }
 }
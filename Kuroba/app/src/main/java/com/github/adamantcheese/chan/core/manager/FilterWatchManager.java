@@ -187,5 +187,10 @@ public class FilterWatchManager implements WakeManager.Wakeable {
         public void onChanLoaderError(ChanThreadLoader.ChanLoaderException error) {
             //ignore all errors
         }
+
+        @Override
+        public boolean isForeground() {
+            return false;
+        }
     }
 }
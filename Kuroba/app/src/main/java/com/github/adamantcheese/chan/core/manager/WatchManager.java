@@ -64,7 +64,8 @@ import static com.github.adamantcheese.chan.utils.AndroidUtils.getAppContext;
  * <p/>
  * <p>The pin watcher is an optional feature that watches threads for new posts and displays a new
  * post counter next to the pin view. Watching happens with the same backoff timer as used for
- * the auto updater for open threads.
+ * the auto updater for open threads, unless the site has a threads index: then only the threads that
+ * were modified according to the index are loaded, see {@link BoardIndexScheduler}.
  * <p/>
  * <p>Background watching is a feature that can be enabled. With background watching enabled then
  * the PinManager will register an AlarmManager to check for updates in intervals. It will acquire
@@ -72,7 +73,7 @@ import static com.github.adamantcheese.chan.utils.AndroidUtils.getAppContext;
  * <p/>
  * <p>All pin adding and removing must go through this class to properly update the watchers.
  */
-public class WatchManager implements WakeManager.Wakeable {
+public class WatchManager implements WakeManager.Wakeable, BoardIndexScheduler.Callback {
     private static final String TAG = "WatchManager";
     private static final Intent WATCH_NOTIFICATION_INTENT = new Intent(getAppContext(), WatchNotification.class);
 
@@ -102,6 +103,7 @@ public class WatchManager implements WakeManager.Wakeable {
     private final ChanLoaderFactory chanLoaderFactory;
     private final WakeManager wakeManager;
     private final PageRequestManager pageRequestManager;
+    private final BoardIndexScheduler boardIndexScheduler;
 
     private IntervalType currentInterval = IntervalType.NONE;
 
@@ -116,6 +118,7 @@ public class WatchManager implements WakeManager.Wakeable {
         this.chanLoaderFactory = chanLoaderFactory;
         this.wakeManager = wakeManager;
         this.pageRequestManager = pageRequestManager;
+        boardIndexScheduler = new BoardIndexScheduler(pageRequestManager, this);
 
         databasePinManager = databaseManager.getDatabasePinManager();
         pins = databaseManager.runTask(databasePinManager.getPins());
@@ -494,36 +497,71 @@ public class WatchManager implements WakeManager.Wakeable {
             waitingForPinWatchersForBackgroundUpdate = new HashSet<>();
         }
 
-        List<Pin> watchingPins = getWatchingPins();
-        for (Pin pin : watchingPins) {
+        List<PinWatcher> watchers = new ArrayList<>();
+        for (Pin pin : getWatchingPins()) {
             PinWatcher pinWatcher = getPinWatcher(pin);
-            if (pinWatcher != null && pinWatcher.update(fromBackground)) {
-                EventBus.getDefault().post(new PinMessages.PinChangedMessage(pin));
-
-                if (fromBackground) {
-                    waitingForPinWatchersForBackgroundUpdate.add(pinWatcher);
-                }
+            if (pinWatcher != null) {
+                watchers.add(pinWatcher);
             }
         }
 
-        if (fromBackground && !waitingForPinWatchersForBackgroundUpdate.isEmpty()) {
+        // Watchers are updated through the callbacks below, some right away and some once the
+        // threads index of their board has been received
+        boardIndexScheduler.update(watchers, fromBackground);
+
+        if (fromBackground && (!waitingForPinWatchersForBackgroundUpdate.isEmpty() || boardIndexScheduler.isRequesting())) {
             Logger.i(TAG, "Acquiring wakelock for pin watcher updates");
             wakeManager.manageLock(true);
         }
     }
 
+    @Override
+    public void onPinWatcherUpdate(PinWatcher pinWatcher, boolean fromBackground) {
+        pinWatcherLoading(pinWatcher, pinWatcher.update(fromBackground));
+    }
+
+    @Override
+    public void onPinWatcherIndexed(PinWatcher pinWatcher, long modified) {
+        pinWatcherLoading(pinWatcher, pinWatcher.updateFromIndex(modified));
+    }
+
+    @Override
+    public void onPinWatcherMissing(PinWatcher pinWatcher, boolean fromBackground) {
+        pinWatcherLoading(pinWatcher, pinWatcher.updateMissingFromIndex(fromBackground));
+    }
+
+    @Override
+    public void onBoardIndexDone() {
+        releaseLockIfDone();
+    }
+
+    private void pinWatcherLoading(PinWatcher pinWatcher, boolean loading) {
+        if (loading) {
+            EventBus.getDefault().post(new PinMessages.PinChangedMessage(pinWatcher.pin));
+
+            if (waitingForPinWatchersForBackgroundUpdate != null) {
+                waitingForPinWatchersForBackgroundUpdate.add(pinWatcher);
+            }
+        }
+    }
+
     private void pinWatcherUpdated(PinWatcher pinWatcher) {
         updateState();
         EventBus.getDefault().post(new PinMessages.PinChangedMessage(pinWatcher.pin));
 
         if (waitingForPinWatchersForBackgroundUpdate != null) {
             waitingForPinWatchersForBackgroundUpdate.remove(pinWatcher);
+            releaseLockIfDone();
+        }
+    }
 
-            if (waitingForPinWatchersForBackgroundUpdate.isEmpty()) {
-                Logger.i(TAG, "All watchers updated, removing wakelock");
-                waitingForPinWatchersForBackgroundUpdate = null;
-                wakeManager.manageLock(false);
-            }
+    private void releaseLockIfDone() {
+        if (waitingForPinWatchersForBackgroundUpdate != null
+                && waitingForPinWatchersForBackgroundUpdate.isEmpty()
+                && !boardIndexScheduler.isRequesting()) {
+            Logger.i(TAG, "All watchers updated, removing wakelock");
+            waitingForPinWatchersForBackgroundUpdate = null;
+            wakeManager.manageLock(false);
         }
     }
 
@@ -573,6 +611,11 @@ public class WatchManager implements WakeManager.Wakeable {
         private boolean wereNewPosts = false;
         private boolean notified;
 
+        // last modified time from the board's threads index of the last load, and of the load in flight
+        private long indexModified = -1;
+        private long loadingIndexModified = -1;
+        private boolean missingFromIndex = false;
+
         public PinWatcher(Pin pin) {
             this.pin = pin;
 
@@ -581,6 +624,10 @@ public class WatchManager implements WakeManager.Wakeable {
             pageRequestManager.addListener(this);
         }
 
+        public Pin getPin() {
+            return pin;
+        }
+
         public int getReplyCount() {
             if (chanLoader != null && chanLoader.getThread() != null && chanLoader.getThread().posts != null) {
                 return chanLoader.getThread().posts.size();
@@ -627,8 +674,8 @@ public class WatchManager implements WakeManager.Wakeable {
             pageRequestManager.removeListener(this);
         }
 
-        private boolean update(boolean fromBackground) {
-            if (!pin.isError && pin.watching) {
+        boolean update(boolean fromBackground) {
+            if (chanLoader != null && !pin.isError && pin.watching) {
                 //check last page stuff, get the page for the OP and notify in the onPages method
                 Chan4PagesRequest.Page page = pageRequestManager.getPage(chanLoader.getLoadable());
                 if (page != null) {
@@ -648,8 +695,56 @@ public class WatchManager implements WakeManager.Wakeable {
             }
         }
 
+        /**
+         * Load the thread if the index says it was modified since it was last loaded.
+         *
+         * @return {@code true} if a load was started
+         */
+        boolean updateFromIndex(long modified) {
+            missingFromIndex = false;
+            if (chanLoader == null || pin.isError || !pin.watching) {
+                return false;
+            }
+
+            if (modified == indexModified && chanLoader.getThread() != null) {
+                return false;
+            }
+
+            // The thread changed, the backoff timer doesn't apply
+            chanLoader.clearTimer();
+            if (chanLoader.requestMoreData()) {
+                loadingIndexModified = modified;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        /**
+         * The thread fell out of the index, it was either archived or deleted. Load it once right
+         * away so the loader can tell which one; if it's still alive (threads that were just
+         * created may not be listed yet) keep updating it on its own timer.
+         *
+         * @return {@code true} if a load was started
+         */
+        boolean updateMissingFromIndex(boolean fromBackground) {
+            if (missingFromIndex) {
+                return update(fromBackground);
+            }
+
+            missingFromIndex = true;
+            if (chanLoader == null || pin.isError || !pin.watching) {
+                return false;
+            }
+
+            chanLoader.clearTimer();
+            return chanLoader.requestMoreData();
+        }
+
         @Override
         public void onChanLoaderError(ChanThreadLoader.ChanLoaderException error) {
+            loadingIndexModified = -1;
+
             // Ignore normal network errors, we only pause pins when there is absolutely no way
             // we'll ever need watching again: a 404.
             if (error.isNotFound()) {
@@ -660,9 +755,18 @@ public class WatchManager implements WakeManager.Wakeable {
             pinWatcherUpdated(this);
         }
 
+        @Override
+        public boolean isForeground() {
+            return false;
+        }
+
         @Override
         public void onChanLoaderData(ChanThread thread) {
             pin.isError = false;
+            if (loadingIndexModified != -1) {
+                indexModified = loadingIndexModified;
+                loadingIndexModified = -1;
+            }
             /*
              * Forcibly update watched thread titles
              * This solves the issue of when you post a thread and the site doesn't have the thread listed yet,
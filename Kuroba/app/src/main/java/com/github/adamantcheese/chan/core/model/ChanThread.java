@@ -17,6 +17,7 @@
 package com.github.adamantcheese.chan.core.model;
 
 import com.github.adamantcheese.chan.core.model.orm.Loadable;
+import com.github.adamantcheese.chan.utils.IntObjectMap;
 
 import java.util.List;
 
@@ -26,9 +27,51 @@ public class ChanThread {
     public Post op;
     public boolean closed = false;
     public boolean archived = false;
+    /**
+     * Index of the text of the posts for searching, kept up to date by the loader.
+     */
+    public PostSearchIndex searchIndex;
+
+    // The posts by their number, changed together with the posts in setPosts.
+    private final IntObjectMap<Post> postsByNo;
 
     public ChanThread(Loadable loadable, List<Post> posts) {
         this.loadable = loadable;
         this.posts = posts;
+
+        postsByNo = new IntObjectMap<>(posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            Post post = posts.get(i);
+            postsByNo.put(post.no, post);
+        }
+    }
+
+    /**
+     * Replace the posts of the thread, only the posts that changed are updated in the index.
+     */
+    public void setPosts(List<Post> newPosts) {
+        posts.clear();
+        posts.addAll(newPosts);
+
+        for (int i = 0; i < newPosts.size(); i++) {
+            Post post = newPosts.get(i);
+            postsByNo.put(post.no, post);
+        }
+
+        if (postsByNo.size() > newPosts.size()) {
+            // Some posts are gone, drop them from the index
+            postsByNo.clear();
+            for (int i = 0; i < newPosts.size(); i++) {
+                Post post = newPosts.get(i);
+                postsByNo.put(post.no, post);
+            }
+        }
+    }
+
+    /**
+     * @return the post with the number, or null if the thread doesn't have it.
+     */
+    public Post getPost(int no) {
+        return postsByNo.get(no);
     }
 }
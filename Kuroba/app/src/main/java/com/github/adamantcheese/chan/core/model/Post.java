@@ -19,6 +19,7 @@ package com.github.adamantcheese.chan.core.model;
 import androidx.annotation.MainThread;
 
 import com.github.adamantcheese.chan.core.model.orm.Board;
+import com.github.adamantcheese.chan.ui.text.StyledText;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -44,7 +45,10 @@ public class Post implements Comparable<Post> {
 
     public final String name;
 
-    public final CharSequence comment;
+    /**
+     * The parsed comment, render it with the theme to show it.
+     */
+    public final StyledText comment;
 
     public final String subject;
 
@@ -84,9 +88,9 @@ public class Post implements Comparable<Post> {
 
     public final List<PostLinkable> linkables;
 
-    public final CharSequence subjectSpan;
+    public final StyledText subjectSpan;
 
-    public final CharSequence nameTripcodeIdCapcodeSpan;
+    public final StyledText nameTripcodeIdCapcodeSpan;
 
     /**
      * This post has been deleted (the server isn't sending it anymore).
@@ -137,7 +141,7 @@ public class Post implements Comparable<Post> {
 
         subject = builder.subject;
         name = builder.name;
-        comment = builder.comment;
+        comment = StyledText.of(builder.comment);
         tripcode = builder.tripcode;
 
         time = builder.unixTimestampSeconds;
@@ -165,8 +169,9 @@ public class Post implements Comparable<Post> {
 
         isSavedReply = builder.isSavedReply;
 
-        subjectSpan = builder.subjectSpan;
-        nameTripcodeIdCapcodeSpan = builder.nameTripcodeIdCapcodeSpan;
+        subjectSpan = builder.subjectSpan == null ? null : StyledText.of(builder.subjectSpan);
+        nameTripcodeIdCapcodeSpan = builder.nameTripcodeIdCapcodeSpan == null
+                ? null : StyledText.of(builder.nameTripcodeIdCapcodeSpan);
 
         linkables = Collections.unmodifiableList(builder.linkables);
         repliesTo = Collections.unmodifiableSet(builder.repliesToIds);
@@ -501,6 +506,14 @@ public class Post implements Comparable<Post> {
             return this;
         }
 
+        public List<PostLinkable> getLinkables() {
+            return linkables;
+        }
+
+        public Set<Integer> getRepliesTo() {
+            return repliesToIds;
+        }
+
         public Post build() {
             if (board == null || id < 0 || opId < 0 || unixTimestampSeconds < 0 || comment == null) {
                 throw new IllegalArgumentException("Post data not complete");
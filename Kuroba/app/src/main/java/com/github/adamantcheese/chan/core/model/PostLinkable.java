@@ -35,35 +35,53 @@ public class PostLinkable extends ClickableSpan {
         QUOTE, LINK, SPOILER, THREAD, BOARD, SEARCH
     }
 
-    public final Theme theme;
     public final CharSequence key;
     public final Object value;
     public final Type type;
 
-    private boolean spoilerVisible = ChanSettings.revealTextSpoilers.get();
-    private int markedNo = -1;
+    // Null for the linkable of the post, only the copies made with withTheme are drawn
+    private final Theme theme;
+    // Shared with the copies of this linkable for other themes
+    private final State state;
 
-    public PostLinkable(Theme theme, CharSequence key, Object value, Type type) {
+    public PostLinkable(CharSequence key, Object value, Type type) {
+        this(null, key, value, type, new State());
+    }
+
+    private PostLinkable(Theme theme, CharSequence key, Object value, Type type, State state) {
         this.theme = theme;
         this.key = key;
         this.value = value;
         this.type = type;
+        this.state = state;
+    }
+
+    /**
+     * This linkable drawn with the colors of the theme. The spoiler state and marked post are
+     * shared with it, this one is not changed.
+     */
+    public PostLinkable withTheme(Theme theme) {
+        return theme == this.theme ? this : new PostLinkable(theme, key, value, type, state);
     }
 
     @Override
     public void onClick(View widget) {
-        spoilerVisible = !spoilerVisible;
+        state.spoilerVisible = !state.spoilerVisible;
     }
 
     public void setMarkedNo(int markedNo) {
-        this.markedNo = markedNo;
+        state.markedNo = markedNo;
     }
 
     @Override
     public void updateDrawState(@NonNull TextPaint ds) {
+        if (theme == null) {
+            return;
+        }
+
         if (type == Type.QUOTE || type == Type.LINK || type == Type.THREAD || type == Type.BOARD || type == Type.SEARCH) {
             if (type == Type.QUOTE) {
-                if (value instanceof Integer && ((int) value) == markedNo) {
+                if (value instanceof Integer && ((int) value) == state.markedNo) {
                     ds.setColor(theme.highlightQuoteColor);
                 } else {
                     ds.setColor(theme.quoteColor);
@@ -78,7 +96,7 @@ public class PostLinkable extends ClickableSpan {
         } else if (type == Type.SPOILER) {
             ds.bgColor = theme.spoilerColor;
             ds.setUnderlineText(false);
-            if (!spoilerVisible) {
+            if (!state.spoilerVisible) {
                 ds.setColor(theme.spoilerColor);
             } else {
                 ds.setColor(theme.textColorRevealSpoiler);
@@ -87,6 +105,11 @@ public class PostLinkable extends ClickableSpan {
     }
 
     public boolean getSpoilerState() {
-        return spoilerVisible;
+        return state.spoilerVisible;
+    }
+
+    private static class State {
+        private boolean spoilerVisible = ChanSettings.revealTextSpoilers.get();
+        private int markedNo = -1;
     }
 }
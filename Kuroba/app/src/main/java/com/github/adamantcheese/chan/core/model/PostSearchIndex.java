@@ -0,0 +1,280 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.model;
+
+import androidx.annotation.AnyThread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A trigram index of the searchable text of the posts of a thread, so that a search doesn't have
+ * to lower-case and scan the text of every post.
+ * <p>The index is updated in the background after each load of the thread, until then a search
+ * checks the text of the posts the index doesn't have yet. A search looks up the posts
+ * containing the rarest trigram of the query and only checks the text of those. Queries shorter
+ * than a trigram scan the lower-cased text kept in the index.
+ */
+public class PostSearchIndex {
+    // Separates the fields of a post in the indexed text, a query can't contain it
+    private static final char FIELD_SEPARATOR = '\u0000';
+
+    // Guarded by this.
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+    // Number of post numbers in all postings, including the ones of removed or changed entries
+    private int postingsSize = 0;
+    // Number of post numbers in the postings of the current entries
+    private int liveSize = 0;
+
+    /**
+     * Add a post, replacing the post with the same number.
+     */
+    @AnyThread
+    public void add(Post post) {
+        String text = getSearchText(post);
+
+        synchronized (this) {
+            Entry existing = entries.get(post.no);
+            if (existing != null && existing.text.equals(text)) {
+                // Reloaded but not changed, keep the postings
+                existing.post = post;
+                return;
+            }
+        }
+
+        long[] trigrams = getTrigrams(text);
+
+        synchronized (this) {
+            Entry previous = entries.put(post.no, new Entry(post, text, trigrams));
+            if (previous != null) {
+                // The postings of the previous text are left in place and compacted later
+                liveSize -= previous.trigrams.length;
+            }
+
+            addPostings(post.no, trigrams);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Make the index match the posts of a load. Posts that are new or changed are added, posts
+     * that are gone or were deleted are removed.
+     */
+    @AnyThread
+    public void update(List<Post> posts) {
+        List<Post> live = new ArrayList<>(posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            Post post = posts.get(i);
+            if (!post.deleted.get()) {
+                live.add(post);
+                if (!contains(post)) {
+                    add(post);
+                }
+            }
+        }
+
+        retain(live);
+    }
+
+    /**
+     * Remove the posts that aren't in the list, after a load without them.
+     */
+    @AnyThread
+    public synchronized void retain(List<Post> posts) {
+        Set<Integer> nos = new HashSet<>(posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            nos.add(posts.get(i).no);
+        }
+
+        Iterator<Map.Entry<Integer, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Entry> entry = iterator.next();
+            if (!nos.contains(entry.getKey())) {
+                iterator.remove();
+                liveSize -= entry.getValue().trigrams.length;
+            }
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * @return true if the search results are valid for this post, i.e. if the index has this
+     * post and not an older version of it.
+     */
+    @AnyThread
+    public synchronized boolean contains(Post post) {
+        Entry entry = entries.get(post.no);
+        return entry != null && entry.post == post;
+    }
+
+    /**
+     * Find the posts with a comment, subject, name or image filename containing the query.
+     *
+     * @param lowerQuery the query, lower-cased with {@link Locale#ENGLISH}.
+     * @return the numbers of the posts matching the query.
+     */
+    @AnyThread
+    public synchronized Set<Integer> search(String lowerQuery) {
+        Set<Integer> found = new HashSet<>();
+        if (lowerQuery.indexOf(FIELD_SEPARATOR) >= 0) {
+            return found;
+        }
+
+        if (lowerQuery.length() < 3) {
+            for (Entry entry : entries.values()) {
+                if (entry.text.contains(lowerQuery)) {
+                    found.add(entry.post.no);
+                }
+            }
+            return found;
+        }
+
+        // Only the posts that have the rarest trigram of the query can match
+        Postings rarest = null;
+        for (int i = 0; i + 2 < lowerQuery.length(); i++) {
+            Postings candidates = postings.get(trigram(lowerQuery, i));
+            if (candidates == null) {
+                return found;
+            }
+
+            if (rarest == null || candidates.size < rarest.size) {
+                rarest = candidates;
+            }
+        }
+
+        for (int i = 0; i < rarest.size; i++) {
+            int no = rarest.nos[i];
+            Entry entry = entries.get(no);
+            if (entry != null && entry.text.contains(lowerQuery)) {
+                found.add(no);
+            }
+        }
+
+        return found;
+    }
+
+    private void addPostings(int no, long[] trigrams) {
+        for (long trigram : trigrams) {
+            Postings list = postings.get(trigram);
+            if (list == null) {
+                list = new Postings();
+                postings.put(trigram, list);
+            }
+            list.add(no);
+        }
+
+        postingsSize += trigrams.length;
+        liveSize += trigrams.length;
+    }
+
+    /**
+     * Rebuild the postings when more than half of them are of posts that were removed or changed.
+     */
+    private void compactIfNeeded() {
+        if (postingsSize <= 1024 || postingsSize <= liveSize * 2) {
+            return;
+        }
+
+        postings.clear();
+        postingsSize = 0;
+        liveSize = 0;
+        for (Entry entry : entries.values()) {
+            addPostings(entry.post.no, entry.trigrams);
+        }
+    }
+
+    /**
+     * The lower-cased searchable fields of the post, the same ones {@link
+     * com.github.adamantcheese.chan.ui.adapter.PostsFilter} searches.
+     */
+    private static String getSearchText(Post post) {
+        StringBuilder text = new StringBuilder();
+        text.append(post.comment).append(FIELD_SEPARATOR)
+                .append(post.subject).append(FIELD_SEPARATOR)
+                .append(post.name);
+        for (PostImage image : post.images) {
+            if (image.filename != null) {
+                text.append(FIELD_SEPARATOR).append(image.filename);
+            }
+        }
+        return text.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * The distinct trigrams of the text that don't cross a field.
+     */
+    private static long[] getTrigrams(String text) {
+        Set<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 2 < text.length(); i++) {
+            if (text.charAt(i) != FIELD_SEPARATOR
+                    && text.charAt(i + 1) != FIELD_SEPARATOR
+                    && text.charAt(i + 2) != FIELD_SEPARATOR) {
+                trigrams.add(trigram(text, i));
+            }
+        }
+
+        long[] result = new long[trigrams.size()];
+        int i = 0;
+        for (Long trigram : trigrams) {
+            result[i++] = trigram;
+        }
+        return result;
+    }
+
+    private static long trigram(String text, int index) {
+        return ((long) text.charAt(index) << 32)
+                | ((long) text.charAt(index + 1) << 16)
+                | (long) text.charAt(index + 2);
+    }
+
+    private static class Entry {
+        private Post post;
+        private final String text;
+        private final long[] trigrams;
+
+        private Entry(Post post, String text, long[] trigrams) {
+            this.post = post;
+            this.text = text;
+            this.trigrams = trigrams;
+        }
+    }
+
+    /**
+     * The numbers of the posts that contain a trigram, may contain duplicates and posts that were
+     * removed until the next compaction.
+     */
+    private static class Postings {
+        private int[] nos = new int[4];
+        private int size = 0;
+
+        private void add(int no) {
+            if (size == nos.length) {
+                nos = Arrays.copyOf(nos, size * 2);
+            }
+            nos[size++] = no;
+        }
+    }
+}
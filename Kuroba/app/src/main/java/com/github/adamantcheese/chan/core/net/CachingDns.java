@@ -0,0 +1,71 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.net;
+
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Dns;
+
+/**
+ * A {@link Dns} that remembers lookups for a minute, Android itself only caches them for a few
+ * seconds. Used by the shared OkHttpClient so that bursts of requests to the same hosts, like the
+ * thumbnails of a catalog, don't each wait for a lookup.
+ */
+public class CachingDns implements Dns {
+    private static final long TTL = 60 * 1000;
+
+    private final Dns delegate;
+    private final Map<String, Entry> cache = new HashMap<>();
+
+    public CachingDns(Dns delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (cache) {
+            Entry entry = cache.get(hostname);
+            if (entry != null && entry.expires > now) {
+                return entry.addresses;
+            }
+        }
+
+        // Failures aren't cached, and throw through to the caller as before
+        List<InetAddress> addresses = delegate.lookup(hostname);
+        synchronized (cache) {
+            cache.put(hostname, new Entry(addresses, now + TTL));
+        }
+        return addresses;
+    }
+
+    private static class Entry {
+        private final List<InetAddress> addresses;
+        private final long expires;
+
+        private Entry(List<InetAddress> addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+}
@@ -17,7 +17,9 @@
 package com.github.adamantcheese.chan.core.net;
 
 import android.util.JsonReader;
+import android.util.MalformedJsonException;
 
+import com.android.volley.Cache;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
@@ -25,18 +27,29 @@ import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.StreamingRequest;
 
 import com.github.adamantcheese.chan.utils.IOUtils;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 
-public abstract class JsonReaderRequest<T> extends Request<T> {
+/**
+ * A request that reads json. Requests that are not cached read the json straight from the connection
+ * while it is downloading, others read it after the whole response is received.
+ */
+public abstract class JsonReaderRequest<T> extends Request<T> implements StreamingRequest {
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
     protected final Listener<T> listener;
 
+    private boolean streamed = false;
+    private T streamedResult;
+    private Exception streamedException;
+
     public JsonReaderRequest(String url, Listener<T> listener, ErrorListener errorListener) {
         super(Method.GET, url, errorListener);
 
@@ -48,8 +61,34 @@ public abstract class JsonReaderRequest<T> extends Request<T> {
         listener.onResponse(response);
     }
 
+    @Override
+    public void readStream(InputStream in) throws IOException {
+        streamedResult = null;
+        streamedException = null;
+
+        // Not closed here, the network closes the connection
+        JsonReader reader = new JsonReader(new InputStreamReader(in, UTF8));
+        try {
+            streamedResult = readJson(reader);
+        } catch (MalformedJsonException e) {
+            streamedException = e;
+        } catch (IOException e) {
+            // The connection failed, let the network handle it like any other failed download
+            throw e;
+        } catch (Exception e) {
+            streamedException = e;
+        }
+
+        streamed = true;
+    }
+
     @Override
     protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        if (response.data == null && streamed) {
+            // Already read in readStream, there's nothing to cache
+            return toResponse(streamedResult, streamedException, null);
+        }
+
         ByteArrayInputStream baos = new ByteArrayInputStream(response.data);
         JsonReader reader = new JsonReader(new InputStreamReader(baos, UTF8));
 
@@ -63,6 +102,10 @@ public abstract class JsonReaderRequest<T> extends Request<T> {
 
         IOUtils.closeQuietly(reader);
 
+        return toResponse(read, exception, HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    private Response<T> toResponse(T read, Exception exception, Cache.Entry cacheEntry) {
         if (read == null) {
             if (exception != null) {
                 return Response.error(new VolleyError(exception));
@@ -70,7 +113,7 @@ public abstract class JsonReaderRequest<T> extends Request<T> {
                 return Response.error(new VolleyError("Unknown error"));
             }
         } else {
-            return Response.success(read, HttpHeaderParser.parseCacheHeaders(response));
+            return Response.success(read, cacheEntry);
         }
     }
 
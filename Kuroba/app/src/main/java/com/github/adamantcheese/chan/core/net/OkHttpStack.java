@@ -0,0 +1,171 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.net;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request.Method;
+import com.android.volley.toolbox.HttpStack;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * An {@link HttpStack} for Volley that runs requests on the app's shared {@link OkHttpClient}, so
+ * that Volley uses the same connection pool, DNS cache and proxy settings as the rest of the app,
+ * and multiplexes requests over HTTP/2 where the server supports it.
+ */
+public class OkHttpStack implements HttpStack {
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+
+    private final OkHttpClient client;
+    private final String userAgent;
+
+    // Clients for the timeouts requests asked for, they share the pool and dispatcher of the client
+    private final Map<Integer, OkHttpClient> clientsByTimeout = new HashMap<>();
+
+    public OkHttpStack(OkHttpClient client, String userAgent) {
+        this.client = client;
+        this.userAgent = userAgent;
+    }
+
+    @Override
+    public HttpResponse performRequest(com.android.volley.Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        Request.Builder builder = new Request.Builder()
+                .url(request.getUrl());
+
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        for (Map.Entry<String, String> header : additionalHeaders.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        builder.header("User-Agent", userAgent);
+
+        setMethodAndBody(builder, request);
+
+        Response response = clientForTimeout(request.getTimeoutMs()).newCall(builder.build()).execute();
+
+        ProtocolVersion protocolVersion = response.protocol() == Protocol.HTTP_1_0
+                ? new ProtocolVersion("HTTP", 1, 0)
+                : new ProtocolVersion("HTTP", 1, 1);
+        BasicHttpResponse httpResponse = new BasicHttpResponse(
+                new BasicStatusLine(protocolVersion, response.code(), response.message()));
+
+        ResponseBody body = response.body();
+        if (body != null) {
+            // Volley reads and closes the stream, which releases the connection
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(body.byteStream());
+            entity.setContentLength(body.contentLength());
+            entity.setContentEncoding(response.header("Content-Encoding"));
+            MediaType contentType = body.contentType();
+            if (contentType != null) {
+                entity.setContentType(contentType.toString());
+            }
+            httpResponse.setEntity(entity);
+        }
+
+        Headers headers = response.headers();
+        for (int i = 0; i < headers.size(); i++) {
+            httpResponse.addHeader(headers.name(i), headers.value(i));
+        }
+
+        return httpResponse;
+    }
+
+    private synchronized OkHttpClient clientForTimeout(int timeoutMs) {
+        OkHttpClient timeoutClient = clientsByTimeout.get(timeoutMs);
+        if (timeoutClient == null) {
+            timeoutClient = client.newBuilder()
+                    .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                    .build();
+            clientsByTimeout.put(timeoutMs, timeoutClient);
+        }
+        return timeoutClient;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setMethodAndBody(Request.Builder builder, com.android.volley.Request<?> request)
+            throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                // The deprecated way, POST if there is a post body, GET otherwise
+                byte[] postBody = request.getPostBody();
+                if (postBody != null) {
+                    builder.post(RequestBody.create(MediaType.parse(request.getPostBodyContentType()), postBody));
+                } else {
+                    builder.get();
+                }
+                break;
+            case Method.GET:
+                builder.get();
+                break;
+            case Method.DELETE:
+                builder.delete();
+                break;
+            case Method.POST:
+                builder.post(createBody(request));
+                break;
+            case Method.PUT:
+                builder.put(createBody(request));
+                break;
+            case Method.HEAD:
+                builder.head();
+                break;
+            case Method.OPTIONS:
+                builder.method("OPTIONS", null);
+                break;
+            case Method.TRACE:
+                builder.method("TRACE", null);
+                break;
+            case Method.PATCH:
+                builder.patch(createBody(request));
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    private static RequestBody createBody(com.android.volley.Request<?> request) throws AuthFailureError {
+        byte[] body = request.getBody();
+        if (body == null) {
+            // OkHttp requires a body for these methods
+            body = new byte[0];
+        }
+        return RequestBody.create(MediaType.parse(request.getBodyContentType()), body);
+    }
+}
@@ -16,28 +16,28 @@
  */
 package com.github.adamantcheese.chan.core.net;
 
-import com.android.volley.toolbox.HurlStack;
-
 import com.github.adamantcheese.chan.core.settings.ChanSettings;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.Proxy;
-import java.net.URL;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
 
-public class ProxiedHurlStack extends HurlStack {
-    public ProxiedHurlStack(String userAgent) {
-        super(userAgent, null);
+/**
+ * Selects the proxy from the settings for every new connection, so a client built once follows
+ * changes to the proxy settings.
+ */
+public class SettingsProxySelector extends ProxySelector {
+    @Override
+    public List<Proxy> select(URI uri) {
+        Proxy proxy = ChanSettings.getProxy();
+        return Collections.singletonList(proxy != null ? proxy : Proxy.NO_PROXY);
     }
 
     @Override
-    protected HttpURLConnection createConnection(URL url) throws IOException {
-        // Start the connection by specifying a proxy server
-        Proxy proxy = ChanSettings.getProxy();
-        if (proxy != null) {
-            return (HttpURLConnection) url.openConnection(proxy);
-        } else {
-            return (HttpURLConnection) url.openConnection();
-        }
+    public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
     }
 }
@@ -0,0 +1,366 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.net;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.ImageLoader;
+import com.github.adamantcheese.chan.core.cache.ThumbnailDiskCache;
+import com.github.adamantcheese.chan.utils.AndroidUtils;
+import com.github.adamantcheese.chan.utils.ImageDecoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An {@link ImageLoader} that holds image requests back from the {@link RequestQueue} and only lets
+ * a few out at a time. Volley orders its queue when a request is added, so after a fling through a
+ * catalog the thumbnails on screen would wait behind every cell that was passed on the way.
+ * Here the next request is picked when a slot frees up: images for views on screen first, then
+ * images for views that scrolled away, then prefetches. Within each class the most recently bound
+ * goes first.
+ * <p>
+ * Views report whether they are on screen with {@link #setVisible(ImageContainer, boolean)} and
+ * drop requests they no longer need with {@link #cancel(ImageContainer)}. A request that was not
+ * sent yet is then forgotten without touching the network.
+ * <p>
+ * Thumbnails in the {@link ThumbnailDiskCache} skip the queue, they are decoded from disk on the
+ * decode pool straight into the memory cache.
+ * <p>
+ * All methods must be called on the main thread, like the rest of the ImageLoader.
+ */
+public class ThumbnailLoader extends ImageLoader {
+    private static final int MAX_IN_FLIGHT = 6;
+    private static final int MAX_PREFETCHES_IN_FLIGHT = 2;
+    private static final int MAX_PENDING_PREFETCHES = 64;
+    private static final int PREFETCHED_URLS_SIZE = 512;
+
+    private static final int PRIORITY_PREFETCH = 0;
+    private static final int PRIORITY_OFFSCREEN = 1;
+    private static final int PRIORITY_VISIBLE = 2;
+
+    private final RequestQueue requestQueue;
+    private final ThumbnailDiskCache diskCache;
+
+    private final Map<String, ScheduledRequest> images = new HashMap<>();
+    private final Map<String, ScheduledRequest> prefetches = new HashMap<>();
+    private final List<ScheduledRequest> pending = new ArrayList<>();
+    private final List<ScheduledRequest> inFlight = new ArrayList<>();
+    // Urls prefetched recently, so that scrolling back and forth doesn't keep asking for them
+    private final LruCache<String, Boolean> prefetched = new LruCache<>(PREFETCHED_URLS_SIZE);
+    private int sequence;
+
+    public ThumbnailLoader(RequestQueue requestQueue, ImageCache imageCache, ThumbnailDiskCache diskCache) {
+        super(requestQueue, imageCache);
+        this.requestQueue = requestQueue;
+        this.diskCache = diskCache;
+    }
+
+    @Override
+    public ImageContainer get(String requestUrl, ImageListener imageListener, int maxWidth, int maxHeight) {
+        ImageContainer container = super.get(requestUrl, imageListener, maxWidth, maxHeight);
+
+        if (container.getBitmap() == null) {
+            ScheduledRequest scheduled = images.get(container.getCacheKey());
+            if (scheduled != null) {
+                scheduled.containers.add(container);
+                scheduled.sequence = ++sequence;
+            }
+        }
+
+        dispatch();
+        return container;
+    }
+
+    /**
+     * Marks the view waiting on this container as on or off screen. A request goes out with
+     * visible priority as long as one of its containers is visible.
+     */
+    public void setVisible(ImageContainer container, boolean visible) {
+        ScheduledRequest scheduled = images.get(container.getCacheKey());
+        if (scheduled == null || !scheduled.containers.contains(container)) {
+            return;
+        }
+
+        if (visible) {
+            if (scheduled.hidden.remove(container)) {
+                scheduled.sequence = ++sequence;
+            }
+        } else {
+            scheduled.hidden.add(container);
+        }
+    }
+
+    /**
+     * Releases the container's interest in its request, the request itself is cancelled when no
+     * one else waits on it.
+     */
+    public void cancel(ImageContainer container) {
+        container.cancelRequest();
+
+        ScheduledRequest scheduled = images.get(container.getCacheKey());
+        if (scheduled != null) {
+            scheduled.containers.remove(container);
+            scheduled.hidden.remove(container);
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Downloads the url into the disk cache without decoding it, so that a cell bound to it later
+     * only has to decode. Prefetches run after everything a view asked for and at most
+     * {@link #MAX_PREFETCHES_IN_FLIGHT} at a time; the most recent prefetch goes first.
+     */
+    public void prefetch(String url) {
+        if (prefetched.get(url) != null || prefetches.containsKey(url) || diskCache.contains(url)) {
+            return;
+        }
+        prefetched.put(url, Boolean.TRUE);
+
+        ScheduledRequest scheduled = new ScheduledRequest(url, new PrefetchRequest(url, diskCache,
+                response -> onPrefetchDone(url),
+                error -> onPrefetchDone(url)), true);
+        scheduled.sequence = ++sequence;
+        prefetches.put(url, scheduled);
+        pending.add(scheduled);
+
+        if (prefetches.size() > MAX_PENDING_PREFETCHES) {
+            dropOldestPendingPrefetch();
+        }
+
+        dispatch();
+    }
+
+    @Override
+    protected Request<Bitmap> makeImageRequest(String requestUrl, int maxWidth, int maxHeight, String cacheKey) {
+        return new ThumbnailRequest(requestUrl, maxWidth, maxHeight, Bitmap.Config.RGB_565, diskCache,
+                response -> onGetImageSuccess(cacheKey, response),
+                error -> onGetImageError(cacheKey, error));
+    }
+
+    @Override
+    protected void enqueueRequest(String cacheKey, Request<Bitmap> request) {
+        // A view wants it now, a prefetch that hasn't started yet is of no use anymore
+        ScheduledRequest prefetch = prefetches.get(request.getUrl());
+        if (prefetch != null && pending.remove(prefetch)) {
+            prefetches.remove(prefetch.key);
+        }
+
+        if (diskCache.contains(request.getUrl())) {
+            loadFromDisk(cacheKey, (ThumbnailRequest) request);
+        } else {
+            schedule(cacheKey, request);
+        }
+    }
+
+    private void schedule(String cacheKey, Request<Bitmap> request) {
+        ScheduledRequest scheduled = new ScheduledRequest(cacheKey, request, false);
+        scheduled.sequence = ++sequence;
+        images.put(cacheKey, scheduled);
+        pending.add(scheduled);
+    }
+
+    private void loadFromDisk(String cacheKey, ThumbnailRequest request) {
+        ImageDecoder.execute(() -> {
+            Bitmap bitmap = request.isCanceled() ? null : request.decodeFromDisk();
+
+            AndroidUtils.runOnUiThread(() -> {
+                if (request.isCanceled()) {
+                    return;
+                }
+
+                if (bitmap != null) {
+                    onGetImageSuccess(cacheKey, bitmap);
+                } else {
+                    // Evicted in the meantime, or unreadable
+                    schedule(cacheKey, request);
+                    dispatch();
+                }
+            });
+        });
+    }
+
+    @Override
+    protected void onGetImageSuccess(String cacheKey, Bitmap response) {
+        super.onGetImageSuccess(cacheKey, response);
+        onImageDone(cacheKey);
+    }
+
+    @Override
+    protected void onGetImageError(String cacheKey, VolleyError error) {
+        super.onGetImageError(cacheKey, error);
+        onImageDone(cacheKey);
+    }
+
+    private void onImageDone(String cacheKey) {
+        ScheduledRequest scheduled = images.remove(cacheKey);
+        if (scheduled != null) {
+            inFlight.remove(scheduled);
+        }
+        dispatch();
+    }
+
+    private void onPrefetchDone(String url) {
+        ScheduledRequest scheduled = prefetches.remove(url);
+        if (scheduled != null) {
+            inFlight.remove(scheduled);
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        // Cancelled requests never call back, reap them here
+        int prefetchesInFlight = 0;
+        for (Iterator<ScheduledRequest> iterator = inFlight.iterator(); iterator.hasNext(); ) {
+            ScheduledRequest scheduled = iterator.next();
+            if (scheduled.request.isCanceled()) {
+                iterator.remove();
+                forget(scheduled);
+            } else if (scheduled.prefetch) {
+                prefetchesInFlight++;
+            }
+        }
+
+        while (inFlight.size() < MAX_IN_FLIGHT) {
+            ScheduledRequest next = null;
+            int nextPriority = -1;
+            for (Iterator<ScheduledRequest> iterator = pending.iterator(); iterator.hasNext(); ) {
+                ScheduledRequest scheduled = iterator.next();
+                if (scheduled.request.isCanceled()) {
+                    iterator.remove();
+                    forget(scheduled);
+                    continue;
+                }
+
+                if (scheduled.prefetch && prefetchesInFlight >= MAX_PREFETCHES_IN_FLIGHT) {
+                    continue;
+                }
+
+                int priority = scheduled.priority();
+                if (priority > nextPriority || (priority == nextPriority && scheduled.sequence > next.sequence)) {
+                    next = scheduled;
+                    nextPriority = priority;
+                }
+            }
+
+            if (next == null) {
+                break;
+            }
+
+            pending.remove(next);
+            inFlight.add(next);
+            if (next.prefetch) {
+                prefetchesInFlight++;
+            }
+            requestQueue.add(next.request);
+        }
+    }
+
+    private void dropOldestPendingPrefetch() {
+        ScheduledRequest oldest = null;
+        for (ScheduledRequest scheduled : pending) {
+            if (scheduled.prefetch && (oldest == null || scheduled.sequence < oldest.sequence)) {
+                oldest = scheduled;
+            }
+        }
+
+        if (oldest != null) {
+            pending.remove(oldest);
+            prefetches.remove(oldest.key);
+            prefetched.remove(oldest.key);
+        }
+    }
+
+    private void forget(ScheduledRequest scheduled) {
+        Map<String, ScheduledRequest> map = scheduled.prefetch ? prefetches : images;
+        if (map.get(scheduled.key) == scheduled) {
+            map.remove(scheduled.key);
+        }
+    }
+
+    private static class ScheduledRequest {
+        // The cache key for images, the url for prefetches
+        private final String key;
+        private final Request<?> request;
+        private final boolean prefetch;
+        private final Set<ImageContainer> containers = new HashSet<>();
+        private final Set<ImageContainer> hidden = new HashSet<>();
+        private int sequence;
+
+        private ScheduledRequest(String key, Request<?> request, boolean prefetch) {
+            this.key = key;
+            this.request = request;
+            this.prefetch = prefetch;
+        }
+
+        private int priority() {
+            if (prefetch) {
+                return PRIORITY_PREFETCH;
+            }
+            // Containers are only known after ImageLoader.get returns, count that as visible
+            return containers.isEmpty() || hidden.size() < containers.size() ?
+                    PRIORITY_VISIBLE : PRIORITY_OFFSCREEN;
+        }
+    }
+
+    /**
+     * Fetches a url only to get it into the disk cache, the response body is not parsed.
+     */
+    private static class PrefetchRequest extends Request<Void> {
+        private final ThumbnailDiskCache diskCache;
+        private final Listener<Void> listener;
+
+        private PrefetchRequest(String url, ThumbnailDiskCache diskCache,
+                                Listener<Void> listener, ErrorListener errorListener) {
+            super(Method.GET, url, errorListener);
+            setShouldCache(false);
+            this.diskCache = diskCache;
+            this.listener = listener;
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            diskCache.put(getUrl(), response.data);
+            return Response.success(null, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+            listener.onResponse(response);
+        }
+
+        @Override
+        public Priority getPriority() {
+            return Priority.LOW;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.net;
+
+import android.graphics.Bitmap;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.github.adamantcheese.chan.core.cache.ThumbnailDiskCache;
+import com.github.adamantcheese.chan.utils.ImageDecoder;
+
+/**
+ * A request for an image that is decoded to fit the given size, used by the {@link ThumbnailLoader}
+ * in place of Volley's ImageRequest. That one decoded a single image at a time app wide, this
+ * decodes with {@link ImageDecoder}, in parallel up to its limits.
+ * <p>
+ * Responses are stored in the {@link ThumbnailDiskCache} instead of Volley's cache, where they
+ * would push out the api responses.
+ */
+public class ThumbnailRequest extends Request<Bitmap> {
+    private static final int TIMEOUT_MS = 1000;
+    private static final int MAX_RETRIES = 2;
+    private static final float BACKOFF_MULTIPLIER = 2f;
+
+    private final Listener<Bitmap> listener;
+    private final int maxWidth;
+    private final int maxHeight;
+    private final Bitmap.Config config;
+    private final ThumbnailDiskCache diskCache;
+
+    public ThumbnailRequest(String url, int maxWidth, int maxHeight, Bitmap.Config config,
+                            ThumbnailDiskCache diskCache,
+                            Listener<Bitmap> listener, ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        setRetryPolicy(new DefaultRetryPolicy(TIMEOUT_MS, MAX_RETRIES, BACKOFF_MULTIPLIER));
+        setShouldCache(false);
+        this.listener = listener;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.config = config;
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Decodes the thumbnail from the disk cache, on the calling thread.
+     *
+     * @return the bitmap, or null if it's not cached anymore or failed to decode.
+     */
+    public Bitmap decodeFromDisk() {
+        byte[] data = diskCache.get(getUrl());
+        return data == null ? null : ImageDecoder.decode(data, maxWidth, maxHeight, config);
+    }
+
+    @Override
+    public Priority getPriority() {
+        return Priority.LOW;
+    }
+
+    @Override
+    protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
+        Bitmap bitmap = ImageDecoder.decode(response.data, maxWidth, maxHeight, config);
+        if (bitmap == null) {
+            return Response.error(new ParseError(response));
+        } else {
+            diskCache.put(getUrl(), response.data);
+            return Response.success(bitmap, HttpHeaderParser.parseCacheHeaders(response));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(Bitmap response) {
+        listener.onResponse(response);
+    }
+}
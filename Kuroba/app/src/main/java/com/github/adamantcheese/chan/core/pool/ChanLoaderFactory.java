@@ -16,27 +16,50 @@
  */
 package com.github.adamantcheese.chan.core.pool;
 
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
 import android.util.LruCache;
 
+import com.github.adamantcheese.chan.core.model.ChanThread;
+import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.orm.Loadable;
 import com.github.adamantcheese.chan.core.site.loader.ChanThreadLoader;
+import com.github.adamantcheese.chan.ui.text.StyledText;
 import com.github.adamantcheese.chan.utils.Logger;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
- * ChanLoaderFactory is a factory for ChanLoaders. ChanLoaders for threads are cached.
+ * ChanLoaderFactory is a factory for ChanLoaders. Released ChanLoaders are cached.
  * <p>Each reference to a loader is a {@link ChanThreadLoader.ChanLoaderCallback}, these
  * references can be obtained with {@link #obtain(Loadable, ChanThreadLoader.ChanLoaderCallback)}} and released
  * with {@link #release(ChanThreadLoader, ChanThreadLoader.ChanLoaderCallback)}.
+ * <p>The cache is bounded by the estimated memory the loaded posts hold on to, not by count, so a
+ * few huge threads don't take the heap and many small ones all stay. Catalog loaders are cached
+ * too, but only for {@link #CATALOG_TTL} since a catalog is not refreshed when it's reused.
+ * The cache shrinks on {@link #onTrimMemory(int)}.
  */
 public class ChanLoaderFactory {
     private static final String TAG = "ChanLoaderFactory";
-    public static final int THREAD_LOADERS_CACHE_SIZE = 25;
+    // In KB, like the size of the entries
+    private static final int CACHE_SIZE = (int) (Runtime.getRuntime().maxMemory() / 1024 / 16);
+    private static final long CATALOG_TTL = 2 * 60 * 1000;
+
+    // Rough retained sizes, in bytes
+    private static final int POST_SIZE = 1024;
+    private static final int SPAN_SIZE = 64;
+    private static final int IMAGE_SIZE = 512;
 
     private Map<Loadable, ChanThreadLoader> threadLoaders = new HashMap<>();
-    private LruCache<Loadable, ChanThreadLoader> threadLoadersCache = new LruCache<>(THREAD_LOADERS_CACHE_SIZE);
+    private LruCache<Loadable, CachedLoader> loadersCache = new LruCache<Loadable, CachedLoader>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Loadable key, CachedLoader value) {
+            return value.size;
+        }
+    };
 
     public ChanThreadLoader obtain(Loadable loadable, ChanThreadLoader.ChanLoaderCallback listener) {
         ChanThreadLoader chanLoader;
@@ -47,9 +70,8 @@ public class ChanLoaderFactory {
 
             chanLoader = threadLoaders.get(loadable);
             if (chanLoader == null) {
-                chanLoader = threadLoadersCache.get(loadable);
+                chanLoader = takeFromCache(loadable);
                 if (chanLoader != null) {
-                    threadLoadersCache.remove(loadable);
                     threadLoaders.put(loadable, chanLoader);
                 }
             }
@@ -59,7 +81,11 @@ public class ChanLoaderFactory {
                 threadLoaders.put(loadable, chanLoader);
             }
         } else {
-            chanLoader = new ChanThreadLoader(loadable);
+            // Catalog loaders in use are not shared, each user loads on its own
+            chanLoader = takeFromCache(loadable);
+            if (chanLoader == null) {
+                chanLoader = new ChanThreadLoader(loadable);
+            }
         }
 
         chanLoader.addListener(listener);
@@ -79,10 +105,102 @@ public class ChanLoaderFactory {
 
             if (chanLoader.removeListener(listener)) {
                 threadLoaders.remove(loadable);
-                threadLoadersCache.put(loadable, chanLoader);
+                putInCache(chanLoader);
             }
         } else {
-            chanLoader.removeListener(listener);
+            if (chanLoader.removeListener(listener)) {
+                putInCache(chanLoader);
+            }
+        }
+    }
+
+    /**
+     * Called from the application's {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            loadersCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            loadersCache.trimToSize(CACHE_SIZE / 2);
+        } else {
+            removeExpiredCatalogs();
+        }
+        Logger.d(TAG, "Trimmed for level " + level + ", " + loadersCache.size() + "KB in " + loadersCache.snapshot().size() + " loaders left");
+    }
+
+    private ChanThreadLoader takeFromCache(Loadable loadable) {
+        CachedLoader cached = loadersCache.remove(loadable);
+        if (cached == null || cached.isExpired()) {
+            return null;
+        }
+        return cached.loader;
+    }
+
+    private void putInCache(ChanThreadLoader chanLoader) {
+        // Nothing to show from an empty loader, a new one is as good
+        if (chanLoader.getThread() == null) {
+            return;
+        }
+
+        removeExpiredCatalogs();
+        loadersCache.put(chanLoader.getLoadable(), new CachedLoader(chanLoader));
+    }
+
+    private void removeExpiredCatalogs() {
+        List<Loadable> expired = new ArrayList<>();
+        for (Map.Entry<Loadable, CachedLoader> entry : loadersCache.snapshot().entrySet()) {
+            if (entry.getValue().isExpired()) {
+                expired.add(entry.getKey());
+            }
+        }
+        for (Loadable loadable : expired) {
+            loadersCache.remove(loadable);
+        }
+    }
+
+    /**
+     * Estimates the memory held by the posts of the loader, in KB. A released loader doesn't
+     * change anymore, so this is only calculated once.
+     */
+    private static int estimateSize(ChanThreadLoader chanLoader) {
+        ChanThread thread = chanLoader.getThread();
+        if (thread == null) {
+            return 1;
+        }
+
+        long bytes = 0;
+        for (Post post : thread.posts) {
+            bytes += POST_SIZE;
+            bytes += textSize(post.comment) + textSize(post.subjectSpan) + textSize(post.nameTripcodeIdCapcodeSpan);
+            // The search index keeps its own copy of the text
+            bytes += post.comment.length() * 2;
+            bytes += post.images.size() * IMAGE_SIZE;
+        }
+        return (int) Math.max(1, bytes / 1024);
+    }
+
+    private static long textSize(StyledText text) {
+        if (text == null) {
+            return 0;
+        }
+
+        // Four ints per run, the spans are only made and kept for the posts that were shown
+        return text.length() * 2 + text.getRuns().length * 4 + text.getLinkables().size() * SPAN_SIZE;
+    }
+
+    private static class CachedLoader {
+        private final ChanThreadLoader loader;
+        private final int size;
+        private final long releasedAt;
+
+        private CachedLoader(ChanThreadLoader loader) {
+            this.loader = loader;
+            size = estimateSize(loader);
+            releasedAt = SystemClock.elapsedRealtime();
+        }
+
+        private boolean isExpired() {
+            return loader.getLoadable().isCatalogMode() && SystemClock.elapsedRealtime() - releasedAt > CATALOG_TTL;
         }
     }
 }
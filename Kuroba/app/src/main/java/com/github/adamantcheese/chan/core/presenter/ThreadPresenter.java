@@ -146,6 +146,8 @@ public class ThreadPresenter implements ChanThreadLoader.ChanLoaderCallback,
             this.loadable = loadable;
 
             chanLoader = chanLoaderFactory.obtain(loadable, this);
+            // Needed to filter the posts once they are loaded
+            databaseManager.getDatabaseHideManager().preloadBoard(loadable.siteId, loadable.boardCode);
 
             threadPresenterCallback.showLoading();
         }
@@ -289,8 +291,16 @@ public class ThreadPresenter implements ChanThreadLoader.ChanLoaderCallback,
             chanLoader.setTimer();
         }
 
-        showPosts();
+        // Scrolling to the marked post needs the posts to be in the list
+        Loadable shownLoadable = loadable;
+        showPosts(() -> {
+            if (loadable == shownLoadable) {
+                onPostsShown(result);
+            }
+        });
+    }
 
+    private void onPostsShown(ChanThread result) {
         if (loadable.isThreadMode()) {
             int lastLoaded = loadable.lastLoaded;
             List<Post> posts = result.posts;
@@ -328,6 +338,11 @@ public class ThreadPresenter implements ChanThreadLoader.ChanLoaderCallback,
         threadPresenterCallback.showError(error);
     }
 
+    @Override
+    public boolean isForeground() {
+        return true;
+    }
+
     /*
      * PostAdapter callbacks
      */
@@ -621,13 +636,13 @@ public class ThreadPresenter implements ChanThreadLoader.ChanLoaderCallback,
                 threadPresenterCallback.showThread(thread);
             }
         } else if (linkable.type == PostLinkable.Type.BOARD) {
-            Board board = databaseManager.runTask(databaseManager.getDatabaseBoardManager().getBoard(loadable.site, (String) linkable.value));
+            Board board = databaseManager.runReadTask(databaseManager.getDatabaseBoardManager().getBoard(loadable.site, (String) linkable.value));
             Loadable catalog = databaseManager.getDatabaseLoadableManager().get(Loadable.forCatalog(board));
 
             threadPresenterCallback.showBoard(catalog);
         } else if (linkable.type == PostLinkable.Type.SEARCH) {
             CommentParser.SearchLink search = (CommentParser.SearchLink) linkable.value;
-            Board board = databaseManager.runTask(databaseManager.getDatabaseBoardManager().getBoard(loadable.site, search.board));
+            Board board = databaseManager.runReadTask(databaseManager.getDatabaseBoardManager().getBoard(loadable.site, search.board));
             Loadable catalog = databaseManager.getDatabaseLoadableManager().get(Loadable.forCatalog(board));
 
             threadPresenterCallback.showBoardAndSearch(catalog, search.search);
@@ -810,7 +825,11 @@ public class ThreadPresenter implements ChanThreadLoader.ChanLoaderCallback,
     }
 
     private void showPosts() {
-        threadPresenterCallback.showPosts(chanLoader.getThread(), new PostsFilter(order, searchQuery));
+        showPosts(null);
+    }
+
+    private void showPosts(Runnable onPostsShown) {
+        threadPresenterCallback.showPosts(chanLoader.getThread(), new PostsFilter(order, searchQuery), onPostsShown);
     }
 
     private void addHistory() {
@@ -834,7 +853,7 @@ public class ThreadPresenter implements ChanThreadLoader.ChanLoaderCallback,
         if (wholeChain) {
             ChanThread thread = chanLoader.getThread();
             if (thread != null) {
-                posts.addAll(PostUtils.findPostWithReplies(post.no, thread.posts));
+                posts.addAll(PostUtils.findPostWithReplies(post.no, thread));
             }
         } else {
             posts.add(PostUtils.findPostById(post.no, chanLoader.getThread()));
@@ -874,7 +893,12 @@ public class ThreadPresenter implements ChanThreadLoader.ChanLoaderCallback,
     }
 
     public interface ThreadPresenterCallback {
-        void showPosts(ChanThread thread, PostsFilter filter);
+        /**
+         * Show the posts of the thread, they are filtered in the background first.
+         *
+         * @param onPostsShown called once the posts are in the list, can be null.
+         */
+        void showPosts(ChanThread thread, PostsFilter filter, Runnable onPostsShown);
 
         void postClicked(Post post);
 
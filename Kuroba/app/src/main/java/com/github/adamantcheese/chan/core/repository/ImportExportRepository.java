@@ -288,6 +288,7 @@ public class ImportExportRepository {
                     exportedPostHide.getNo()
             ));
         }
+        databaseManager.getDatabaseHideManager().invalidateCache();
 
         ChanSettings.deserializeFromString(appSettingsParam.getSettings());
     }
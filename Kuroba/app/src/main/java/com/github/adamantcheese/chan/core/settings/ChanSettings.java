@@ -162,6 +162,8 @@ public class ChanSettings {
     public static final BooleanSetting saveThreadFolder;
     public static final BooleanSetting videoDefaultMuted;
     public static final BooleanSetting videoAutoLoop;
+    public static final IntegerSetting fileCacheSize;
+    public static final IntegerSetting thumbnailPrefetchRows;
 
     public static final BooleanSetting watchEnabled;
     public static final BooleanSetting watchBackground;
@@ -245,6 +247,8 @@ public class ChanSettings {
         saveThreadFolder = new BooleanSetting(p, "preference_save_subthread", false);
         videoDefaultMuted = new BooleanSetting(p, "preference_video_default_muted", true);
         videoAutoLoop = new BooleanSetting(p, "preference_video_loop", true);
+        fileCacheSize = new IntegerSetting(p, "preference_file_cache_size", 100); //100 MB default
+        thumbnailPrefetchRows = new IntegerSetting(p, "preference_thumbnail_prefetch_rows", 2);
 
         watchEnabled = new BooleanSetting(p, "preference_watch_enabled", false);
         watchEnabled.addCallback((setting, value) ->
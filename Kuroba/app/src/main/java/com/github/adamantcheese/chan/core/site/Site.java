@@ -59,7 +59,16 @@ public interface Site {
          * @see SiteActions#login(LoginRequest, SiteActions.LoginListener)
          * @see SiteEndpoints#login()
          */
-        LOGIN
+        LOGIN,
+
+        /**
+         * This site has an index of the threads on a board with their last modified times, used
+         * by the watcher to only load the threads that changed.
+         *
+         * @see SiteActions#pages(Board, SiteActions.PagesListener)
+         * @see SiteEndpoints#pages(Board)
+         */
+        THREAD_INDEX
     }
 
     /**
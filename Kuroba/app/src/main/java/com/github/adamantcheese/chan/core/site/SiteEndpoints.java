@@ -34,6 +34,14 @@ public interface SiteEndpoints {
 
     HttpUrl thread(Board board, Loadable loadable);
 
+    /**
+     * Url to a partial thread containing the op and the last few replies, used for refreshing
+     * an already loaded thread.
+     *
+     * @return the url, or {@code null} if the site has no such endpoint.
+     */
+    HttpUrl threadTail(Board board, Loadable loadable);
+
     HttpUrl imageUrl(Post.Builder post, Map<String, String> arg);
 
     HttpUrl thumbnailUrl(Post.Builder post, boolean spoiler, Map<String, String> arg);
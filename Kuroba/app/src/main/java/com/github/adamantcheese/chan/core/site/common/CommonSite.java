@@ -331,6 +331,11 @@ public abstract class CommonSite extends SiteBase {
             return null;
         }
 
+        @Override
+        public HttpUrl threadTail(Board board, Loadable loadable) {
+            return null;
+        }
+
         @Override
         public HttpUrl imageUrl(Post.Builder post, Map<String, String> arg) {
             return null;
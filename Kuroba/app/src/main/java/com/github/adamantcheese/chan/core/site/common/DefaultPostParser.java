@@ -21,24 +21,24 @@ import android.graphics.BitmapFactory;
 import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.TextUtils;
-import android.text.style.BackgroundColorSpan;
 import android.text.style.ImageSpan;
 import android.util.ArrayMap;
 
 import androidx.annotation.AnyThread;
 
-import com.github.adamantcheese.chan.Chan;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.settings.ChanSettings;
 import com.github.adamantcheese.chan.core.site.parser.CommentParser;
 import com.github.adamantcheese.chan.core.site.parser.CommentParserHelper;
+import com.github.adamantcheese.chan.core.site.parser.CommentTokenizer;
 import com.github.adamantcheese.chan.core.site.parser.PostParser;
-import com.github.adamantcheese.chan.ui.text.AbsoluteSizeSpanHashed;
 import com.github.adamantcheese.chan.ui.text.ForegroundColorSpanHashed;
-import com.github.adamantcheese.chan.ui.theme.Theme;
-import com.github.adamantcheese.chan.ui.theme.ThemeHelper;
+import com.github.adamantcheese.chan.ui.text.StyledText;
+import com.github.adamantcheese.chan.utils.LatencyStats;
 import com.github.adamantcheese.chan.utils.Logger;
-import com.vdurmont.emoji.EmojiParser;
+import com.vdurmont.emoji.Emoji;
+import com.vdurmont.emoji.EmojiManager;
+import com.vdurmont.emoji.Fitzpatrick;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -50,7 +50,9 @@ import org.jsoup.parser.Parser;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.github.adamantcheese.chan.utils.AndroidUtils.getAppContext;
 import static com.github.adamantcheese.chan.utils.AndroidUtils.getRes;
@@ -60,6 +62,18 @@ import static com.github.adamantcheese.chan.utils.AndroidUtils.sp;
 public class DefaultPostParser implements PostParser {
     private static final String TAG = "DefaultPostParser";
 
+    // Guarded by themselves
+    private static final LatencyStats tokenizerLatency = new LatencyStats();
+    private static final LatencyStats jsoupLatency = new LatencyStats();
+
+    // Longest alias in the emoji list plus a skin tone, anything longer is not looked up
+    private static final int MAX_ALIAS_LENGTH = 48;
+
+    private static final AtomicLong textsScanned = new AtomicLong();
+    private static final AtomicLong textsWithoutColon = new AtomicLong();
+    private static final AtomicLong textsWithoutLink = new AtomicLong();
+    private static final AtomicLong textsUnchanged = new AtomicLong();
+
     private CommentParser commentParser;
 
     public DefaultPostParser(CommentParser commentParser) {
@@ -67,11 +81,7 @@ public class DefaultPostParser implements PostParser {
     }
 
     @Override
-    public Post parse(Theme theme, Post.Builder builder, Callback callback) {
-        if (theme == null) {
-            theme = Chan.injector().instance(ThemeHelper.class).getTheme();
-        }
-
+    public Post parse(Post.Builder builder, Callback callback) {
         if (!TextUtils.isEmpty(builder.name)) {
             builder.name = Parser.unescapeEntities(builder.name, false);
         }
@@ -80,10 +90,10 @@ public class DefaultPostParser implements PostParser {
             builder.subject = Parser.unescapeEntities(builder.subject, false);
         }
 
-        parseSpans(theme, builder);
+        parseSpans(builder);
 
         if (builder.comment != null) {
-            builder.comment = parseComment(theme, builder, builder.comment, callback);
+            builder.comment = parseComment(builder, builder.comment, callback);
         } else {
             builder.comment = new SpannableString("");
         }
@@ -94,12 +104,12 @@ public class DefaultPostParser implements PostParser {
     /**
      * Parse the comment, subject, tripcodes, names etc. as spannables.<br>
      * This is done on a background thread for performance, even when it is UI code.<br>
-     * The results will be placed on the Post.*Span members.
+     * The results will be placed on the Post.*Span members. The theme colors and sizes are
+     * {@link StyledText} placeholders, they are filled in when the post is shown.
      *
-     * @param theme   Theme to use for parsing
      * @param builder Post builder to get data from
      */
-    private void parseSpans(Theme theme, Post.Builder builder) {
+    private void parseSpans(Post.Builder builder) {
         boolean anonymize = ChanSettings.anonymize.get();
         boolean anonymizeIds = ChanSettings.anonymizeIds.get();
 
@@ -119,25 +129,23 @@ public class DefaultPostParser implements PostParser {
         SpannableString idSpan = null;
         SpannableString capcodeSpan = null;
 
-        int detailsSizePx = sp(Integer.parseInt(ChanSettings.fontSize.get()) - 4);
-
         if (!TextUtils.isEmpty(builder.subject)) {
             subjectSpan = new SpannableString(builder.subject);
             // Do not set another color when the post is in stub mode, it sets text_color_secondary
             if (!builder.filterStub) {
-                subjectSpan.setSpan(new ForegroundColorSpanHashed(theme.subjectColor), 0, subjectSpan.length(), 0);
+                subjectSpan.setSpan(StyledText.span(StyledText.SUBJECT_COLOR), 0, subjectSpan.length(), 0);
             }
         }
 
         if (!TextUtils.isEmpty(builder.name) && (!builder.name.equals(defaultName) || ChanSettings.showAnonymousName.get())) {
             nameSpan = new SpannableString(builder.name);
-            nameSpan.setSpan(new ForegroundColorSpanHashed(theme.nameColor), 0, nameSpan.length(), 0);
+            nameSpan.setSpan(StyledText.span(StyledText.NAME_COLOR), 0, nameSpan.length(), 0);
         }
 
         if (!TextUtils.isEmpty(builder.tripcode)) {
             tripcodeSpan = new SpannableString(builder.tripcode);
-            tripcodeSpan.setSpan(new ForegroundColorSpanHashed(theme.nameColor), 0, tripcodeSpan.length(), 0);
-            tripcodeSpan.setSpan(new AbsoluteSizeSpanHashed(detailsSizePx), 0, tripcodeSpan.length(), 0);
+            tripcodeSpan.setSpan(StyledText.span(StyledText.NAME_COLOR), 0, tripcodeSpan.length(), 0);
+            tripcodeSpan.setSpan(StyledText.span(StyledText.DETAILS_SIZE), 0, tripcodeSpan.length(), 0);
         }
 
         if (!TextUtils.isEmpty(builder.posterId)) {
@@ -153,17 +161,17 @@ public class DefaultPostParser implements PostParser {
             //noinspection NumericOverflow
             int idColor = (0xff << 24) + (r << 16) + (g << 8) + b;
             boolean lightColor = (r * 0.299f) + (g * 0.587f) + (b * 0.114f) > 125f;
-            int idBgColor = lightColor ? theme.idBackgroundLight : theme.idBackgroundDark;
+            int idBackground = lightColor ? StyledText.ID_BACKGROUND_LIGHT : StyledText.ID_BACKGROUND_DARK;
 
             idSpan.setSpan(new ForegroundColorSpanHashed(idColor), 0, idSpan.length(), 0);
-            idSpan.setSpan(new BackgroundColorSpan(idBgColor), 0, idSpan.length(), 0);
-            idSpan.setSpan(new AbsoluteSizeSpanHashed(detailsSizePx), 0, idSpan.length(), 0);
+            idSpan.setSpan(StyledText.span(idBackground), 0, idSpan.length(), 0);
+            idSpan.setSpan(StyledText.span(StyledText.DETAILS_SIZE), 0, idSpan.length(), 0);
         }
 
         if (!TextUtils.isEmpty(builder.moderatorCapcode)) {
             capcodeSpan = new SpannableString("Capcode: " + builder.moderatorCapcode);
-            capcodeSpan.setSpan(new ForegroundColorSpanHashed(theme.capcodeColor), 0, capcodeSpan.length(), 0);
-            capcodeSpan.setSpan(new AbsoluteSizeSpanHashed(detailsSizePx), 0, capcodeSpan.length(), 0);
+            capcodeSpan.setSpan(StyledText.span(StyledText.CAPCODE_COLOR), 0, capcodeSpan.length(), 0);
+            capcodeSpan.setSpan(StyledText.span(StyledText.DETAILS_SIZE), 0, capcodeSpan.length(), 0);
         }
 
         CharSequence nameTripcodeIdCapcodeSpan = new SpannableString("");
@@ -186,25 +194,40 @@ public class DefaultPostParser implements PostParser {
         builder.spans(subjectSpan, nameTripcodeIdCapcodeSpan);
     }
 
-    private CharSequence parseComment(Theme theme, Post.Builder post, CharSequence commentRaw, Callback callback) {
+    private CharSequence parseComment(Post.Builder post, CharSequence commentRaw, Callback callback) {
         CharSequence total = new SpannableString("");
 
         try {
-            String comment = EmojiParser.parseToUnicode(commentRaw.toString()).replace("<wbr>", "");
+            String comment = commentRaw.toString().replace("<wbr>", "");
+
+            long start = System.nanoTime();
+            CharSequence tokenized = CommentTokenizer.parse(comment, commentParser, post, callback,
+                    (builder, text) -> parseText(builder, text));
+            if (tokenized != null) {
+                synchronized (tokenizerLatency) {
+                    tokenizerLatency.add(System.nanoTime() - start);
+                }
+                return tokenized;
+            }
 
+            // Markup the tokenizer doesn't handle, build the whole document
             Document document = Jsoup.parseBodyFragment(comment);
 
             List<Node> nodes = document.body().childNodes();
             List<CharSequence> texts = new ArrayList<>(nodes.size());
 
             for (Node node : nodes) {
-                CharSequence nodeParsed = parseNode(theme, post, callback, node);
+                CharSequence nodeParsed = parseNode(post, callback, node);
                 if (nodeParsed != null) {
                     texts.add(nodeParsed);
                 }
             }
 
             total = TextUtils.concat(texts.toArray(new CharSequence[0]));
+
+            synchronized (jsoupLatency) {
+                jsoupLatency.add(System.nanoTime() - start);
+            }
         } catch (Exception e) {
             Logger.e(TAG, "Error parsing comment html", e);
         }
@@ -212,14 +235,9 @@ public class DefaultPostParser implements PostParser {
         return total;
     }
 
-    private CharSequence parseNode(Theme theme, Post.Builder post, Callback callback, Node node) throws IOException {
+    private CharSequence parseNode(Post.Builder post, Callback callback, Node node) throws IOException {
         if (node instanceof TextNode) {
-            String text = CustomEmoji.preReplace(((TextNode) node).text());
-            SpannableString spannable = new SpannableString(text);
-            CustomEmoji.postReplace(spannable);
-            CommentParserHelper.detectLinks(theme, post, text, spannable);
-
-            return spannable;
+            return parseText(post, ((TextNode) node).text());
         } else if (node instanceof Element) {
             String nodeName = node.nodeName();
 
@@ -228,7 +246,7 @@ public class DefaultPostParser implements PostParser {
             List<CharSequence> texts = new ArrayList<>(innerNodes.size() + 1);
 
             for (Node innerNode : innerNodes) {
-                CharSequence nodeParsed = parseNode(theme, post, callback, innerNode);
+                CharSequence nodeParsed = parseNode(post, callback, innerNode);
                 if (nodeParsed != null) {
                     texts.add(nodeParsed);
                 }
@@ -239,7 +257,6 @@ public class DefaultPostParser implements PostParser {
 
             CharSequence result = commentParser.handleTag(
                     callback,
-                    theme,
                     post,
                     nodeName,
                     allInnerText,
@@ -254,34 +271,184 @@ public class DefaultPostParser implements PostParser {
         }
     }
 
-    private static class CustomEmoji {
-        private static Map<String, Character> emojiUnicodeMap = new ArrayMap<>();
-        private static Map<Character, ImageSpan> unicodeimageMap = new ArrayMap<>();
+    /**
+     * Replaces emoji aliases, marks custom emoji and finds links in one pass over the text.
+     * An alias needs a ':' and a link a "://", most text has neither and is returned as is.
+     */
+    private CharSequence parseText(Post.Builder post, String text) {
+        textsScanned.incrementAndGet();
+
+        StringBuilder replaced = null;
+        int copiedUntil = 0;
+        boolean sawColon = false;
+        boolean sawLink = false;
+        List<Integer> customEmoji = null;
+
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == ':') {
+                sawColon = true;
+                if (!sawLink && text.startsWith("//", i + 1)) {
+                    sawLink = true;
+                }
 
-        static {
-            try {
-                emojiUnicodeMap.put(":you:", '\uE000');
-                unicodeimageMap.put('\uE000', setupSpan("emoji/you.png"));
-            } catch (IOException e) {
-                throw new Error("Can't load images????");
+                int end = findAliasEnd(text, i);
+                if (end < 0) {
+                    continue;
+                }
+
+                String alias = text.substring(i + 1, end);
+                Character custom = CustomEmoji.emojiUnicodeMap.get(alias);
+                String unicode = custom != null ? custom.toString() : getEmojiUnicode(alias);
+                if (unicode == null) {
+                    continue;
+                }
+
+                if (replaced == null) {
+                    replaced = new StringBuilder(length);
+                }
+                replaced.append(text, copiedUntil, i);
+                if (custom != null) {
+                    if (customEmoji == null) {
+                        customEmoji = new ArrayList<>();
+                    }
+                    customEmoji.add(replaced.length());
+                }
+                replaced.append(unicode);
+                copiedUntil = end + 1;
+                // the closing ':' is consumed, continue after it
+                i = end;
+            } else if (c >= '\uE000' && c <= '\uF8FF' && CustomEmoji.unicodeFileMap.containsKey(c)) {
+                if (customEmoji == null) {
+                    customEmoji = new ArrayList<>();
+                }
+                customEmoji.add((replaced == null ? 0 : replaced.length()) + i - copiedUntil);
             }
         }
 
-        protected static String preReplace(String text) {
-            for (String alias : emojiUnicodeMap.keySet()) {
-                text = text.replaceAll(alias, emojiUnicodeMap.get(alias).toString());
-            }
+        if (!sawColon) {
+            textsWithoutColon.incrementAndGet();
+        }
+        if (!sawLink) {
+            textsWithoutLink.incrementAndGet();
+        }
+
+        if (replaced != null) {
+            replaced.append(text, copiedUntil, length);
+            text = replaced.toString();
+        }
+
+        if (customEmoji == null && !sawLink) {
+            textsUnchanged.incrementAndGet();
             return text;
         }
 
-        protected static void postReplace(SpannableString text) {
-            for (int i = 0; i < text.length(); i++) {
-                for (Character c : unicodeimageMap.keySet()) {
-                    if (text.charAt(i) == c) {
-                        text.setSpan(unicodeimageMap.get(c), i, i + 1, Spanned.SPAN_INCLUSIVE_EXCLUSIVE);
-                    }
+        SpannableString spannable = new SpannableString(text);
+        if (customEmoji != null) {
+            for (int i = 0; i < customEmoji.size(); i++) {
+                int index = customEmoji.get(i);
+                spannable.setSpan(StyledText.span(StyledText.CUSTOM_EMOJI),
+                        index, index + 1, Spanned.SPAN_INCLUSIVE_EXCLUSIVE);
+            }
+        }
+        if (sawLink) {
+            CommentParserHelper.detectLinks(post, text, spannable);
+        }
+
+        return spannable;
+    }
+
+    /**
+     * The index of the ':' closing the alias that starts with the ':' at start, or -1 if there is
+     * no alias there. Aliases are letters, digits, '_', '+' and '-', with an optional "|type_N" skin tone.
+     */
+    private static int findAliasEnd(String text, int start) {
+        int limit = Math.min(text.length(), start + MAX_ALIAS_LENGTH + 2);
+        for (int i = start + 1; i < limit; i++) {
+            char c = text.charAt(i);
+            if (c == ':') {
+                return i > start + 1 ? i : -1;
+            } else if (!Character.isLetterOrDigit(c) && c != '_' && c != '+' && c != '-' && c != '|') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static String getEmojiUnicode(String alias) {
+        Fitzpatrick fitzpatrick = null;
+        int separator = alias.indexOf('|');
+        if (separator >= 0) {
+            fitzpatrick = Fitzpatrick.fitzpatrickFromType(alias.substring(separator + 1));
+            alias = alias.substring(0, separator);
+        }
+
+        Emoji emoji = EmojiManager.getForAlias(alias);
+        if (emoji == null) {
+            return null;
+        }
+        if (fitzpatrick != null && emoji.supportsFitzpatrick()) {
+            return emoji.getUnicode(fitzpatrick);
+        }
+        return emoji.getUnicode();
+    }
+
+    /**
+     * Times of parsing a comment, with the tokenizer and with the Jsoup fallback, and how often
+     * the text scan could skip the emoji and link lookups.
+     */
+    public static String getSummary() {
+        String summary;
+        synchronized (tokenizerLatency) {
+            summary = "Tokenized: " + tokenizerLatency + "\n";
+        }
+        synchronized (jsoupLatency) {
+            summary += "Jsoup: " + jsoupLatency + "\n";
+        }
+        long scanned = Math.max(1, textsScanned.get());
+        summary += String.format(Locale.ENGLISH, "Texts: %d, no ':' %d%%, no link %d%%, unchanged %d%%\n",
+                textsScanned.get(),
+                textsWithoutColon.get() * 100 / scanned,
+                textsWithoutLink.get() * 100 / scanned,
+                textsUnchanged.get() * 100 / scanned);
+        return summary;
+    }
+
+    /**
+     * The image span that replaces the custom emoji character, or null if the character is not a custom emoji.
+     * The image is loaded when the emoji is first shown.
+     */
+    public static ImageSpan getCustomEmojiSpan(char c) {
+        String filename = CustomEmoji.unicodeFileMap.get(c);
+        if (filename == null) {
+            return null;
+        }
+
+        synchronized (CustomEmoji.unicodeimageMap) {
+            ImageSpan span = CustomEmoji.unicodeimageMap.get(c);
+            if (span == null) {
+                try {
+                    span = CustomEmoji.setupSpan(filename);
+                } catch (IOException e) {
+                    Logger.e(TAG, "Error loading custom emoji " + filename, e);
+                    return null;
                 }
+                CustomEmoji.unicodeimageMap.put(c, span);
             }
+            return span;
+        }
+    }
+
+    private static class CustomEmoji {
+        private static Map<String, Character> emojiUnicodeMap = new ArrayMap<>();
+        private static Map<Character, String> unicodeFileMap = new ArrayMap<>();
+        // Guarded by itself
+        private static Map<Character, ImageSpan> unicodeimageMap = new ArrayMap<>();
+
+        static {
+            emojiUnicodeMap.put("you", '\uE000');
+            unicodeFileMap.put('\uE000', "emoji/you.png");
         }
 
         private static ImageSpan setupSpan(String filename) throws IOException {
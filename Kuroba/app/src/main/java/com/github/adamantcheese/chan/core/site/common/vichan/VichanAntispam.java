@@ -16,6 +16,7 @@
  */
 package com.github.adamantcheese.chan.core.site.common.vichan;
 
+import com.github.adamantcheese.chan.Chan;
 import com.github.adamantcheese.chan.utils.Logger;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -45,7 +46,7 @@ public class VichanAntispam {
     private static final String TAG = "Antispam";
     private HttpUrl url;
 
-    private OkHttpClient okHttpClient = new OkHttpClient();
+    private OkHttpClient okHttpClient = Chan.injector().instance(OkHttpClient.class);
 
     private List<String> fieldsToIgnore = new ArrayList<>();
 
@@ -37,10 +37,10 @@ public class HttpCallManager {
     private OkHttpClient client;
 
     @Inject
-    public HttpCallManager() {
+    public HttpCallManager(OkHttpClient okHttpClient) {
         long timeout = ChanSettings.postingTimeout.get().getTimeoutValue();
 
-        client = new OkHttpClient.Builder()
+        client = okHttpClient.newBuilder()
                 .connectTimeout(timeout, TimeUnit.MILLISECONDS)
                 .readTimeout(timeout, TimeUnit.MILLISECONDS)
                 .writeTimeout(timeout, TimeUnit.MILLISECONDS)
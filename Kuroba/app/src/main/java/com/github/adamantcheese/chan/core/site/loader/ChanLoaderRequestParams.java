@@ -22,6 +22,7 @@ import com.android.volley.Response;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.orm.Loadable;
 import com.github.adamantcheese.chan.core.site.parser.ChanReader;
+import com.github.adamantcheese.chan.core.site.parser.PostParseScheduler;
 
 import java.util.List;
 
@@ -41,6 +42,26 @@ public class ChanLoaderRequestParams {
      */
     public final List<Post> cached;
 
+    /**
+     * Only load the tail of the thread and merge it with the cached posts.
+     */
+    public final boolean tail;
+
+    /**
+     * Last-Modified header of the previous response of the same url, or null.
+     */
+    public final String lastModified;
+
+    /**
+     * ETag header of the previous response of the same url, or null.
+     */
+    public final String etag;
+
+    /**
+     * Priority of parsing the posts of this request.
+     */
+    public final PostParseScheduler.Priority parsePriority;
+
     /**
      * Success listener.
      */
@@ -54,12 +75,20 @@ public class ChanLoaderRequestParams {
     public ChanLoaderRequestParams(Loadable loadable,
                                    ChanReader chanReader,
                                    List<Post> cached,
+                                   boolean tail,
+                                   String lastModified,
+                                   String etag,
+                                   PostParseScheduler.Priority parsePriority,
                                    Response.Listener<ChanLoaderResponse> listener,
                                    Response.ErrorListener errorListener) {
 
         this.loadable = loadable;
         this.chanReader = chanReader;
         this.cached = cached;
+        this.tail = tail;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.parsePriority = parsePriority;
         this.listener = listener;
         this.errorListener = errorListener;
     }
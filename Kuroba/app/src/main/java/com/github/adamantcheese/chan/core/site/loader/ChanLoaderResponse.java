@@ -26,6 +26,18 @@ public class ChanLoaderResponse {
     public final Post.Builder op;
     public final List<Post> posts;
 
+    // The server reported no changes since the previous load, op and posts are empty.
+    public boolean notModified = false;
+    // A tail load did not overlap with the cached posts, the thread has to be loaded in full.
+    public boolean needsFullLoad = false;
+
+    // Whether this is the response of the tail of the thread instead of the whole thread.
+    public boolean tail = false;
+
+    // Cache validators of this response, to send along with the next load of the same url.
+    public String lastModified;
+    public String etag;
+
     public ChanLoaderResponse(Post.Builder op, List<Post> posts) {
         this.op = op;
         this.posts = posts;
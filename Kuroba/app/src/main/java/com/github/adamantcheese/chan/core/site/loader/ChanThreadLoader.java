@@ -28,17 +28,21 @@ import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 
 import com.github.adamantcheese.chan.R;
+import com.github.adamantcheese.chan.core.cache.ThreadSnapshotStore;
 import com.github.adamantcheese.chan.core.model.ChanThread;
 import com.github.adamantcheese.chan.core.model.Post;
+import com.github.adamantcheese.chan.core.model.PostSearchIndex;
 import com.github.adamantcheese.chan.core.model.orm.Loadable;
 import com.github.adamantcheese.chan.core.site.parser.ChanReader;
 import com.github.adamantcheese.chan.core.site.parser.ChanReaderRequest;
+import com.github.adamantcheese.chan.core.site.parser.PostParseScheduler;
 import com.github.adamantcheese.chan.ui.helper.PostHelper;
 import com.github.adamantcheese.chan.utils.AndroidUtils;
 import com.github.adamantcheese.chan.utils.Logger;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -55,26 +59,45 @@ import static com.github.adamantcheese.chan.Chan.inject;
  * <p>ChanLoaders can load boards and threads, and return {@link ChanThread} objects on success, through
  * {@link ChanLoaderCallback}.
  * <p>For threads timers can be started with {@link #setTimer()} to do a request later.
+ * <p>Threads are shown from their {@link ThreadSnapshotStore} snapshot when they are first requested,
+ * the request that follows only parses the posts that are not in it.
  */
 public class ChanThreadLoader implements Response.ErrorListener, Response.Listener<ChanLoaderResponse> {
     private static final String TAG = "ChanThreadLoader";
     private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    // Reading or writing the snapshot of a large thread takes a while, it shouldn't hold up the
+    // timers. One thread, so a read comes after the writes queued before it.
+    private static final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+    // Indexes the posts of loads for search, in the order they were loaded
+    private static final ExecutorService searchIndexExecutor = Executors.newSingleThreadExecutor();
 
     private static final int[] WATCH_TIMEOUTS = {10, 15, 20, 30, 60, 90, 120, 180, 240, 300, 600, 1800, 3600};
 
     @Inject
     RequestQueue volleyRequestQueue;
 
+    @Inject
+    ThreadSnapshotStore threadSnapshotStore;
+
     private final List<ChanLoaderCallback> listeners = new ArrayList<>();
     private final Loadable loadable;
     private ChanThread thread;
+    private PostSearchIndex searchIndex = new PostSearchIndex();
 
     private ChanLoaderRequest request;
 
     private int currentTimeout = 0;
     private int lastPostCount;
     private long lastLoadTime;
+    // Validators of the whole thread and of its tail, they only mean something to the url they came from
+    private String lastModified;
+    private String etag;
+    private String tailLastModified;
+    private String tailEtag;
     private ScheduledFuture<?> pendingFuture;
+    private boolean loadingSnapshot;
+    // Incremented to ignore a snapshot that is still being read
+    private int snapshotRequest;
 
     /**
      * <b>Do not call this constructor yourself, obtain ChanLoaders through {@link com.github.adamantcheese.chan.core.pool.ChanLoaderFactory}</b>
@@ -104,6 +127,7 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
         listeners.remove(listener);
         if (listeners.isEmpty()) {
             clearTimer();
+            cancelSnapshotLoad();
             if (request != null) {
                 request.getVolleyRequest().cancel();
                 request = null;
@@ -123,6 +147,7 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
      */
     public void requestData() {
         clearTimer();
+        cancelSnapshotLoad();
 
         if (request != null) {
             request.getVolleyRequest().cancel();
@@ -135,10 +160,21 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
             loadable.listViewTop = 0;
         }
 
+        boolean firstLoad = thread == null;
+
         currentTimeout = -1;
         thread = null;
-
-        request = getData();
+        searchIndex = new PostSearchIndex();
+        lastModified = null;
+        etag = null;
+        tailLastModified = null;
+        tailEtag = null;
+
+        if (firstLoad && loadable.isThreadMode()) {
+            loadSnapshot();
+        } else {
+            request = getData();
+        }
     }
 
     /**
@@ -150,8 +186,8 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
     public boolean requestMoreData() {
         clearPendingRunnable();
 
-        if (loadable.isThreadMode() && request == null) {
-            request = getData();
+        if (loadable.isThreadMode() && request == null && !loadingSnapshot) {
+            request = getData(true);
             return true;
         } else {
             return false;
@@ -212,7 +248,7 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
      * Get the time in milliseconds until another loadMore is recommended
      */
     public long getTimeUntilLoadMore() {
-        if (request != null) {
+        if (request != null || loadingSnapshot) {
             return 0L;
         } else {
             long waitTime = WATCH_TIMEOUTS[Math.max(0, currentTimeout)] * 1000L;
@@ -221,13 +257,24 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
     }
 
     private ChanLoaderRequest getData() {
-        Logger.d(TAG, "Requested " + loadable.boardCode + ", " + loadable.no);
+        return getData(false);
+    }
 
+    /**
+     * @param allowTail load only the tail of the thread if there are posts loaded already and the site supports it.
+     */
+    private ChanLoaderRequest getData(boolean allowTail) {
         List<Post> cached = thread == null ? new ArrayList<>() : thread.posts;
 
+        boolean tail = allowTail && !cached.isEmpty() && loadable.isThreadMode()
+                && loadable.getSite().endpoints().threadTail(loadable.board, loadable) != null;
+
+        Logger.d(TAG, "Requested " + loadable.boardCode + ", " + loadable.no + (tail ? " (tail)" : ""));
+
         ChanReader chanReader = loadable.getSite().chanReader();
 
-        ChanLoaderRequestParams requestParams = new ChanLoaderRequestParams(loadable, chanReader, cached, this, this);
+        ChanLoaderRequestParams requestParams = new ChanLoaderRequestParams(loadable, chanReader, cached, tail,
+                tail ? tailLastModified : lastModified, tail ? tailEtag : etag, getParsePriority(), this, this);
         ChanReaderRequest readerRequest = new ChanReaderRequest(requestParams);
         request = new ChanLoaderRequest(readerRequest);
 
@@ -236,10 +283,46 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
         return request;
     }
 
+    private PostParseScheduler.Priority getParsePriority() {
+        for (ChanLoaderCallback l : listeners) {
+            if (l.isForeground()) {
+                return loadable.isThreadMode()
+                        ? PostParseScheduler.Priority.FOREGROUND_THREAD
+                        : PostParseScheduler.Priority.FOREGROUND_CATALOG;
+            }
+        }
+        return PostParseScheduler.Priority.BACKGROUND;
+    }
+
     @Override
     public void onResponse(ChanLoaderResponse response) {
         request = null;
 
+        if (response.needsFullLoad) {
+            Logger.d(TAG, "Tail did not overlap with the loaded posts, doing a full load");
+            request = getData(false);
+            return;
+        }
+
+        if (response.tail) {
+            tailLastModified = response.lastModified;
+            tailEtag = response.etag;
+        } else {
+            lastModified = response.lastModified;
+            etag = response.etag;
+        }
+
+        if (response.notModified && thread != null) {
+            // Nothing changed on the server, treat it like a load without new posts
+            lastLoadTime = System.currentTimeMillis();
+            currentTimeout = Math.min(currentTimeout + 1, WATCH_TIMEOUTS.length - 1);
+
+            for (ChanLoaderCallback l : listeners) {
+                l.onChanLoaderData(thread);
+            }
+            return;
+        }
+
         if (response.posts.isEmpty()) {
             onErrorResponse(new VolleyError("Post size is 0"));
             return;
@@ -247,10 +330,11 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
 
         if (thread == null) {
             thread = new ChanThread(loadable, new ArrayList<>());
+            thread.searchIndex = searchIndex;
         }
 
-        thread.posts.clear();
-        thread.posts.addAll(response.posts);
+        thread.setPosts(response.posts);
+        updateSearchIndex();
 
         processResponse(response);
 
@@ -262,6 +346,10 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
             post.setTitle(loadable.title);
         }
 
+        if (loadable.isThreadMode()) {
+            saveSnapshot();
+        }
+
         lastLoadTime = System.currentTimeMillis();
 
         int postCount = thread.posts.size();
@@ -320,6 +408,91 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
         }
     }
 
+    /**
+     * Reads the snapshot of the thread in the background and shows it, then requests what changed
+     * since. Without a snapshot this is a normal full load.
+     */
+    private void loadSnapshot() {
+        loadingSnapshot = true;
+        int id = ++snapshotRequest;
+
+        snapshotExecutor.execute(() -> {
+            ThreadSnapshotStore.Snapshot snapshot = threadSnapshotStore.read(loadable);
+            AndroidUtils.runOnUiThread(() -> onSnapshotLoaded(id, snapshot));
+        });
+    }
+
+    private void onSnapshotLoaded(int id, ThreadSnapshotStore.Snapshot snapshot) {
+        if (!loadingSnapshot || id != snapshotRequest) {
+            return;
+        }
+        loadingSnapshot = false;
+
+        if (snapshot == null || snapshot.posts.isEmpty()) {
+            request = getData();
+            return;
+        }
+
+        thread = new ChanThread(loadable, new ArrayList<>());
+        thread.searchIndex = searchIndex;
+        thread.setPosts(snapshot.posts);
+        updateSearchIndex();
+
+        Post op = thread.posts.get(0);
+        thread.op = op;
+        thread.closed = op.isClosed();
+        thread.archived = op.isArchived();
+
+        if (TextUtils.isEmpty(loadable.title)) {
+            loadable.setTitle(PostHelper.getTitle(op, loadable));
+        }
+
+        for (Post post : thread.posts) {
+            post.setTitle(loadable.title);
+        }
+
+        // The validators belong to the snapshot, a 304 means it is still up to date
+        lastModified = snapshot.lastModified;
+        etag = snapshot.etag;
+        tailLastModified = snapshot.tailLastModified;
+        tailEtag = snapshot.tailEtag;
+        lastPostCount = thread.posts.size();
+
+        for (ChanLoaderCallback l : listeners) {
+            l.onChanLoaderData(thread);
+        }
+
+        // The snapshot is the cached list of this request, only new posts are parsed
+        request = getData(true);
+    }
+
+    private void cancelSnapshotLoad() {
+        if (loadingSnapshot) {
+            loadingSnapshot = false;
+            snapshotRequest++;
+        }
+    }
+
+    private void saveSnapshot() {
+        // Copied, the list of the thread changes with the next response
+        List<Post> posts = new ArrayList<>(thread.posts);
+        String snapshotLastModified = lastModified;
+        String snapshotEtag = etag;
+        String snapshotTailLastModified = tailLastModified;
+        String snapshotTailEtag = tailEtag;
+
+        snapshotExecutor.execute(() -> threadSnapshotStore.write(loadable, posts,
+                snapshotLastModified, snapshotEtag, snapshotTailLastModified, snapshotTailEtag));
+    }
+
+    private void updateSearchIndex() {
+        // Copied, the list of the thread changes with the next response
+        List<Post> posts = new ArrayList<>(thread.posts);
+        PostSearchIndex index = searchIndex;
+
+        searchIndexExecutor.execute(() -> index.update(posts));
+    }
+
     private void clearPendingRunnable() {
         if (pendingFuture != null) {
             Logger.d(TAG, "Cleared timer");
@@ -332,6 +505,12 @@ public class ChanThreadLoader implements Response.ErrorListener, Response.Listen
         void onChanLoaderData(ChanThread result);
 
         void onChanLoaderError(ChanLoaderException error);
+
+        /**
+         * Whether the loaded data is shown to the user right now, the posts of foreground loads are
+         * parsed before those of background ones.
+         */
+        boolean isForeground();
     }
 
     public class ChanLoaderException extends Exception {
@@ -17,19 +17,15 @@
 package com.github.adamantcheese.chan.core.site.parser;
 
 
-import android.annotation.SuppressLint;
-
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.orm.Loadable;
+import com.github.adamantcheese.chan.utils.IntObjectMap;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class ChanReaderProcessingQueue {
-    @SuppressLint("UseSparseArrays")
-    private Map<Integer, Post> cachedByNo = new HashMap<>();
+    private IntObjectMap<Post> cachedByNo;
     private Loadable loadable;
 
     private List<Post> toReuse = new ArrayList<>();
@@ -39,6 +35,7 @@ public class ChanReaderProcessingQueue {
     public ChanReaderProcessingQueue(List<Post> toReuse, Loadable loadable) {
         this.loadable = loadable;
 
+        cachedByNo = new IntObjectMap<>(toReuse.size());
         for (int i = 0; i < toReuse.size(); i++) {
             Post cache = toReuse.get(i);
             cachedByNo.put(cache.no, cache);
@@ -18,15 +18,20 @@ package com.github.adamantcheese.chan.core.site.parser;
 
 import android.util.JsonReader;
 
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
 import com.github.adamantcheese.chan.core.database.DatabaseManager;
 import com.github.adamantcheese.chan.core.database.DatabaseSavedReplyManager;
+import com.github.adamantcheese.chan.core.manager.CompiledFilters;
 import com.github.adamantcheese.chan.core.manager.FilterEngine;
 import com.github.adamantcheese.chan.core.model.Post;
-import com.github.adamantcheese.chan.core.model.orm.Filter;
 import com.github.adamantcheese.chan.core.model.orm.Loadable;
 import com.github.adamantcheese.chan.core.net.JsonReaderRequest;
 import com.github.adamantcheese.chan.core.site.loader.ChanLoaderRequestParams;
 import com.github.adamantcheese.chan.core.site.loader.ChanLoaderResponse;
+import com.github.adamantcheese.chan.utils.IntObjectMap;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -35,69 +40,75 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
 import okhttp3.HttpUrl;
 
 import static com.github.adamantcheese.chan.Chan.inject;
+import static com.github.adamantcheese.chan.utils.AndroidUtils.runOnUiThread;
 
 /**
  * Process a typical imageboard json response.<br>
+ * Once the response is read its posts are handed to the {@link PostParseScheduler} for parsing.
+ * The network thread does not wait for them, the response is delivered when the last post is parsed.<br>
  * This class is highly multithreaded, take good care to not access models that are to be only
  * changed on the main thread.
  */
 public class ChanReaderRequest extends JsonReaderRequest<ChanLoaderResponse> {
-    private static final int THREAD_COUNT;
-    private static final ExecutorService EXECUTOR;
-
-    static {
-        THREAD_COUNT = Runtime.getRuntime().availableProcessors();
-        EXECUTOR = Executors.newFixedThreadPool(THREAD_COUNT);
-    }
-
     @Inject
     DatabaseManager databaseManager;
 
     @Inject
     FilterEngine filterEngine;
 
+    @Inject
+    PostParseScheduler parseScheduler;
+
     private Loadable loadable;
     private List<Post> cached;
+    private boolean tail;
+    private String lastModified;
+    private String etag;
     private ChanReader reader;
     private DatabaseSavedReplyManager databaseSavedReplyManager;
+    private PostParseScheduler.Priority parsePriority;
 
-    private List<Filter> filters;
+    private CompiledFilters filters;
+
+    // Number of the first reply in a tail response, posts before it were not part of the response.
+    private int tailStart = Integer.MAX_VALUE;
+
+    // The response returned by readJson while its posts are still being parsed, and the job parsing them.
+    // It is delivered once both the parsing and parseNetworkResponse are done.
+    private volatile ChanLoaderResponse parsingResponse;
+    private volatile PostParseScheduler.Job parseJob;
+    private final AtomicInteger parsingSteps = new AtomicInteger(2);
+    private volatile Throwable parseError;
 
     public ChanReaderRequest(ChanLoaderRequestParams request) {
-        super(getChanUrl(request.loadable).toString(), request.listener, request.errorListener);
+        super(getChanUrl(request.loadable, request.tail).toString(), request.listener, request.errorListener);
         inject(this);
 
         // Copy the loadable and cached list. The cached array may changed/cleared by other threads.
         loadable = request.loadable.clone();
         cached = new ArrayList<>(request.cached);
+        tail = request.tail;
+        lastModified = request.lastModified;
+        etag = request.etag;
         reader = request.chanReader;
+        parsePriority = request.parsePriority;
 
-        filters = new ArrayList<>();
-        List<Filter> enabledFilters = filterEngine.getEnabledFilters();
-        for (int i = 0; i < enabledFilters.size(); i++) {
-            Filter filter = enabledFilters.get(i);
+        // The loader keeps the validators itself, no need to store every thread response in the volley cache.
+        setShouldCache(false);
 
-            if (filterEngine.matchesBoard(filter, loadable.board)) {
-                // copy the filter because it will get used on other threads
-                filters.add(filter.clone());
-            }
-        }
+        filters = filterEngine.getCompiledFilters(loadable.board);
 
         databaseSavedReplyManager = databaseManager.getDatabaseSavedReplyManager();
     }
 
-    private static HttpUrl getChanUrl(Loadable loadable) {
+    private static HttpUrl getChanUrl(Loadable loadable, boolean tail) {
         HttpUrl url;
 
         if (loadable.site == null) {
@@ -108,7 +119,9 @@ public class ChanReaderRequest extends JsonReaderRequest<ChanLoaderResponse> {
             throw new NullPointerException("Loadable.board == null");
         }
 
-        if (loadable.isThreadMode()) {
+        if (loadable.isThreadMode() && tail) {
+            url = loadable.site.endpoints().threadTail(loadable.board, loadable);
+        } else if (loadable.isThreadMode()) {
             url = loadable.site.endpoints().thread(loadable.board, loadable);
         } else if (loadable.isCatalogMode()) {
             url = loadable.site.endpoints().catalog(loadable.board);
@@ -123,6 +136,67 @@ public class ChanReaderRequest extends JsonReaderRequest<ChanLoaderResponse> {
         return Priority.HIGH;
     }
 
+    @Override
+    public Map<String, String> getHeaders() {
+        // Validators are only useful if there is something to fall back on
+        if (cached.isEmpty() || (lastModified == null && etag == null)) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> headers = new HashMap<>(2);
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        return headers;
+    }
+
+    @Override
+    protected Response<ChanLoaderResponse> parseNetworkResponse(NetworkResponse response) {
+        Response<ChanLoaderResponse> result;
+        if (response.notModified) {
+            ChanLoaderResponse notModified = new ChanLoaderResponse(null, new ArrayList<>());
+            notModified.notModified = true;
+            result = Response.success(notModified, null);
+        } else {
+            result = super.parseNetworkResponse(response);
+        }
+
+        if (result.isSuccess()) {
+            // A 304 does not have to repeat the validators, keep the previous ones in that case
+            String responseLastModified = response.headers.get("Last-Modified");
+            String responseEtag = response.headers.get("ETag");
+            result.result.tail = tail;
+            result.result.lastModified = responseLastModified != null ? responseLastModified : lastModified;
+            result.result.etag = responseEtag != null ? responseEtag : etag;
+
+            if (result.result == parsingResponse) {
+                onParsingStepDone();
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    protected void deliverResponse(ChanLoaderResponse response) {
+        // Delivered by onParsingStepDone when the posts are parsed
+        if (response != parsingResponse) {
+            super.deliverResponse(response);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        PostParseScheduler.Job job = parseJob;
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
     @Override
     public ChanLoaderResponse readJson(JsonReader reader) throws Exception {
         ChanReaderProcessingQueue processing = new ChanReaderProcessingQueue(cached, loadable);
@@ -135,57 +209,115 @@ public class ChanReaderRequest extends JsonReaderRequest<ChanLoaderResponse> {
             throw new IllegalArgumentException("Unknown mode");
         }
 
-        List<Post> list = parsePosts(processing);
-        return processPosts(processing.getOp(), list);
-    }
-
-    // Concurrently parses the new posts with an executor
-    private List<Post> parsePosts(ChanReaderProcessingQueue queue) throws InterruptedException, ExecutionException {
-        List<Post> cached = queue.getToReuse();
-        List<Post> total = new ArrayList<>(cached);
+        List<Post.Builder> toParse = processing.getToParse();
 
-        List<Post.Builder> toParse = queue.getToParse();
-
-        // A list of all ids in the thread. Used for checking if a quote if for the current
-        // thread or externally.
-        Set<Integer> internalIds = new HashSet<>();
-        // All ids of cached posts.
+        // A set of all ids in the thread. Used for checking if a quote if for the current
+        // thread or externally. It has to be complete before any post is parsed.
+        Set<Integer> ids = new HashSet<>(cached.size() + toParse.size());
         for (int i = 0; i < cached.size(); i++) {
-            internalIds.add(cached.get(i).no);
+            ids.add(cached.get(i).no);
         }
-        // And ids for posts to parse, from the builder.
         for (int i = 0; i < toParse.size(); i++) {
-            internalIds.add(toParse.get(i).id);
+            ids.add(toParse.get(i).id);
         }
-        // Do not modify internalIds after this point.
-        internalIds = Collections.unmodifiableSet(internalIds);
-
-        List<Callable<Post>> tasks = new ArrayList<>(toParse.size());
-        for (Post.Builder post : toParse) {
-            tasks.add(new PostParseCallable(filterEngine,
-                    filters,
-                    databaseSavedReplyManager,
-                    post,
-                    reader,
-                    internalIds));
+        Set<Integer> internalIds = Collections.unmodifiableSet(ids);
+
+        if (tail) {
+            tailStart = findTailStart(processing);
+            if (tailStart < 0) {
+                // More posts were made than the tail contains, the posts are of no use
+                ChanLoaderResponse response = new ChanLoaderResponse(null, new ArrayList<>());
+                response.needsFullLoad = true;
+                return response;
+            }
         }
 
-        if (!tasks.isEmpty()) {
-            List<Future<Post>> futures = EXECUTOR.invokeAll(tasks);
-            for (int i = 0; i < futures.size(); i++) {
-                Future<Post> future = futures.get(i);
-                Post parsedPost = future.get();
-                if (parsedPost != null) {
-                    total.add(parsedPost);
-                }
+        PostParseTask task = new PostParseTask(filters, databaseSavedReplyManager, this.reader, internalIds);
+        PostParseScheduler.Job job = parseScheduler.newJob(parsePriority, task::parse);
+        parseJob = job;
+        for (int i = 0; i < toParse.size(); i++) {
+            job.add(toParse.get(i));
+        }
+
+        ChanLoaderResponse response = new ChanLoaderResponse(processing.getOp(), new ArrayList<>());
+        parsingResponse = response;
+        job.finish(new PostParseScheduler.Callback() {
+            @Override
+            public void onParsed(List<Post> posts) {
+                List<Post> total = new ArrayList<>(processing.getToReuse().size() + posts.size());
+                total.addAll(processing.getToReuse());
+                total.addAll(posts);
+                processPosts(processing, total, response);
+                onParsingStepDone();
+            }
+
+            @Override
+            public void onParseError(Throwable error) {
+                parseError = error;
+                onParsingStepDone();
+            }
+        });
+        return response;
+    }
+
+    // Called when the posts are parsed and when parseNetworkResponse is done with the response, the last one delivers it
+    private void onParsingStepDone() {
+        if (parsingSteps.decrementAndGet() != 0) {
+            return;
+        }
+
+        runOnUiThread(() -> {
+            if (isCanceled()) {
+                return;
+            }
+
+            if (parseError != null) {
+                deliverError(new VolleyError(parseError));
+            } else {
+                listener.onResponse(parsingResponse);
+            }
+        });
+    }
+
+    /**
+     * Find the number of the first reply in a tail response.
+     *
+     * @return the first reply no, {@link Integer#MAX_VALUE} if the tail has no replies, or -1 if
+     * there may be posts missing between the cached posts and the tail.
+     */
+    private int findTailStart(ChanReaderProcessingQueue queue) {
+        int replies = 0;
+        int firstReply = Integer.MAX_VALUE;
+
+        List<Post> toReuse = queue.getToReuse();
+        for (int i = 0; i < toReuse.size(); i++) {
+            Post post = toReuse.get(i);
+            if (!post.isOP) {
+                replies++;
+                firstReply = Math.min(firstReply, post.no);
+            }
+        }
+
+        List<Post.Builder> toParse = queue.getToParse();
+        for (int i = 0; i < toParse.size(); i++) {
+            Post.Builder post = toParse.get(i);
+            if (!post.op) {
+                replies++;
+                firstReply = Math.min(firstReply, post.id);
             }
         }
 
-        return total;
+        Post.Builder op = queue.getOp();
+        if (replies == 0 || (op != null && op.replies >= 0 && replies >= op.replies)) {
+            // The tail contains the whole thread
+            return firstReply;
+        }
+
+        // The first post of the tail was already loaded, so there's no gap
+        return queue.getCachedPost(firstReply) != null ? firstReply : -1;
     }
 
-    private ChanLoaderResponse processPosts(Post.Builder op, List<Post> allPost) {
-        ChanLoaderResponse response = new ChanLoaderResponse(op, new ArrayList<>(allPost.size()));
+    private void processPosts(ChanReaderProcessingQueue queue, List<Post> allPost, ChanLoaderResponse response) {
 
         List<Post> cachedPosts = new ArrayList<>();
         List<Post> newPosts = new ArrayList<>();
@@ -193,30 +325,27 @@ public class ChanReaderRequest extends JsonReaderRequest<ChanLoaderResponse> {
             // Add all posts that were parsed before
             cachedPosts.addAll(cached);
 
-            Map<Integer, Post> cachedPostsByNo = new HashMap<>();
-            for (int i = 0; i < cachedPosts.size(); i++) {
-                Post post = cachedPosts.get(i);
-                cachedPostsByNo.put(post.no, post);
-            }
-
-            Map<Integer, Post> serverPostsByNo = new HashMap<>();
+            IntObjectMap<Post> serverPostsByNo = new IntObjectMap<>(allPost.size());
             for (int i = 0; i < allPost.size(); i++) {
                 Post post = allPost.get(i);
                 serverPostsByNo.put(post.no, post);
             }
 
             // If there's a cached post but it's not in the list received from the server, mark it as deleted
+            // Posts older than a tail response are unknown to it, those are left as is.
             if (loadable.isThreadMode()) {
                 for (int i = 0; i < cachedPosts.size(); i++) {
                     Post cachedPost = cachedPosts.get(i);
-                    cachedPost.deleted.set(!serverPostsByNo.containsKey(cachedPost.no));
+                    if (!tail || cachedPost.no >= tailStart) {
+                        cachedPost.deleted.set(!serverPostsByNo.containsKey(cachedPost.no));
+                    }
                 }
             }
 
             // If there's a post in the list from the server, that's not in the cached list, add it.
             for (int i = 0; i < allPost.size(); i++) {
                 Post serverPost = allPost.get(i);
-                if (!cachedPostsByNo.containsKey(serverPost.no)) {
+                if (queue.getCachedPost(serverPost.no) == null) {
                     newPosts.add(serverPost);
                 }
             }
@@ -229,45 +358,42 @@ public class ChanReaderRequest extends JsonReaderRequest<ChanLoaderResponse> {
         allPosts.addAll(newPosts);
 
         if (loadable.isThreadMode()) {
-            Map<Integer, Post> postsByNo = new HashMap<>();
-            for (int i = 0; i < allPosts.size(); i++) {
-                Post post = allPosts.get(i);
-                postsByNo.put(post.no, post);
-            }
-
-            // Maps post no's to a list of no's that that post received replies from
-            Map<Integer, List<Integer>> replies = new HashMap<>();
+            linkReplies(allPosts);
+        }
 
-            for (int i = 0; i < allPosts.size(); i++) {
-                Post sourcePost = allPosts.get(i);
+        response.posts.addAll(allPosts);
+    }
 
-                for (int replyTo : sourcePost.repliesTo) {
-                    List<Integer> value = replies.get(replyTo);
-                    if (value == null) {
-                        value = new ArrayList<>(3);
-                        replies.put(replyTo, value);
-                    }
-                    value.add(sourcePost.no);
+    /**
+     * Set the replies each post received from the other posts, from the posts they quote.
+     */
+    private static void linkReplies(List<Post> allPosts) {
+        // Maps post no's to a list of no's that that post received replies from
+        IntObjectMap<List<Integer>> replies = new IntObjectMap<>(allPosts.size());
+
+        for (int i = 0; i < allPosts.size(); i++) {
+            Post sourcePost = allPosts.get(i);
+
+            for (int replyTo : sourcePost.repliesTo) {
+                List<Integer> value = replies.get(replyTo);
+                if (value == null) {
+                    value = new ArrayList<>(3);
+                    replies.put(replyTo, value);
                 }
+                value.add(sourcePost.no);
             }
+        }
 
-            for (Map.Entry<Integer, List<Integer>> entry : replies.entrySet()) {
-                int key = entry.getKey();
-                List<Integer> value = entry.getValue();
-
-                Post subject = postsByNo.get(key);
-                // Sometimes a post replies to a ghost, a post that doesn't exist.
-                if (subject != null) {
-                    synchronized (subject.repliesFrom) {
-                        subject.repliesFrom.clear();
-                        subject.repliesFrom.addAll(value);
-                    }
+        // Replies to ghosts, posts that don't exist, are never looked up.
+        for (int i = 0; i < allPosts.size(); i++) {
+            Post subject = allPosts.get(i);
+            List<Integer> value = replies.get(subject.no);
+            if (value != null) {
+                synchronized (subject.repliesFrom) {
+                    subject.repliesFrom.clear();
+                    subject.repliesFrom.addAll(value);
                 }
             }
         }
-
-        response.posts.addAll(allPosts);
-
-        return response;
     }
 }
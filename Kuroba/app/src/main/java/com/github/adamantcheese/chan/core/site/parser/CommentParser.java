@@ -26,9 +26,8 @@ import androidx.annotation.AnyThread;
 
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.PostLinkable;
-import com.github.adamantcheese.chan.ui.text.AbsoluteSizeSpanHashed;
 import com.github.adamantcheese.chan.ui.text.ForegroundColorSpanHashed;
-import com.github.adamantcheese.chan.ui.theme.Theme;
+import com.github.adamantcheese.chan.ui.text.StyledText;
 
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
@@ -41,7 +40,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static com.github.adamantcheese.chan.core.site.parser.StyleRule.tagRule;
-import static com.github.adamantcheese.chan.utils.AndroidUtils.sp;
 
 @AnyThread
 public class CommentParser {
@@ -84,7 +82,7 @@ public class CommentParser {
         rule(tagRule("i").italic());
         rule(tagRule("em").italic());
 
-        rule(tagRule("pre").cssClass("prettyprint").monospace().size(sp(12f)).backgroundColor(StyleRule.BackgroundColor.CODE));
+        rule(tagRule("pre").cssClass("prettyprint").monospace().size(StyleRule.Size.SMALL).backgroundColor(StyleRule.BackgroundColor.CODE));
     }
 
     public void rule(StyleRule rule) {
@@ -106,7 +104,6 @@ public class CommentParser {
     }
 
     public CharSequence handleTag(PostParser.Callback callback,
-                                  Theme theme,
                                   Post.Builder post,
                                   String tag,
                                   CharSequence text,
@@ -118,7 +115,7 @@ public class CommentParser {
                 boolean highPriority = i == 0;
                 for (StyleRule rule : rules) {
                     if (rule.highPriority() == highPriority && rule.applies(element)) {
-                        return rule.apply(theme, callback, post, text, element);
+                        return rule.apply(callback, post, text, element);
                     }
                 }
             }
@@ -128,8 +125,7 @@ public class CommentParser {
         return text;
     }
 
-    private CharSequence handleAnchor(Theme theme,
-                                      PostParser.Callback callback,
+    private CharSequence handleAnchor(PostParser.Callback callback,
                                       Post.Builder post,
                                       CharSequence text,
                                       Element anchor) {
@@ -156,7 +152,7 @@ public class CommentParser {
             }
 
             SpannableString res = new SpannableString(handlerLink.key);
-            PostLinkable pl = new PostLinkable(theme, handlerLink.key, handlerLink.value, handlerLink.type);
+            PostLinkable pl = new PostLinkable(handlerLink.key, handlerLink.value, handlerLink.type);
             res.setSpan(pl, 0, res.length(), 0);
             post.addLinkable(pl);
 
@@ -166,8 +162,7 @@ public class CommentParser {
         }
     }
 
-    private CharSequence handleFortune(Theme theme,
-                                       PostParser.Callback callback,
+    private CharSequence handleFortune(PostParser.Callback callback,
                                        Post.Builder builder,
                                        CharSequence text,
                                        Element span) {
@@ -189,8 +184,7 @@ public class CommentParser {
         return text;
     }
 
-    public CharSequence handleTable(Theme theme,
-                                    PostParser.Callback callback,
+    public CharSequence handleTable(PostParser.Callback callback,
                                     Post.Builder builder,
                                     CharSequence text,
                                     Element table) {
@@ -220,8 +214,8 @@ public class CommentParser {
 
         // Overrides the text (possibly) parsed by child nodes.
         return span(TextUtils.concat(parts.toArray(new CharSequence[0])),
-                new ForegroundColorSpanHashed(theme.inlineQuoteColor),
-                new AbsoluteSizeSpanHashed(sp(12f)));
+                StyledText.span(StyledText.INLINE_QUOTE_COLOR),
+                StyledText.span(StyledText.SMALL_SIZE));
     }
 
     public Link matchAnchor(Post.Builder post, CharSequence text, Element anchor, PostParser.Callback callback) {
@@ -21,7 +21,6 @@ import android.text.SpannableString;
 
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.PostLinkable;
-import com.github.adamantcheese.chan.ui.theme.Theme;
 import org.nibor.autolink.LinkExtractor;
 import org.nibor.autolink.LinkSpan;
 import org.nibor.autolink.LinkType;
@@ -34,22 +33,29 @@ public class CommentParserHelper {
             .linkTypes(EnumSet.of(LinkType.URL))
             .build();
 
+    /**
+     * Quick check before running the link extractor, it only finds urls with a scheme so
+     * text without a "://" has no links.
+     */
+    public static boolean mayContainLink(String text) {
+        return text.contains("://");
+    }
+
     /**
      * Detect links in the given spannable, and create PostLinkables with Type.LINK for the
      * links found onto the spannable.
      * <p>
      * The links are detected with the autolink-java library.
      *
-     * @param theme     The theme to style the links with
      * @param post      The post where the linkables get added to.
      * @param text      Text to find links in
      * @param spannable Spannable to set the spans on.
      */
-    public static void detectLinks(Theme theme, Post.Builder post, String text, SpannableString spannable) {
+    public static void detectLinks(Post.Builder post, String text, SpannableString spannable) {
         final Iterable<LinkSpan> links = LINK_EXTRACTOR.extractLinks(text);
         for (final LinkSpan link : links) {
             final String linkText = text.substring(link.getBeginIndex(), link.getEndIndex());
-            final PostLinkable pl = new PostLinkable(theme, linkText, linkText, PostLinkable.Type.LINK);
+            final PostLinkable pl = new PostLinkable(linkText, linkText, PostLinkable.Type.LINK);
             spannable.setSpan(pl, link.getBeginIndex(), link.getEndIndex(), 0);
             post.addLinkable(pl);
         }
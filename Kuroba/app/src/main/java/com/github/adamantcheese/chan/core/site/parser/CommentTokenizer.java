@@ -0,0 +1,416 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.site.parser;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.TextUtils;
+
+import androidx.annotation.AnyThread;
+
+import com.github.adamantcheese.chan.core.model.Post;
+
+import org.jsoup.nodes.Attributes;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Turns the html of a comment into spanned text in one pass over it, without building a dom.
+ * <p>
+ * The text is written into a single builder. When an element closes, the {@link CommentParser}
+ * rules get the element and its text the same way as when walking a Jsoup document. The element
+ * is detached and only has its attributes, which is all the rules look at.
+ * <p>
+ * Only the few tags comments use are handled. Markup where the html tree rules would change the
+ * structure, like tables or misnested tags, is not handled. {@link #parse} returns null for it, so
+ * that the caller can use Jsoup instead.
+ */
+@AnyThread
+public class CommentTokenizer {
+    // Tags that keep the structure they are written with, as long as they are nested properly
+    private static final Set<String> INLINE_TAGS = new HashSet<>(Arrays.asList(
+            "a", "span", "s", "strike", "del", "ins", "b", "strong", "i", "em", "u", "small", "big",
+            "sup", "sub", "code", "q", "font", "mark"
+    ));
+    private static final Set<String> BLOCK_TAGS = new HashSet<>(Arrays.asList("p", "div", "pre"));
+    private static final Set<String> VOID_TAGS = new HashSet<>(Arrays.asList("br", "wbr"));
+
+    private final String html;
+    private final CommentParser commentParser;
+    private final Post.Builder post;
+    private final PostParser.Callback callback;
+    private final TextHandler textHandler;
+
+    private final SpannableStringBuilder out = new SpannableStringBuilder();
+    private final List<OpenElement> open = new ArrayList<>();
+    private int pos;
+
+    private CommentTokenizer(String html,
+                             CommentParser commentParser,
+                             Post.Builder post,
+                             PostParser.Callback callback,
+                             TextHandler textHandler) {
+        this.html = html;
+        this.commentParser = commentParser;
+        this.post = post;
+        this.callback = callback;
+        this.textHandler = textHandler;
+    }
+
+    /**
+     * Parse the html of a comment.
+     *
+     * @param textHandler turns the text between the tags into spanned text, like for a Jsoup text node.
+     * @return the parsed comment, or null if the html has markup that isn't handled. Nothing is added
+     * to the post builder in that case.
+     */
+    public static CharSequence parse(String html,
+                                     CommentParser commentParser,
+                                     Post.Builder post,
+                                     PostParser.Callback callback,
+                                     TextHandler textHandler) {
+        // Tried on a copy, the rules add linkables and replies to the builder. They only read these.
+        Post.Builder attempt = new Post.Builder()
+                .board(post.board)
+                .id(post.id)
+                .opId(post.opId);
+
+        CommentTokenizer tokenizer = new CommentTokenizer(html, commentParser, attempt, callback, textHandler);
+        CharSequence result = tokenizer.parse();
+        if (result != null) {
+            for (int replyTo : attempt.getRepliesTo()) {
+                post.addReplyTo(replyTo);
+            }
+            for (int i = 0; i < attempt.getLinkables().size(); i++) {
+                post.addLinkable(attempt.getLinkables().get(i));
+            }
+        }
+        return result;
+    }
+
+    private CharSequence parse() {
+        int length = html.length();
+        while (pos < length) {
+            int tagStart = html.indexOf('<', pos);
+            if (tagStart < 0) {
+                tagStart = length;
+            }
+
+            if (tagStart > pos) {
+                appendText(html.substring(pos, tagStart));
+                pos = tagStart;
+                continue;
+            }
+
+            if (!readTag()) {
+                return null;
+            }
+        }
+
+        // Unclosed elements are closed at the end, like the html parser does
+        while (!open.isEmpty()) {
+            close(open.remove(open.size() - 1), false);
+        }
+
+        return new SpannedString(out);
+    }
+
+    private void appendText(String text) {
+        if (text.indexOf('&') >= 0) {
+            text = Parser.unescapeEntities(text, false);
+        }
+        out.append(textHandler.handleText(post, normaliseWhitespace(text)));
+    }
+
+    /**
+     * Reads the tag at {@link #pos}, and opens or closes the element.
+     *
+     * @return false if the tag is something that isn't handled.
+     */
+    private boolean readTag() {
+        int length = html.length();
+        boolean endTag = pos + 1 < length && html.charAt(pos + 1) == '/';
+        int nameStart = pos + (endTag ? 2 : 1);
+        int nameEnd = nameStart;
+        while (nameEnd < length && isNameChar(html.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (nameEnd == nameStart || !isLetter(html.charAt(nameStart))) {
+            // A lone '<' or a comment, leave those to the html parser
+            return false;
+        }
+        String name = html.substring(nameStart, nameEnd).toLowerCase(Locale.ENGLISH);
+
+        pos = nameEnd;
+        Attributes attributes = null;
+        boolean selfClosing = false;
+        while (true) {
+            skipWhitespace();
+            if (pos >= length) {
+                return false;
+            }
+
+            char c = html.charAt(pos);
+            if (c == '>') {
+                pos++;
+                break;
+            } else if (c == '/' && pos + 1 < length && html.charAt(pos + 1) == '>') {
+                selfClosing = true;
+                pos += 2;
+                break;
+            }
+
+            int attributeStart = pos;
+            while (pos < length && !isAttributeNameEnd(html.charAt(pos))) {
+                pos++;
+            }
+            if (pos == attributeStart || pos >= length) {
+                return false;
+            }
+            String attributeName = html.substring(attributeStart, pos).toLowerCase(Locale.ENGLISH);
+
+            String value = "";
+            skipWhitespace();
+            if (pos < length && html.charAt(pos) == '=') {
+                pos++;
+                skipWhitespace();
+                value = readAttributeValue();
+                if (value == null) {
+                    return false;
+                }
+            }
+
+            if (!endTag) {
+                if (attributes == null) {
+                    attributes = new Attributes();
+                }
+                // The html parser keeps the first of duplicate attributes
+                if (!attributes.hasKey(attributeName)) {
+                    attributes.put(attributeName, value);
+                }
+            }
+        }
+
+        if (endTag) {
+            return closeTag(name);
+        } else {
+            return openTag(name, attributes, selfClosing);
+        }
+    }
+
+    private boolean openTag(String name, Attributes attributes, boolean selfClosing) {
+        boolean isVoid = VOID_TAGS.contains(name);
+        boolean isBlock = BLOCK_TAGS.contains(name);
+        if (!isVoid && !isBlock && !INLINE_TAGS.contains(name)) {
+            return false;
+        }
+        if (selfClosing && !isVoid) {
+            return false;
+        }
+
+        for (int i = 0; i < open.size(); i++) {
+            String openName = open.get(i).name;
+            // A block in a paragraph closes it, and links can't be nested
+            if ((isBlock && openName.equals("p")) || (name.equals("a") && openName.equals("a"))) {
+                return false;
+            }
+        }
+
+        Element element = attributes == null
+                ? new Element(Tag.valueOf(name), "")
+                : new Element(Tag.valueOf(name), "", attributes);
+        OpenElement openElement = new OpenElement(name, element, out.length());
+        if (isVoid) {
+            close(openElement, hasNextSibling());
+        } else {
+            open.add(openElement);
+        }
+        return true;
+    }
+
+    private boolean closeTag(String name) {
+        if (open.isEmpty() || !open.get(open.size() - 1).name.equals(name)) {
+            // Misnested or stray end tags are fixed up by the html parser in ways not worth copying
+            return false;
+        }
+
+        close(open.remove(open.size() - 1), hasNextSibling());
+        return true;
+    }
+
+    /**
+     * Applies the rules of the element to the text written since it opened.
+     */
+    private void close(OpenElement element, boolean hasNextSibling) {
+        if (hasNextSibling && BLOCK_TAGS.contains(element.name)) {
+            // Block rules add a line break when the element isn't the last one in its parent
+            Element parent = new Element(Tag.valueOf("body"), "");
+            parent.appendChild(element.element);
+            parent.appendChild(new TextNode(""));
+        }
+
+        Spanned inner = (Spanned) out.subSequence(element.start, out.length());
+        CharSequence result = commentParser.handleTag(callback, post, element.name, inner, element.element);
+        if (result == null || result == inner) {
+            // The text of the children stays as it is
+            return;
+        }
+
+        Object[] innerSpans = inner.getSpans(0, inner.length(), Object.class);
+        if (TextUtils.equals(inner, result)) {
+            // Most rules only put spans around the text, only those spans have to be added
+            Spanned resultSpanned = result instanceof Spanned ? (Spanned) result : null;
+            for (Object span : innerSpans) {
+                if (resultSpanned == null || resultSpanned.getSpanStart(span) < 0) {
+                    out.removeSpan(span);
+                }
+            }
+            if (resultSpanned != null) {
+                Object[] resultSpans = resultSpanned.getSpans(0, resultSpanned.length(), Object.class);
+                for (Object span : resultSpans) {
+                    if (out.getSpanStart(span) < 0) {
+                        out.setSpan(span,
+                                element.start + resultSpanned.getSpanStart(span),
+                                element.start + resultSpanned.getSpanEnd(span),
+                                resultSpanned.getSpanFlags(span));
+                    }
+                }
+            }
+        } else {
+            for (Object span : innerSpans) {
+                out.removeSpan(span);
+            }
+            out.delete(element.start, out.length());
+            out.append(result);
+        }
+    }
+
+    /**
+     * Whether something follows the tag just read in the same parent. End tags are always matched,
+     * so another end tag means the parent closes.
+     */
+    private boolean hasNextSibling() {
+        return pos < html.length() && !html.startsWith("</", pos);
+    }
+
+    private String readAttributeValue() {
+        int length = html.length();
+        if (pos >= length) {
+            return null;
+        }
+
+        String value;
+        char quote = html.charAt(pos);
+        if (quote == '"' || quote == '\'') {
+            int end = html.indexOf(quote, pos + 1);
+            if (end < 0) {
+                return null;
+            }
+            value = html.substring(pos + 1, end);
+            pos = end + 1;
+        } else {
+            int start = pos;
+            while (pos < length && !isWhitespace(html.charAt(pos)) && html.charAt(pos) != '>') {
+                pos++;
+            }
+            value = html.substring(start, pos);
+        }
+
+        if (value.indexOf('&') >= 0) {
+            value = Parser.unescapeEntities(value, true);
+        }
+        return value;
+    }
+
+    private void skipWhitespace() {
+        while (pos < html.length() && isWhitespace(html.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * Same as the text of a Jsoup text node: whitespace runs become a single space, invisible
+     * characters are dropped.
+     */
+    private static String normaliseWhitespace(String text) {
+        StringBuilder normalised = null;
+        boolean lastWasWhite = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean white = isWhitespace(c) || c == 160;
+            boolean drop = (white && lastWasWhite) || c == 8203 || c == 173;
+            if (normalised == null && (drop || (white && c != ' '))) {
+                // Only copied once it differs
+                normalised = new StringBuilder(text.length());
+                normalised.append(text, 0, i);
+            }
+
+            if (normalised != null && !drop) {
+                normalised.append(white ? ' ' : c);
+            }
+            if (c != 8203 && c != 173) {
+                lastWasWhite = white;
+            }
+        }
+        return normalised == null ? text : normalised.toString();
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(char c) {
+        return isLetter(c) || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isAttributeNameEnd(char c) {
+        return isWhitespace(c) || c == '=' || c == '>' || c == '/' || c == '<' || c == '"' || c == '\'';
+    }
+
+    public interface TextHandler {
+        /**
+         * Turn the text between tags into spanned text. Entities are already decoded.
+         */
+        CharSequence handleText(Post.Builder post, String text);
+    }
+
+    private static class OpenElement {
+        private final String name;
+        private final Element element;
+        private final int start;
+
+        private OpenElement(String name, Element element, int start) {
+            this.name = name;
+            this.element = element;
+            this.start = start;
+        }
+    }
+}
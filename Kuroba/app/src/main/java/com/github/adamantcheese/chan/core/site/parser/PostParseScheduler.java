@@ -0,0 +1,223 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.core.site.parser;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import com.github.adamantcheese.chan.core.model.Post;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parses the posts of all loads on a few shared daemon workers.<br>
+ * Posts are handed over in batches, idle workers take the next batch of whatever load has the
+ * highest priority. The thread that is being looked at goes before catalogs, and those go before
+ * loads of watchers in the background. Loads of the same priority are parsed in the order they came in.<br>
+ * Nobody waits for the parsing, the {@link Callback} of a job is called by the worker that finishes last.
+ */
+@AnyThread
+public class PostParseScheduler {
+    private static final int BATCH_SIZE = 16;
+
+    public enum Priority {
+        FOREGROUND_THREAD,
+        FOREGROUND_CATALOG,
+        BACKGROUND
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong jobSequence = new AtomicLong();
+
+    public PostParseScheduler() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "PostParse-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start a job, add the posts to it while reading and call {@link Job#finish(Callback)} when done.
+     */
+    public Job newJob(Priority priority, Parser parser) {
+        return new Job(priority, jobSequence.getAndIncrement(), parser);
+    }
+
+    public interface Parser {
+        /**
+         * Called on a worker thread, concurrently with other posts of the same job.
+         *
+         * @return the post, or null to leave it out
+         */
+        Post parse(Post.Builder builder);
+    }
+
+    public interface Callback {
+        /**
+         * @param posts the parsed posts, in the order they were added
+         */
+        void onParsed(List<Post> posts);
+
+        /**
+         * @param error thrown by the parser, or by {@link #onParsed(List)}, errors included
+         */
+        void onParseError(Throwable error);
+    }
+
+    public class Job {
+        private final Priority priority;
+        private final long sequence;
+        private final Parser parser;
+
+        // Only touched by the thread adding the posts
+        private final List<Batch> batches = new ArrayList<>();
+        private List<Post.Builder> current = new ArrayList<>(BATCH_SIZE);
+
+        // One for every batch and one for adding, the last to finish calls the callback
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile boolean cancelled;
+        private Callback callback;
+
+        private Job(Priority priority, long sequence, Parser parser) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.parser = parser;
+        }
+
+        public void add(Post.Builder builder) {
+            current.add(builder);
+            if (current.size() >= BATCH_SIZE) {
+                submitCurrent();
+            }
+        }
+
+        /**
+         * No more posts will be added, the callback is called once all of them are parsed, unless the
+         * job was cancelled.
+         */
+        public void finish(Callback callback) {
+            if (!current.isEmpty()) {
+                submitCurrent();
+            }
+            this.callback = callback;
+            if (pending.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        /**
+         * Skip the batches that are not parsed yet, the callback is not called.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void submitCurrent() {
+            Batch batch = new Batch(this, batches.size(), current);
+            batches.add(batch);
+            current = new ArrayList<>(BATCH_SIZE);
+            pending.incrementAndGet();
+            executor.execute(batch);
+        }
+
+        private void onBatchDone() {
+            if (pending.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            if (cancelled) {
+                return;
+            }
+
+            Throwable throwable = error.get();
+            if (throwable != null) {
+                callback.onParseError(throwable);
+                return;
+            }
+
+            List<Post> posts = new ArrayList<>(batches.size() * BATCH_SIZE);
+            for (int i = 0; i < batches.size(); i++) {
+                Post[] parsed = batches.get(i).parsed;
+                for (Post post : parsed) {
+                    if (post != null) {
+                        posts.add(post);
+                    }
+                }
+            }
+
+            // This runs on a worker, anything thrown by the callback goes to the callback too
+            try {
+                callback.onParsed(posts);
+            } catch (Throwable t) {
+                callback.onParseError(t);
+            }
+        }
+    }
+
+    private static class Batch implements Runnable, Comparable<Batch> {
+        private final Job job;
+        private final int index;
+        private final List<Post.Builder> builders;
+        private final Post[] parsed;
+
+        private Batch(Job job, int index, List<Post.Builder> builders) {
+            this.job = job;
+            this.index = index;
+            this.builders = builders;
+            parsed = new Post[builders.size()];
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < builders.size() && !job.cancelled && job.error.get() == null; i++) {
+                    parsed[i] = job.parser.parse(builders.get(i));
+                }
+            } catch (Throwable t) {
+                // Errors too, like running out of memory on a huge thread, the job has to complete
+                job.error.compareAndSet(null, t);
+            } finally {
+                job.onBatchDone();
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Batch other) {
+            if (job.priority != other.job.priority) {
+                return job.priority.compareTo(other.job.priority);
+            } else if (job.sequence != other.job.sequence) {
+                return job.sequence < other.job.sequence ? -1 : 1;
+            } else {
+                return Integer.compare(index, other.index);
+            }
+        }
+    }
+}
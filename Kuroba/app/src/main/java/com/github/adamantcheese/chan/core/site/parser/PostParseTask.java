@@ -17,47 +17,41 @@
 package com.github.adamantcheese.chan.core.site.parser;
 
 import com.github.adamantcheese.chan.core.database.DatabaseSavedReplyManager;
+import com.github.adamantcheese.chan.core.manager.CompiledFilters;
 import com.github.adamantcheese.chan.core.manager.FilterEngine;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.orm.Filter;
 
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
 
-// Called concurrently to parse the post html and the filters on it
+// Called concurrently by the PostParseScheduler workers to parse the post html and the filters on it
 // belong to ChanReaderRequest
-class PostParseCallable implements Callable<Post> {
-    private static final String TAG = "PostParseCallable";
+class PostParseTask implements PostParseScheduler.Parser {
+    private static final String TAG = "PostParseTask";
 
-    private FilterEngine filterEngine;
-    private List<Filter> filters;
+    private CompiledFilters filters;
     private DatabaseSavedReplyManager savedReplyManager;
-    private Post.Builder post;
     private ChanReader reader;
     private final Set<Integer> internalIds;
 
-    public PostParseCallable(FilterEngine filterEngine,
-                             List<Filter> filters,
-                             DatabaseSavedReplyManager savedReplyManager,
-                             Post.Builder post,
-                             ChanReader reader, Set<Integer> internalIds) {
-        this.filterEngine = filterEngine;
+    public PostParseTask(CompiledFilters filters,
+                         DatabaseSavedReplyManager savedReplyManager,
+                         ChanReader reader, Set<Integer> internalIds) {
         this.filters = filters;
         this.savedReplyManager = savedReplyManager;
-        this.post = post;
         this.reader = reader;
         this.internalIds = internalIds;
     }
 
     @Override
-    public Post call() {
+    public Post parse(Post.Builder post) {
         // Process the filters before finish, because parsing the html is dependent on filter matches
         processPostFilter(post);
 
         post.isSavedReply(savedReplyManager.isSaved(post.board, post.id));
 
-        return reader.getParser().parse(null, post, new PostParser.Callback() {
+        return reader.getParser().parse(post, new PostParser.Callback() {
             @Override
             public boolean isSaved(int postNo) {
                 return savedReplyManager.isSaved(post.board, postNo);
@@ -71,22 +65,22 @@ class PostParseCallable implements Callable<Post> {
     }
 
     private void processPostFilter(Post.Builder post) {
-        for (Filter filter : filters) {
-            if (filterEngine.matches(filter, post)) {
-                FilterEngine.FilterAction action = FilterEngine.FilterAction.forId(filter.action);
-                switch (action) {
-                    case COLOR:
-                        post.filter(filter.color, false, false, false, filter.applyToReplies);
-                        break;
-                    case HIDE:
-                        post.filter(0, true, false, false, filter.applyToReplies);
-                        break;
-                    case REMOVE:
-                        post.filter(0, false, true, false, filter.applyToReplies);
-                        break;
-                    case WATCH:
-                        post.filter(0, false, false, true, false);
-                }
+        List<Filter> matching = filters.matches(post);
+        for (int i = 0; i < matching.size(); i++) {
+            Filter filter = matching.get(i);
+            FilterEngine.FilterAction action = FilterEngine.FilterAction.forId(filter.action);
+            switch (action) {
+                case COLOR:
+                    post.filter(filter.color, false, false, false, filter.applyToReplies);
+                    break;
+                case HIDE:
+                    post.filter(0, true, false, false, filter.applyToReplies);
+                    break;
+                case REMOVE:
+                    post.filter(0, false, true, false, filter.applyToReplies);
+                    break;
+                case WATCH:
+                    post.filter(0, false, false, true, false);
             }
         }
     }
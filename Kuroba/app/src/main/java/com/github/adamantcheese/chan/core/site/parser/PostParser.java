@@ -17,10 +17,9 @@
 package com.github.adamantcheese.chan.core.site.parser;
 
 import com.github.adamantcheese.chan.core.model.Post;
-import com.github.adamantcheese.chan.ui.theme.Theme;
 
 public interface PostParser {
-    Post parse(Theme theme, Post.Builder builder, Callback callback);
+    Post parse(Post.Builder builder, Callback callback);
 
     interface Callback {
         boolean isSaved(int postNo);
@@ -25,10 +25,7 @@ import android.text.style.TypefaceSpan;
 
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.PostLinkable;
-import com.github.adamantcheese.chan.ui.text.AbsoluteSizeSpanHashed;
-import com.github.adamantcheese.chan.ui.text.BackgroundColorSpanHashed;
-import com.github.adamantcheese.chan.ui.text.ForegroundColorSpanHashed;
-import com.github.adamantcheese.chan.ui.theme.Theme;
+import com.github.adamantcheese.chan.ui.text.StyledText;
 
 import org.jsoup.nodes.Element;
 
@@ -46,6 +43,10 @@ public class StyleRule {
         CODE
     }
 
+    public enum Size {
+        SMALL
+    }
+
     private final List<String> blockElements = Arrays.asList("p", "div");
 
     public static StyleRule tagRule(String tag) {
@@ -63,7 +64,7 @@ public class StyleRule {
     private boolean bold;
     private boolean italic;
     private boolean monospace;
-    private int size = 0;
+    private Size size = null;
 
     private PostLinkable.Type link = null;
 
@@ -137,7 +138,7 @@ public class StyleRule {
         return this;
     }
 
-    public StyleRule size(int size) {
+    public StyleRule size(Size size) {
         this.size = size;
         return this;
     }
@@ -175,8 +176,7 @@ public class StyleRule {
         return false;
     }
 
-    public CharSequence apply(Theme theme,
-                              PostParser.Callback callback,
+    public CharSequence apply(PostParser.Callback callback,
                               Post.Builder post,
                               CharSequence text,
                               Element element) {
@@ -190,17 +190,17 @@ public class StyleRule {
 
         CharSequence result = text;
         for (Action action : actions) {
-            result = action.execute(theme, callback, post, text, element);
+            result = action.execute(callback, post, text, element);
         }
 
         List<Object> spansToApply = new ArrayList<>(2);
 
         if (foregroundColor != null) {
-            spansToApply.add(new ForegroundColorSpanHashed(getForegroundColor(theme, foregroundColor)));
+            spansToApply.add(StyledText.span(getForegroundColor(foregroundColor)));
         }
 
         if (backgroundColor != null) {
-            spansToApply.add(new BackgroundColorSpanHashed(getBackgroundColor(theme, backgroundColor)));
+            spansToApply.add(StyledText.span(getBackgroundColor(backgroundColor)));
         }
 
         if (strikeThrough) {
@@ -219,12 +219,12 @@ public class StyleRule {
             spansToApply.add(new TypefaceSpan("monospace"));
         }
 
-        if (size != 0) {
-            spansToApply.add(new AbsoluteSizeSpanHashed(size));
+        if (size != null) {
+            spansToApply.add(StyledText.span(getSize(size)));
         }
 
         if (link != null) {
-            PostLinkable pl = new PostLinkable(theme, result, result, link);
+            PostLinkable pl = new PostLinkable(result, result, link);
             post.addLinkable(pl);
             spansToApply.add(pl);
         }
@@ -239,26 +239,36 @@ public class StyleRule {
         }
 
         if (linkify) {
-            CommentParserHelper.detectLinks(theme, post, result.toString(), new SpannableString(result));
+            String resultText = result.toString();
+            if (CommentParserHelper.mayContainLink(resultText)) {
+                CommentParserHelper.detectLinks(post, resultText, new SpannableString(result));
+            }
         }
 
         return result;
     }
 
-    private int getForegroundColor(Theme theme, ForegroundColor foregroundColor) {
+    private int getForegroundColor(ForegroundColor foregroundColor) {
         switch (foregroundColor) {
             case INLINE_QUOTE:
-                return theme.inlineQuoteColor;
+                return StyledText.INLINE_QUOTE_COLOR;
             case QUOTE:
-                return theme.quoteColor;
+                return StyledText.QUOTE_COLOR;
             default:
                 return 0;
         }
     }
 
-    private int getBackgroundColor(Theme theme, BackgroundColor backgroundColor) {
+    private int getBackgroundColor(BackgroundColor backgroundColor) {
         if (backgroundColor == BackgroundColor.CODE) {
-            return theme.backColorSecondary;
+            return StyledText.CODE_BACKGROUND;
+        }
+        return 0;
+    }
+
+    private int getSize(Size size) {
+        if (size == Size.SMALL) {
+            return StyledText.SMALL_SIZE;
         }
         return 0;
     }
@@ -277,8 +287,7 @@ public class StyleRule {
     }
 
     public interface Action {
-        CharSequence execute(Theme theme,
-                             PostParser.Callback callback,
+        CharSequence execute(PostParser.Callback callback,
                              Post.Builder post,
                              CharSequence text,
                              Element element);
@@ -204,6 +204,15 @@ public class Chan4 extends SiteBase {
                     .build();
         }
 
+        @Override
+        public HttpUrl threadTail(Board board, Loadable loadable) {
+            return a.newBuilder()
+                    .addPathSegment(board.code)
+                    .addPathSegment("thread")
+                    .addPathSegment(loadable.no + "-tail.json")
+                    .build();
+        }
+
         @Override
         public HttpUrl imageUrl(Post.Builder post, Map<String, String> arg) {
             return i.newBuilder()
@@ -586,6 +595,9 @@ public class Chan4 extends SiteBase {
             case POST_REPORT:
                 // yes, with a custom url
                 return true;
+            case THREAD_INDEX:
+                // threads.json
+                return true;
             default:
                 return false;
         }
@@ -16,6 +16,11 @@
  */
 package com.github.adamantcheese.chan.ui.adapter;
 
+import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -45,6 +50,10 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private final ThreadStatusCell.Callback statusCellCallback;
     private final List<Post> displayList = new ArrayList<>();
+    // The posts of the displayList as they were when they were set, to find what changed since
+    private List<ShownPost> shownPosts = new ArrayList<>();
+    // Incremented whenever the items change, an update calculated for older items can't be used
+    private int version = 0;
     private String error = null;
     private Post highlightedPost;
     private String highlightedPostId;
@@ -103,8 +112,7 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             case TYPE_POST_STUB:
                 PostViewHolder postViewHolder = (PostViewHolder) holder;
                 Post post = displayList.get(getPostPosition(position));
-                boolean highlight = post == highlightedPost || post.id.equals(highlightedPostId) || post.no == highlightedPostNo ||
-                        post.tripcode.equals(highlightedPostTripcode);
+                boolean highlight = isHighlighted(post);
                 postViewHolder.postView.setPost(post,
                         postCellCallback,
                         true,
@@ -127,6 +135,13 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
 
+    @Override
+    public void onViewRecycled(RecyclerView.ViewHolder holder) {
+        if (holder instanceof PostViewHolder) {
+            ((PostViewHolder) holder).postView.cancelThumbnailRequests();
+        }
+    }
+
     @Override
     public int getItemCount() {
         int size = displayList.size();
@@ -166,38 +181,77 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         } else if (itemViewType == TYPE_LAST_SEEN) {
             return -2;
         } else {
+            // Changed posts are rebound through the update, the id stays the same
             Post post = displayList.get(getPostPosition(position));
-            int repliesFromSize;
-            synchronized (post.repliesFrom) {
-                repliesFromSize = post.repliesFrom.size();
-            }
-            return ((long) repliesFromSize << 32L) + (long) post.no + (compact ? 1L : 0L);
+            return (long) post.no + (compact ? 1L : 0L);
         }
     }
 
-    public void setThread(ChanThread thread, List<Post> posts) {
-        if (!BackgroundUtils.isMainThread()) {
-            throw new RuntimeException("Must be called on the main thread!");
-        }
-        showError(null);
+    /**
+     * The items that are shown now, to calculate an update to new posts on another thread.
+     */
+    @MainThread
+    public Snapshot snapshot() {
+        return new Snapshot(version, new ArrayList<>(shownPosts), lastSeenIndicatorPosition);
+    }
 
-        displayList.clear();
-        displayList.addAll(posts);
+    /**
+     * Calculate which items are inserted, removed and changed when showing the posts.
+     *
+     * @param from the items to calculate the update from, or null to replace all items.
+     */
+    @WorkerThread
+    public static Update calculateUpdate(@Nullable Snapshot from, ChanThread thread, List<Post> posts) {
+        List<ShownPost> newPosts = new ArrayList<>(posts.size());
+        for (Post post : posts) {
+            newPosts.add(new ShownPost(post));
+        }
 
-        lastSeenIndicatorPosition = -1;
+        int newLastSeenIndicatorPosition = -1;
         if (thread.loadable.lastViewed >= 0) {
             // Do not process the last post, the indicator does not have to appear at the bottom
-            for (int i = 0, displayListSize = displayList.size() - 1; i < displayListSize; i++) {
-                Post post = displayList.get(i);
-                if (post.no == thread.loadable.lastViewed) {
-                    lastSeenIndicatorPosition = i + 1;
+            for (int i = 0, postsSize = posts.size() - 1; i < postsSize; i++) {
+                if (posts.get(i).no == thread.loadable.lastViewed) {
+                    newLastSeenIndicatorPosition = i + 1;
                     break;
                 }
             }
         }
 
-        // Update all, recyclerview will figure out all the animations
-        notifyDataSetChanged();
+        DiffUtil.DiffResult diff = null;
+        if (from != null) {
+            diff = DiffUtil.calculateDiff(new ItemDiffCallback(
+                    from.posts, from.lastSeenIndicatorPosition,
+                    newPosts, newLastSeenIndicatorPosition), false);
+        }
+
+        return new Update(from == null ? -1 : from.version, newPosts, newLastSeenIndicatorPosition, diff);
+    }
+
+    /**
+     * Show the posts of an update, only the items that changed are rebound.
+     */
+    @MainThread
+    public void setThread(ChanThread thread, Update update) {
+        if (!BackgroundUtils.isMainThread()) {
+            throw new RuntimeException("Must be called on the main thread!");
+        }
+        showError(null);
+
+        displayList.clear();
+        for (ShownPost shownPost : update.posts) {
+            displayList.add(shownPost.post);
+        }
+        shownPosts = update.posts;
+        lastSeenIndicatorPosition = update.lastSeenIndicatorPosition;
+
+        if (update.diff != null && update.fromVersion == version) {
+            update.diff.dispatchUpdatesTo(this);
+        } else {
+            // Update all, recyclerview will figure out all the animations
+            notifyDataSetChanged();
+        }
+        version++;
     }
 
     public List<Post> getDisplayList() {
@@ -212,6 +266,7 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         selectedPost = -1;
         lastSeenIndicatorPosition = -1;
         error = null;
+        version++;
     }
 
     public void showError(String error) {
@@ -230,40 +285,74 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     }
 
     public void highlightPost(Post post) {
+        boolean[] highlighted = getHighlightedPosts();
         highlightedPost = post;
         highlightedPostId = null;
         highlightedPostNo = -1;
         highlightedPostTripcode = null;
-        notifyDataSetChanged();
+        notifyHighlightChanged(highlighted);
     }
 
     public void highlightPostId(String id) {
+        boolean[] highlighted = getHighlightedPosts();
         highlightedPost = null;
         highlightedPostId = id;
         highlightedPostNo = -1;
         highlightedPostTripcode = null;
-        notifyDataSetChanged();
+        notifyHighlightChanged(highlighted);
     }
 
     public void highlightPostTripcode(String tripcode) {
+        boolean[] highlighted = getHighlightedPosts();
         highlightedPost = null;
         highlightedPostId = null;
         highlightedPostNo = -1;
         highlightedPostTripcode = tripcode;
-        notifyDataSetChanged();
+        notifyHighlightChanged(highlighted);
     }
 
     public void highlightPostNo(int no) {
+        boolean[] highlighted = getHighlightedPosts();
         highlightedPost = null;
         highlightedPostId = null;
         highlightedPostNo = no;
         highlightedPostTripcode = null;
-        notifyDataSetChanged();
+        notifyHighlightChanged(highlighted);
     }
 
     public void selectPost(int no) {
+        int previous = selectedPost;
         selectedPost = no;
-        notifyDataSetChanged();
+        for (int i = 0; i < displayList.size(); i++) {
+            int postNo = displayList.get(i).no;
+            if (postNo == previous || postNo == no) {
+                notifyItemChanged(getScrollPosition(i));
+            }
+        }
+    }
+
+    private boolean isHighlighted(Post post) {
+        return post == highlightedPost || post.id.equals(highlightedPostId) || post.no == highlightedPostNo ||
+                post.tripcode.equals(highlightedPostTripcode);
+    }
+
+    private boolean[] getHighlightedPosts() {
+        boolean[] highlighted = new boolean[displayList.size()];
+        for (int i = 0; i < highlighted.length; i++) {
+            highlighted[i] = isHighlighted(displayList.get(i));
+        }
+        return highlighted;
+    }
+
+    /**
+     * Rebind the posts that were highlighted before, or are now.
+     */
+    private void notifyHighlightChanged(boolean[] highlightedBefore) {
+        for (int i = 0; i < highlightedBefore.length; i++) {
+            if (highlightedBefore[i] != isHighlighted(displayList.get(i))) {
+                notifyItemChanged(getScrollPosition(i));
+            }
+        }
     }
 
     public void setPostViewMode(ChanSettings.PostViewMode postViewMode) {
@@ -300,6 +389,140 @@ public class PostAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         return loadable != null && loadable.isThreadMode();
     }
 
+    /**
+     * The items shown by the adapter at some point.
+     */
+    public static class Snapshot {
+        private final int version;
+        private final List<ShownPost> posts;
+        private final int lastSeenIndicatorPosition;
+
+        private Snapshot(int version, List<ShownPost> posts, int lastSeenIndicatorPosition) {
+            this.version = version;
+            this.posts = posts;
+            this.lastSeenIndicatorPosition = lastSeenIndicatorPosition;
+        }
+    }
+
+    /**
+     * New items for the adapter, with how they differ from the items of a {@link Snapshot}.
+     */
+    public static class Update {
+        private final int fromVersion;
+        private final List<ShownPost> posts;
+        private final int lastSeenIndicatorPosition;
+        private final DiffUtil.DiffResult diff;
+
+        private Update(int fromVersion, List<ShownPost> posts, int lastSeenIndicatorPosition,
+                       DiffUtil.DiffResult diff) {
+            this.fromVersion = fromVersion;
+            this.posts = posts;
+            this.lastSeenIndicatorPosition = lastSeenIndicatorPosition;
+            this.diff = diff;
+        }
+    }
+
+    /**
+     * A post with the parts of it that can change after it was created, as they were when it was
+     * shown.
+     */
+    private static class ShownPost {
+        private final Post post;
+        private final int repliesFromSize;
+        private final boolean deleted;
+        private final int replies;
+        private final int imagesCount;
+        private final boolean sticky;
+        private final boolean closed;
+        private final boolean archived;
+
+        @AnyThread
+        private ShownPost(Post post) {
+            this.post = post;
+            synchronized (post.repliesFrom) {
+                repliesFromSize = post.repliesFrom.size();
+            }
+            deleted = post.deleted.get();
+            replies = post.getReplies();
+            imagesCount = post.getImagesCount();
+            sticky = post.isSticky();
+            closed = post.isClosed();
+            archived = post.isArchived();
+        }
+
+        private boolean sameContents(ShownPost other) {
+            return post == other.post
+                    && repliesFromSize == other.repliesFromSize
+                    && deleted == other.deleted
+                    && replies == other.replies
+                    && imagesCount == other.imagesCount
+                    && sticky == other.sticky
+                    && closed == other.closed
+                    && archived == other.archived;
+        }
+    }
+
+    /**
+     * Compares the post items and the last seen indicator of two lists of items.
+     */
+    private static class ItemDiffCallback extends DiffUtil.Callback {
+        private final List<ShownPost> oldPosts;
+        private final int oldLastSeenIndicatorPosition;
+        private final List<ShownPost> newPosts;
+        private final int newLastSeenIndicatorPosition;
+
+        private ItemDiffCallback(List<ShownPost> oldPosts, int oldLastSeenIndicatorPosition,
+                                 List<ShownPost> newPosts, int newLastSeenIndicatorPosition) {
+            this.oldPosts = oldPosts;
+            this.oldLastSeenIndicatorPosition = oldLastSeenIndicatorPosition;
+            this.newPosts = newPosts;
+            this.newLastSeenIndicatorPosition = newLastSeenIndicatorPosition;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldPosts.size() + (oldLastSeenIndicatorPosition >= 0 ? 1 : 0);
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newPosts.size() + (newLastSeenIndicatorPosition >= 0 ? 1 : 0);
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            ShownPost oldPost = getItem(oldPosts, oldLastSeenIndicatorPosition, oldItemPosition);
+            ShownPost newPost = getItem(newPosts, newLastSeenIndicatorPosition, newItemPosition);
+            if (oldPost == null || newPost == null) {
+                return oldPost == newPost;
+            }
+            return oldPost.post.no == newPost.post.no;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            ShownPost oldPost = getItem(oldPosts, oldLastSeenIndicatorPosition, oldItemPosition);
+            ShownPost newPost = getItem(newPosts, newLastSeenIndicatorPosition, newItemPosition);
+            if (oldPost == null || newPost == null) {
+                return oldPost == newPost;
+            }
+            return oldPost.sameContents(newPost);
+        }
+
+        /**
+         * @return the post at the item position, or null for the last seen indicator.
+         */
+        private ShownPost getItem(List<ShownPost> posts, int lastSeenIndicatorPosition, int position) {
+            if (position == lastSeenIndicatorPosition) {
+                return null;
+            } else if (lastSeenIndicatorPosition >= 0 && position > lastSeenIndicatorPosition) {
+                return posts.get(position - 1);
+            } else {
+                return posts.get(position);
+            }
+        }
+    }
+
     public static class PostViewHolder extends RecyclerView.ViewHolder {
         private PostCellInterface postView;
 
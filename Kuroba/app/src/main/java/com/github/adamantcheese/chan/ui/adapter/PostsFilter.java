@@ -18,9 +18,12 @@ package com.github.adamantcheese.chan.ui.adapter;
 
 import android.text.TextUtils;
 
+import androidx.annotation.Nullable;
+
 import com.github.adamantcheese.chan.core.database.DatabaseManager;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.PostImage;
+import com.github.adamantcheese.chan.core.model.PostSearchIndex;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -28,6 +31,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import javax.inject.Inject;
 
@@ -74,12 +78,25 @@ public class PostsFilter {
     /**
      * Creates a copy of {@code original} and applies any sorting or filtering to it.
      *
-     * @param original List of {@link Post}s to filter.
-     * @param siteId   to get rid of collisions when figuring out if a post is hidden.
-     * @param board    to get rid of collisions when figuring out if a post is hidden.
+     * @param original    List of {@link Post}s to filter.
+     * @param searchIndex index of the posts to search with, or null to search their text.
+     * @param siteId      to get rid of collisions when figuring out if a post is hidden.
+     * @param board       to get rid of collisions when figuring out if a post is hidden.
      * @return a new filtered List
      */
-    public List<Post> apply(List<Post> original, int siteId, String board) {
+    public List<Post> apply(List<Post> original, @Nullable PostSearchIndex searchIndex, int siteId, String board) {
+        List<Post> posts = sortAndSearch(original, searchIndex, order, query);
+
+        // Process hidden by filter and post/thread hiding
+        return databaseManager.getDatabaseHideManager().filterHiddenPosts(posts, siteId, board);
+    }
+
+    /**
+     * The order and search part of {@link #apply}, without the hidden posts.
+     *
+     * @return a sorted and searched copy of {@code original}
+     */
+    private static List<Post> sortAndSearch(List<Post> original, @Nullable PostSearchIndex searchIndex, Order order, String query) {
         List<Post> posts = new ArrayList<>(original);
 
         // Process order
@@ -109,13 +126,16 @@ public class PostsFilter {
         // Process search
         if (!TextUtils.isEmpty(query)) {
             String lowerQuery = query.toLowerCase(Locale.ENGLISH);
+            Set<Integer> found = searchIndex == null ? null : searchIndex.search(lowerQuery);
 
             boolean add;
             Iterator<Post> i = posts.iterator();
             while (i.hasNext()) {
                 Post item = i.next();
                 add = false;
-                if (item.comment.toString().toLowerCase(Locale.ENGLISH).contains(lowerQuery)) {
+                if (found != null && searchIndex.contains(item)) {
+                    add = found.contains(item.no);
+                } else if (item.comment.toString().toLowerCase(Locale.ENGLISH).contains(lowerQuery)) {
                     add = true;
                 } else if (item.subject.toLowerCase(Locale.ENGLISH).contains(lowerQuery)) {
                     add = true;
@@ -135,9 +155,7 @@ public class PostsFilter {
             }
         }
 
-        // Process hidden by filter and post/thread hiding
-        return databaseManager.getDatabaseHideManager().filterHiddenPosts(posts, siteId, board);
-
+        return posts;
     }
 
     public enum Order {
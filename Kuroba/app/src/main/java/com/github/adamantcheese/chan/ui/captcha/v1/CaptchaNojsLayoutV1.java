@@ -29,6 +29,7 @@ import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import com.github.adamantcheese.chan.Chan;
 import com.github.adamantcheese.chan.core.site.Site;
 import com.github.adamantcheese.chan.core.site.SiteAuthentication;
 import com.github.adamantcheese.chan.ui.captcha.AuthenticationLayoutCallback;
@@ -56,7 +57,7 @@ public class CaptchaNojsLayoutV1 extends WebView implements AuthenticationLayout
     private String baseUrl;
     private String siteKey;
 
-    private OkHttpClient okHttpClient = new OkHttpClient();
+    private OkHttpClient okHttpClient = Chan.injector().instance(OkHttpClient.class);
 
     private String webviewUserAgent;
 
@@ -32,6 +32,7 @@ import com.github.adamantcheese.chan.core.model.PostImage;
 import com.github.adamantcheese.chan.core.settings.ChanSettings;
 import com.github.adamantcheese.chan.ui.layout.FixedRatioLinearLayout;
 import com.github.adamantcheese.chan.ui.text.FastTextView;
+import com.github.adamantcheese.chan.ui.theme.Theme;
 import com.github.adamantcheese.chan.ui.theme.ThemeHelper;
 import com.github.adamantcheese.chan.ui.view.FloatingMenu;
 import com.github.adamantcheese.chan.ui.view.FloatingMenuItem;
@@ -179,6 +180,11 @@ public class CardPostCell extends CardView implements PostCellInterface, View.On
         return thumbnailView;
     }
 
+    @Override
+    public void cancelThumbnailRequests() {
+        thumbnailView.cancelPendingRequest();
+    }
+
     @Override
     public boolean hasOverlappingRendering() {
         return false;
@@ -202,23 +208,23 @@ public class CardPostCell extends CardView implements PostCellInterface, View.On
             filterMatchColor.setVisibility(View.GONE);
         }
 
+        Theme theme = Chan.injector().instance(ThemeHelper.class).getTheme();
+
         if (!TextUtils.isEmpty(post.subjectSpan)) {
             title.setVisibility(View.VISIBLE);
-            title.setText(post.subjectSpan);
+            title.setText(post.subjectSpan.render(theme));
         } else {
             title.setVisibility(View.GONE);
             title.setText(null);
         }
 
-        CharSequence commentText;
-        if (post.comment.length() > COMMENT_MAX_LENGTH) {
-            commentText = post.comment.subSequence(0, COMMENT_MAX_LENGTH);
-        } else {
-            commentText = post.comment;
+        CharSequence commentText = post.comment.render(theme);
+        if (commentText.length() > COMMENT_MAX_LENGTH) {
+            commentText = commentText.subSequence(0, COMMENT_MAX_LENGTH);
         }
 
         comment.setText(commentText);
-        comment.setTextColor(Chan.injector().instance(ThemeHelper.class).getTheme().textPrimary);
+        comment.setTextColor(theme.textPrimary);
 
         replies.setText(getResources().getString(R.string.card_stats, post.getReplies(), post.getImagesCount()));
     }
@@ -110,6 +110,7 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
 
     private boolean bound = false;
     private Post post;
+    private Theme previewTheme;
     private PostCellCallback callback;
     private boolean selectable;
     private boolean highlighted;
@@ -260,7 +261,7 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
         super.onAttachedToWindow();
 
         if (post != null && !bound) {
-            bindPost(Chan.injector().instance(ThemeHelper.class).getTheme(), post);
+            bindPost(getTheme(), post);
         }
     }
 
@@ -295,13 +296,24 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
         this.markedNo = markedNo;
         this.showDivider = showDivider;
 
-        bindPost(Chan.injector().instance(ThemeHelper.class).getTheme(), post);
+        bindPost(getTheme(), post);
     }
 
     public Post getPost() {
         return post;
     }
 
+    /**
+     * Show the post with this theme instead of the current one. Call before {@link #setPost}.
+     */
+    public void setPreviewTheme(Theme previewTheme) {
+        this.previewTheme = previewTheme;
+    }
+
+    private Theme getTheme() {
+        return previewTheme != null ? previewTheme : Chan.injector().instance(ThemeHelper.class).getTheme();
+    }
+
     public ThumbnailView getThumbnailView(PostImage postImage) {
         for (int i = 0; i < post.images.size(); i++) {
             if (post.images.get(i).equalUrl(postImage)) {
@@ -312,6 +324,13 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
         return null;
     }
 
+    @Override
+    public void cancelThumbnailRequests() {
+        for (PostImageThumbnailView thumbnailView : thumbnailViews) {
+            thumbnailView.cancelPendingRequest();
+        }
+    }
+
     @Override
     public boolean hasOverlappingRendering() {
         return false;
@@ -355,11 +374,13 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
         List<CharSequence> titleParts = new ArrayList<>(5);
 
         if (post.subjectSpan != null) {
-            titleParts.add(post.subjectSpan);
+            titleParts.add(post.subjectSpan.render(theme));
             titleParts.add("\n");
         }
 
-        titleParts.add(post.nameTripcodeIdCapcodeSpan);
+        if (post.nameTripcodeIdCapcodeSpan != null) {
+            titleParts.add(post.nameTripcodeIdCapcodeSpan.render(theme));
+        }
 
         CharSequence time;
         if (ChanSettings.postFullDate.get()) {
@@ -419,11 +440,9 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
 
         icons.apply();
 
-        CharSequence commentText;
-        if (!threadMode && post.comment.length() > COMMENT_MAX_LENGTH_BOARD) {
-            commentText = truncatePostComment(post);
-        } else {
-            commentText = post.comment;
+        CharSequence commentText = post.comment.render(theme);
+        if (!threadMode && commentText.length() > COMMENT_MAX_LENGTH_BOARD) {
+            commentText = truncatePostComment(commentText);
         }
 
         comment.setVisibility(isEmpty(commentText) && post.images == null ? GONE : VISIBLE);
@@ -525,6 +544,7 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
 
     private void buildThumbnails() {
         for (PostImageThumbnailView thumbnailView : thumbnailViews) {
+            thumbnailView.setPostImage(null, 0, 0);
             relativeLayoutContainer.removeView(thumbnailView);
         }
         thumbnailViews.clear();
@@ -575,28 +595,25 @@ public class PostCell extends LinearLayout implements PostCellInterface, View.On
     }
 
     private void setPostLinkableListener(Post post, boolean bind) {
-        if (post.comment instanceof Spanned) {
-            Spanned commentSpanned = (Spanned) post.comment;
-            PostLinkable[] linkables = commentSpanned.getSpans(0, commentSpanned.length(), PostLinkable.class);
-            for (PostLinkable linkable : linkables) {
-                linkable.setMarkedNo(bind ? markedNo : -1);
-            }
+        for (PostLinkable linkable : post.linkables) {
+            linkable.setMarkedNo(bind ? markedNo : -1);
+        }
 
-            if (!bind) {
-                if (commentSpanned instanceof Spannable) {
-                    Spannable commentSpannable = (Spannable) commentSpanned;
-                    commentSpannable.removeSpan(BACKGROUND_SPAN);
-                }
+        if (!bind) {
+            // The rendered comment is cached and shown again, it must not keep the touch highlight
+            CharSequence commentText = comment.getText();
+            if (commentText instanceof Spannable) {
+                ((Spannable) commentText).removeSpan(BACKGROUND_SPAN);
             }
         }
     }
 
-    private CharSequence truncatePostComment(Post post) {
+    private CharSequence truncatePostComment(CharSequence postComment) {
         BreakIterator bi = BreakIterator.getWordInstance();
-        bi.setText(post.comment.toString());
+        bi.setText(postComment.toString());
         int precedingBoundary = bi.following(PostCell.COMMENT_MAX_LENGTH_BOARD);
         // Fallback to old method in case the comment does not have any spaces/individual words
-        CharSequence commentText = precedingBoundary > 0 ? post.comment.subSequence(0, precedingBoundary) : post.comment.subSequence(0, PostCell.COMMENT_MAX_LENGTH_BOARD);
+        CharSequence commentText = precedingBoundary > 0 ? postComment.subSequence(0, precedingBoundary) : postComment.subSequence(0, PostCell.COMMENT_MAX_LENGTH_BOARD);
         return TextUtils.concat(commentText, "\u2026"); // append ellipsis
     }
 
@@ -41,6 +41,11 @@ public interface PostCellInterface {
 
     ThumbnailView getThumbnailView(PostImage postImage);
 
+    /**
+     * Called when the cell is recycled, drops thumbnail requests that haven't finished.
+     */
+    void cancelThumbnailRequests();
+
     interface PostCellCallback {
         Loadable getLoadable();
 
@@ -24,10 +24,13 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import com.github.adamantcheese.chan.Chan;
 import com.github.adamantcheese.chan.R;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.PostImage;
 import com.github.adamantcheese.chan.core.settings.ChanSettings;
+import com.github.adamantcheese.chan.ui.theme.Theme;
+import com.github.adamantcheese.chan.ui.theme.ThemeHelper;
 import com.github.adamantcheese.chan.ui.view.FloatingMenu;
 import com.github.adamantcheese.chan.ui.view.FloatingMenuItem;
 import com.github.adamantcheese.chan.ui.view.ThumbnailView;
@@ -167,6 +170,10 @@ public class PostStubCell extends RelativeLayout implements PostCellInterface, V
         return null;
     }
 
+    @Override
+    public void cancelThumbnailRequests() {
+    }
+
     @Override
     public boolean hasOverlappingRendering() {
         return false;
@@ -175,14 +182,13 @@ public class PostStubCell extends RelativeLayout implements PostCellInterface, V
     private void bindPost(Post post) {
         bound = true;
 
+        Theme theme = Chan.injector().instance(ThemeHelper.class).getTheme();
         if (!TextUtils.isEmpty(post.subjectSpan)) {
-            title.setText(post.subjectSpan);
+            title.setText(post.subjectSpan.render(theme));
         } else {
-            CharSequence titleText;
-            if (post.comment.length() > TITLE_MAX_LENGTH) {
-                titleText = post.comment.subSequence(0, TITLE_MAX_LENGTH);
-            } else {
-                titleText = post.comment;
+            CharSequence titleText = post.comment.render(theme);
+            if (titleText.length() > TITLE_MAX_LENGTH) {
+                titleText = titleText.subSequence(0, TITLE_MAX_LENGTH);
             }
             title.setText(titleText);
         }
@@ -349,7 +349,8 @@ public class BrowseController extends ThreadController implements
         ThreadPresenter presenter = threadLayout.getPresenter();
         presenter.unbindLoadable();
         presenter.bindLoadable(loadable);
-        presenter.requestData();
+        // Shows the catalog right away if it was loaded in the last minutes, reloading is explicit
+        presenter.requestInitialData();
 
         ((ToolbarNavigationController) navigationController).toolbar.updateTitle(navigation);
     }
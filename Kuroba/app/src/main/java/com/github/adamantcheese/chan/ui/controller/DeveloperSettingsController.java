@@ -28,7 +28,10 @@ import com.github.adamantcheese.chan.Chan;
 import com.github.adamantcheese.chan.R;
 import com.github.adamantcheese.chan.controller.Controller;
 import com.github.adamantcheese.chan.core.cache.FileCache;
+import com.github.adamantcheese.chan.core.cache.ThumbnailDiskCache;
 import com.github.adamantcheese.chan.core.database.DatabaseManager;
+import com.github.adamantcheese.chan.core.site.common.DefaultPostParser;
+import com.github.adamantcheese.chan.utils.ImageDecoder;
 
 import javax.inject.Inject;
 
@@ -103,6 +106,11 @@ public class DeveloperSettingsController extends Controller {
         String dbSummary = "";
         dbSummary += "Database summary:\n";
         dbSummary += databaseManager.getSummary();
+        dbSummary += "\nImage decoder summary:\n";
+        dbSummary += ImageDecoder.getSummary();
+        dbSummary += "Comment parsing:\n";
+        dbSummary += DefaultPostParser.getSummary();
+        dbSummary += "Thumbnail disk cache: " + Chan.injector().instance(ThumbnailDiskCache.class).getSummary() + "\n";
         summaryText.setText(dbSummary);
     }
 }
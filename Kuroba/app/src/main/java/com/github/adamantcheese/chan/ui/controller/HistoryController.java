@@ -205,7 +205,7 @@ public class HistoryController extends Controller implements
         private void load() {
             if (!resultPending) {
                 resultPending = true;
-                databaseManager.runTaskAsync(databaseHistoryManager.getHistory(), this);
+                databaseManager.runReadTaskAsync(databaseHistoryManager.getHistory(), this);
             }
         }
 
@@ -144,6 +144,10 @@ public class MediaSettingsController extends SettingsController {
                     R.string.setting_video_auto_loop,
                     R.string.setting_video_auto_loop_description));
 
+            setupFileCacheSizeSetting(loading);
+
+            setupThumbnailPrefetchSetting(loading);
+
             groups.add(loading);
         }
     }
@@ -182,6 +186,38 @@ public class MediaSettingsController extends SettingsController {
         updateVideoLoadModes();
     }
 
+    private void setupFileCacheSizeSetting(SettingsGroup loading) {
+        List<ListSettingView.Item> cacheSizes = new ArrayList<>();
+        for (int size : new int[]{50, 100, 250, 500, 1000}) {
+            String name = context.getString(R.string.setting_file_cache_size_item, size) +
+                    (size == ChanSettings.fileCacheSize.getDefault() ?
+                            " " + getString(R.string.setting_file_cache_size_default) :
+                            "");
+            cacheSizes.add(new ListSettingView.Item<>(name, size));
+        }
+
+        loading.add(new ListSettingView<>(this,
+                ChanSettings.fileCacheSize,
+                R.string.setting_file_cache_size, cacheSizes));
+    }
+
+    private void setupThumbnailPrefetchSetting(SettingsGroup loading) {
+        List<ListSettingView.Item> prefetchRows = new ArrayList<>();
+        for (int rows : new int[]{0, 1, 2, 4, 8}) {
+            String name = (rows == 0 ?
+                    getString(R.string.setting_thumbnail_prefetch_rows_off) :
+                    context.getResources().getQuantityString(R.plurals.setting_thumbnail_prefetch_rows_item, rows, rows)) +
+                    (rows == ChanSettings.thumbnailPrefetchRows.getDefault() ?
+                            " " + getString(R.string.setting_thumbnail_prefetch_rows_default) :
+                            "");
+            prefetchRows.add(new ListSettingView.Item<>(name, rows));
+        }
+
+        loading.add(new ListSettingView<>(this,
+                ChanSettings.thumbnailPrefetchRows,
+                R.string.setting_thumbnail_prefetch_rows, prefetchRows));
+    }
+
     private void updateVideoLoadModes() {
         ChanSettings.MediaAutoLoadMode currentImageLoadMode = ChanSettings.imageAutoLoadNetwork.get();
         ChanSettings.MediaAutoLoadMode[] modes = ChanSettings.MediaAutoLoadMode.values();
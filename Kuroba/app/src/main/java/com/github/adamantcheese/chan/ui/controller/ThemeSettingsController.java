@@ -281,7 +281,7 @@ public class ThemeSettingsController extends Controller implements View.OnClickL
                             "http://example.com/" +
                             "<br>" +
                             "Phasellus consequat semper sodales. Donec dolor lectus, aliquet nec mollis vel, rutrum vel enim.");
-            Post post = new DefaultPostParser(new CommentParser()).parse(theme, builder, parserCallback);
+            Post post = new DefaultPostParser(new CommentParser()).parse(builder, parserCallback);
 
             LinearLayout linearLayout = new LinearLayout(themeContext);
             linearLayout.setOrientation(LinearLayout.VERTICAL);
@@ -339,6 +339,7 @@ public class ThemeSettingsController extends Controller implements View.OnClickL
                     themeContext.getResources().getDimensionPixelSize(R.dimen.toolbar_height)));
 
             PostCell postCell = (PostCell) LayoutInflater.from(themeContext).inflate(R.layout.cell_post, null);
+            postCell.setPreviewTheme(theme);
             postCell.setPost(post,
                     dummyPostCallback,
                     false,
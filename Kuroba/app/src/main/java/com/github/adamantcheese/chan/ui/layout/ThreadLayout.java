@@ -253,10 +253,14 @@ public class ThreadLayout extends CoordinatorLayout implements
     }
 
     @Override
-    public void showPosts(ChanThread thread, PostsFilter filter) {
-        threadListLayout.showPosts(thread, filter, visible != Visible.THREAD);
-        switchVisible(Visible.THREAD);
-        callback.onShowPosts();
+    public void showPosts(ChanThread thread, PostsFilter filter, Runnable onPostsShown) {
+        threadListLayout.showPosts(thread, filter, visible != Visible.THREAD, () -> {
+            switchVisible(Visible.THREAD);
+            callback.onShowPosts();
+            if (onPostsShown != null) {
+                onPostsShown.run();
+            }
+        });
     }
 
     @Override
@@ -649,6 +653,11 @@ public class ThreadLayout extends CoordinatorLayout implements
     }
 
     private void switchVisible(Visible visible) {
+        if (visible != Visible.THREAD) {
+            // Posts that are still being filtered are from before this
+            threadListLayout.cancelShowPosts();
+        }
+
         if (this.visible != visible) {
             if (this.visible != null) {
                 if (this.visible == Visible.THREAD) {
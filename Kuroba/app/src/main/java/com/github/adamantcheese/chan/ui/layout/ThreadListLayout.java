@@ -42,6 +42,7 @@ import com.github.adamantcheese.chan.core.model.ChanThread;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.PostImage;
 import com.github.adamantcheese.chan.core.model.orm.Loadable;
+import com.github.adamantcheese.chan.core.net.ThumbnailLoader;
 import com.github.adamantcheese.chan.core.presenter.ReplyPresenter;
 import com.github.adamantcheese.chan.core.settings.ChanSettings;
 import com.github.adamantcheese.chan.core.site.http.Reply;
@@ -57,10 +58,15 @@ import com.github.adamantcheese.chan.ui.view.FastScroller;
 import com.github.adamantcheese.chan.ui.view.FastScrollerHelper;
 import com.github.adamantcheese.chan.ui.view.ThumbnailView;
 import com.github.adamantcheese.chan.utils.AndroidUtils;
+import com.github.adamantcheese.chan.utils.BackgroundUtils;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
+import static com.github.adamantcheese.chan.Chan.injector;
 import static com.github.adamantcheese.chan.utils.AndroidUtils.ROBOTO_MEDIUM;
 import static com.github.adamantcheese.chan.utils.AndroidUtils.dp;
 import static com.github.adamantcheese.chan.utils.AndroidUtils.getAttrColor;
@@ -72,6 +78,9 @@ import static com.github.adamantcheese.chan.utils.AndroidUtils.getDimen;
 public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLayoutCallback {
     public static final int MAX_SMOOTH_SCROLL_DISTANCE = 20;
 
+    // Sorting, searching and hiding posts can take a while on big threads, it's done here.
+    private static final Executor FILTER_EXECUTOR = Executors.newSingleThreadExecutor();
+
     private ReplyLayout reply;
     private TextView searchStatus;
     private RecyclerView recyclerView;
@@ -87,6 +96,12 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
     private int background;
     private boolean searchOpen;
     private int lastPostCount;
+    private int lastPrefetchEdge = -1;
+
+    private BackgroundUtils.Cancelable filterTask;
+    // Set when the posts being filtered are the first ones shown of this thread
+    private boolean filterInitial;
+    private List<Runnable> postsShownCallbacks = new ArrayList<>();
 
     private Handler mainHandler = new Handler(Looper.getMainLooper());
 
@@ -94,6 +109,7 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
         @Override
         public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
             onRecyclerViewScrolled();
+            prefetchThumbnails(dy);
         }
     };
 
@@ -231,11 +247,59 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
         }
     }
 
-    public void showPosts(ChanThread thread, PostsFilter filter, boolean initial) {
+    /**
+     * Filter the posts of the thread in the background and show them.
+     *
+     * @param initial      if this is the first time posts of this thread are shown.
+     * @param onPostsShown called once the posts are in the list, scrolling to a post must be
+     *                     done from here. When a newer call replaces this one before the posts
+     *                     are shown, it's called after the posts of that call are shown instead.
+     */
+    public void showPosts(ChanThread thread, PostsFilter filter, boolean initial, Runnable onPostsShown) {
         showingThread = thread;
         if (initial) {
             reply.bindLoadable(showingThread.loadable);
+            party();
+        }
 
+        setFastScroll(true);
+
+        if (filterTask != null) {
+            filterTask.cancel();
+        }
+        filterInitial |= initial;
+        postsShownCallbacks.add(onPostsShown);
+
+        // The loader may replace the posts while they are being filtered, use a copy.
+        List<Post> posts = new ArrayList<>(thread.posts);
+        // A new thread replaces everything, otherwise only the changed posts are updated.
+        PostAdapter.Snapshot shown = filterInitial ? null : postAdapter.snapshot();
+        filterTask = BackgroundUtils.runWithExecutor(FILTER_EXECUTOR, () -> {
+            List<Post> filteredPosts = filter.apply(posts, thread.searchIndex,
+                    thread.loadable.site.id(), thread.loadable.board.code);
+            return PostAdapter.calculateUpdate(shown, thread, filteredPosts);
+        }, update -> onPostsFiltered(thread, update));
+    }
+
+    /**
+     * Forget about posts that are still being filtered, they won't be shown.
+     */
+    public void cancelShowPosts() {
+        if (filterTask != null) {
+            filterTask.cancel();
+            filterTask = null;
+        }
+        filterInitial = false;
+        postsShownCallbacks.clear();
+    }
+
+    private void onPostsFiltered(ChanThread thread, PostAdapter.Update update) {
+        filterTask = null;
+
+        if (filterInitial) {
+            filterInitial = false;
+
+            // Restore the scroll position once the posts are there to scroll to
             recyclerView.setLayoutManager(null);
             recyclerView.setLayoutManager(layoutManager);
             recyclerView.getRecycledViewPool().clear();
@@ -251,31 +315,15 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
                     ((GridLayoutManager) layoutManager).scrollToPositionWithOffset(index, top);
                     break;
             }
-
-            party();
         }
 
-        setFastScroll(true);
+        postAdapter.setThread(thread, update);
 
-        /*
-         * We call a blocking function that accesses the database from a background thread but doesn't
-         * throw an exception here. Why, you would ask? Because we can't use callbacks here, otherwise
-         * everything in ThreadPresenter.onChanLoaderData() below showPosts will be executed BEFORE
-         * filtered posts are shown in the RecyclerView. This will break scrolling to the last seen
-         * post as well as introduce some visual posts jiggling. This can be fixed by executing everything
-         * in ThreadPresenter.onChanLoaderData() below showPosts in a callback that is called after
-         * posts are assigned to the adapter. But that's a lot of code and it may break something else.
-         *
-         * This solution works but it will hang the main thread for some time (it shouldn't be for very
-         * long since we have like 300-500 posts in a thread to filter in the database).
-         * BUT if for some reason it starts to cause ANRs then we will have to apply the callback solution.
-         */
-        List<Post> filteredPosts = filter.apply(
-                thread.posts,
-                thread.loadable.site.id(),
-                thread.loadable.board.code
-        );
-        postAdapter.setThread(thread, filteredPosts);
+        List<Runnable> callbacks = new ArrayList<>(postsShownCallbacks);
+        postsShownCallbacks.clear();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
     }
 
     public boolean onBack() {
@@ -453,12 +501,14 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
     }
 
     public void cleanup() {
+        cancelShowPosts();
         postAdapter.cleanup();
         reply.cleanup();
         openReply(false);
         openSearch(false);
         showingThread = null;
         lastPostCount = 0;
+        lastPrefetchEdge = -1;
         noParty();
     }
 
@@ -664,6 +714,44 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
         return toolbar.getToolbarHeight();
     }
 
+    /**
+     * Prefetches the thumbnails of the rows that are about to scroll into view, the number of rows
+     * is a setting.
+     */
+    private void prefetchThumbnails(int dy) {
+        int rows = ChanSettings.thumbnailPrefetchRows.get();
+        if (showingThread == null || dy == 0 || rows <= 0 || ChanSettings.textOnly.get()) {
+            return;
+        }
+
+        int edge = dy > 0 ? getBottomAdapterPosition() : getTopAdapterPosition();
+        if (edge < 0 || edge == lastPrefetchEdge) {
+            return;
+        }
+        lastPrefetchEdge = edge;
+
+        int items = rows * (postViewMode == ChanSettings.PostViewMode.CARD ? spanCount : 1);
+        int direction = dy > 0 ? 1 : -1;
+        List<Post> posts = postAdapter.getDisplayList();
+        ThumbnailLoader thumbnailLoader = injector().instance(ThumbnailLoader.class);
+        // The loader sends the most recent prefetch first, so go from far to near
+        for (int i = items; i > 0; i--) {
+            int position = edge + i * direction;
+            if (position < 0 || position >= postAdapter.getItemCount()) {
+                continue;
+            }
+
+            int postPosition = postAdapter.getPostPosition(position);
+            if (postPosition >= posts.size()) {
+                continue;
+            }
+
+            for (PostImage image : posts.get(postPosition).images) {
+                thumbnailLoader.prefetch(image.getThumbnailUrl().toString());
+            }
+        }
+    }
+
     private int getTopAdapterPosition() {
         switch (postViewMode) {
             case LIST:
@@ -674,6 +762,16 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
         return -1;
     }
 
+    private int getBottomAdapterPosition() {
+        switch (postViewMode) {
+            case LIST:
+                return ((LinearLayoutManager) layoutManager).findLastVisibleItemPosition();
+            case CARD:
+                return ((GridLayoutManager) layoutManager).findLastVisibleItemPosition();
+        }
+        return -1;
+    }
+
     private int getCompleteBottomAdapterPosition() {
         switch (postViewMode) {
             case LIST:
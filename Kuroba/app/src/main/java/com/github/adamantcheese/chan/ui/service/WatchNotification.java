@@ -41,6 +41,7 @@ import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.PostLinkable;
 import com.github.adamantcheese.chan.core.model.orm.Pin;
 import com.github.adamantcheese.chan.core.settings.ChanSettings;
+import com.github.adamantcheese.chan.ui.theme.ThemeHelper;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -215,7 +216,8 @@ public class WatchNotification extends Service {
 
                 CharSequence comment = postForExpandedLine.image() != null ? "(img) " : "";
                 if (postForExpandedLine.comment.length() > 0) {
-                    comment = TextUtils.concat(comment, postForExpandedLine.comment);
+                    comment = TextUtils.concat(comment,
+                            postForExpandedLine.comment.render(Chan.injector().instance(ThemeHelper.class).getTheme()));
                 }
 
                 // Replace >>123456789 with >789 to shorten the notification
@@ -0,0 +1,306 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.ui.text;
+
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.AbsoluteSizeSpan;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.UnderlineSpan;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import com.github.adamantcheese.chan.core.model.PostLinkable;
+import com.github.adamantcheese.chan.core.settings.ChanSettings;
+import com.github.adamantcheese.chan.core.site.common.DefaultPostParser;
+import com.github.adamantcheese.chan.ui.theme.Theme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.github.adamantcheese.chan.utils.AndroidUtils.sp;
+
+/**
+ * Parsed text of a post that doesn't depend on the theme: the plain text with runs of style ids
+ * packed in an int array. The spans are made with {@link #render(Theme)} when the text is shown,
+ * the last render is kept with the text.
+ * <p>
+ * Parsers put {@link #span(int)} placeholders for the theme colors and sizes on the spanned text
+ * they build, {@link #of(CharSequence)} turns that into the runs. Spans that don't depend on the
+ * theme, like bold or a fixed color, are turned into runs as well. Linkables are kept without a
+ * theme and drawn by a copy for the theme. Any other span is an error.
+ */
+@AnyThread
+public class StyledText implements CharSequence {
+    public static final int QUOTE_COLOR = 1;
+    public static final int INLINE_QUOTE_COLOR = 2;
+    public static final int SUBJECT_COLOR = 3;
+    public static final int NAME_COLOR = 4;
+    public static final int CAPCODE_COLOR = 5;
+    public static final int ID_BACKGROUND_LIGHT = 6;
+    public static final int ID_BACKGROUND_DARK = 7;
+    public static final int CODE_BACKGROUND = 8;
+    // The details size follows the font size setting
+    public static final int DETAILS_SIZE = 9;
+    // The image of a custom emoji, found by the character it is on
+    public static final int CUSTOM_EMOJI = 18;
+    // Code and tables, 12sp
+    public static final int SMALL_SIZE = 19;
+    // These have their value as the argument of the run
+    private static final int COLOR = 10;
+    private static final int BACKGROUND_COLOR = 11;
+    private static final int SIZE = 12;
+    private static final int STYLE = 13;
+    private static final int STRIKETHROUGH = 14;
+    private static final int UNDERLINE = 15;
+    private static final int MONOSPACE = 16;
+    // The argument is the index in the linkables
+    private static final int LINKABLE = 17;
+
+    // start, end, style and argument of each run
+    private static final int RUN_LENGTH = 4;
+    private static final int[] NO_RUNS = new int[0];
+    private static final PostLinkable[] NO_LINKABLES = new PostLinkable[0];
+
+    private final String text;
+    private final int[] runs;
+    private final PostLinkable[] linkables;
+    // Goes away with the post, unlike a shared cache
+    private volatile Rendered rendered;
+
+    public StyledText(String text, int[] runs, PostLinkable[] linkables) {
+        this.text = text;
+        this.runs = runs;
+        this.linkables = linkables;
+    }
+
+    /**
+     * A placeholder for a theme dependent style, to put on the text while parsing.
+     */
+    public static Object span(int style) {
+        return new Placeholder(style);
+    }
+
+    /**
+     * Turns spanned text into styled text, see the class documentation.
+     */
+    public static StyledText of(CharSequence text) {
+        if (text instanceof StyledText) {
+            return (StyledText) text;
+        }
+
+        String plain = text.toString();
+        if (!(text instanceof Spanned)) {
+            return new StyledText(plain, NO_RUNS, NO_LINKABLES);
+        }
+
+        Spanned spanned = (Spanned) text;
+        Object[] spans = spanned.getSpans(0, spanned.length(), Object.class);
+        int[] runs = new int[spans.length * RUN_LENGTH];
+        List<PostLinkable> linkables = null;
+        int count = 0;
+        for (Object span : spans) {
+            int style;
+            int argument = 0;
+            if (span instanceof Placeholder) {
+                style = ((Placeholder) span).style;
+            } else if (span instanceof PostLinkable) {
+                if (linkables == null) {
+                    linkables = new ArrayList<>();
+                }
+                style = LINKABLE;
+                argument = linkables.size();
+                linkables.add((PostLinkable) span);
+            } else if (span instanceof ForegroundColorSpan) {
+                style = COLOR;
+                argument = ((ForegroundColorSpan) span).getForegroundColor();
+            } else if (span instanceof BackgroundColorSpan) {
+                style = BACKGROUND_COLOR;
+                argument = ((BackgroundColorSpan) span).getBackgroundColor();
+            } else if (span instanceof AbsoluteSizeSpan && !((AbsoluteSizeSpan) span).getDip()) {
+                style = SIZE;
+                argument = ((AbsoluteSizeSpan) span).getSize();
+            } else if (span instanceof StyleSpan) {
+                style = STYLE;
+                argument = ((StyleSpan) span).getStyle();
+            } else if (span instanceof StrikethroughSpan) {
+                style = STRIKETHROUGH;
+            } else if (span instanceof UnderlineSpan) {
+                style = UNDERLINE;
+            } else if (span instanceof TypefaceSpan && "monospace".equals(((TypefaceSpan) span).getFamily())) {
+                style = MONOSPACE;
+            } else {
+                throw new IllegalArgumentException("Span not supported: " + span.getClass().getName());
+            }
+
+            int i = count * RUN_LENGTH;
+            runs[i] = spanned.getSpanStart(span);
+            runs[i + 1] = spanned.getSpanEnd(span);
+            runs[i + 2] = style;
+            runs[i + 3] = argument;
+            count++;
+        }
+
+        return new StyledText(plain,
+                count == 0 ? NO_RUNS : Arrays.copyOf(runs, count * RUN_LENGTH),
+                linkables == null ? NO_LINKABLES : linkables.toArray(new PostLinkable[0]));
+    }
+
+    /**
+     * The text with the spans for the theme.
+     */
+    public CharSequence render(Theme theme) {
+        if (runs.length == 0) {
+            return text;
+        }
+
+        int detailsSize = sp(Integer.parseInt(ChanSettings.fontSize.get()) - 4);
+        int smallSize = sp(12f);
+        Rendered last = rendered;
+        if (last != null && last.theme == theme && last.detailsSize == detailsSize && last.smallSize == smallSize) {
+            return last.text;
+        }
+
+        SpannableString spannable = new SpannableString(text);
+        for (int i = 0; i < runs.length; i += RUN_LENGTH) {
+            Object span = createSpan(theme, runs[i], runs[i + 2], runs[i + 3], detailsSize, smallSize);
+            if (span != null) {
+                spannable.setSpan(span, runs[i], runs[i + 1], 0);
+            }
+        }
+
+        rendered = new Rendered(theme, detailsSize, smallSize, spannable);
+        return spannable;
+    }
+
+    /**
+     * The runs, for storing this. Not to be modified.
+     */
+    public int[] getRuns() {
+        return runs;
+    }
+
+    /**
+     * The linkables in the text, in the order of their runs.
+     */
+    public List<PostLinkable> getLinkables() {
+        return Collections.unmodifiableList(Arrays.asList(linkables));
+    }
+
+    private Object createSpan(Theme theme, int start, int style, int argument, int detailsSize, int smallSize) {
+        switch (style) {
+            case QUOTE_COLOR:
+                return new ForegroundColorSpanHashed(theme.quoteColor);
+            case INLINE_QUOTE_COLOR:
+                return new ForegroundColorSpanHashed(theme.inlineQuoteColor);
+            case SUBJECT_COLOR:
+                return new ForegroundColorSpanHashed(theme.subjectColor);
+            case NAME_COLOR:
+                return new ForegroundColorSpanHashed(theme.nameColor);
+            case CAPCODE_COLOR:
+                return new ForegroundColorSpanHashed(theme.capcodeColor);
+            case ID_BACKGROUND_LIGHT:
+                return new BackgroundColorSpan(theme.idBackgroundLight);
+            case ID_BACKGROUND_DARK:
+                return new BackgroundColorSpan(theme.idBackgroundDark);
+            case CODE_BACKGROUND:
+                return new BackgroundColorSpanHashed(theme.backColorSecondary);
+            case DETAILS_SIZE:
+                return new AbsoluteSizeSpanHashed(detailsSize);
+            case SMALL_SIZE:
+                return new AbsoluteSizeSpanHashed(smallSize);
+            case COLOR:
+                return new ForegroundColorSpanHashed(argument);
+            case BACKGROUND_COLOR:
+                return new BackgroundColorSpanHashed(argument);
+            case SIZE:
+                return new AbsoluteSizeSpanHashed(argument);
+            case STYLE:
+                return new StyleSpan(argument);
+            case STRIKETHROUGH:
+                return new StrikethroughSpan();
+            case UNDERLINE:
+                return new UnderlineSpan();
+            case MONOSPACE:
+                return new TypefaceSpan("monospace");
+            case LINKABLE:
+                if (argument < 0 || argument >= linkables.length) {
+                    return null;
+                }
+                // A copy for other themes, the text may be shown with more than one at a time
+                return linkables[argument].withTheme(theme);
+            case CUSTOM_EMOJI:
+                return start < text.length() ? DefaultPostParser.getCustomEmojiSpan(text.charAt(start)) : null;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    /**
+     * A part of the plain text, render first to get a part with the spans.
+     */
+    @NonNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private static class Placeholder {
+        private final int style;
+
+        private Placeholder(int style) {
+            this.style = style;
+        }
+    }
+
+    private static class Rendered {
+        private final Theme theme;
+        private final int detailsSize;
+        private final int smallSize;
+        private final CharSequence text;
+
+        private Rendered(Theme theme, int detailsSize, int smallSize, CharSequence text) {
+            this.theme = theme;
+            this.detailsSize = detailsSize;
+            this.smallSize = smallSize;
+            this.text = text;
+        }
+    }
+}
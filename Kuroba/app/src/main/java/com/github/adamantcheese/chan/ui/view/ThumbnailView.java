@@ -42,6 +42,7 @@ import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.ImageLoader;
 import com.github.adamantcheese.chan.R;
+import com.github.adamantcheese.chan.core.net.ThumbnailLoader;
 
 import static com.github.adamantcheese.chan.Chan.injector;
 import static com.github.adamantcheese.chan.utils.AndroidUtils.getString;
@@ -49,6 +50,9 @@ import static com.github.adamantcheese.chan.utils.AndroidUtils.sp;
 
 public class ThumbnailView extends View implements ImageLoader.ImageListener {
     private ImageLoader.ImageContainer container;
+    private String url;
+    private int maxWidth;
+    private int maxHeight;
 
     private boolean circular = false;
     private int rounding = 0;
@@ -98,14 +102,58 @@ public class ThumbnailView extends View implements ImageLoader.ImageListener {
         }
 
         if (container != null) {
-            container.cancelRequest();
+            injector().instance(ThumbnailLoader.class).cancel(container);
             container = null;
             error = false;
             setImageBitmap(null);
         }
 
+        this.url = url;
+        this.maxWidth = width;
+        this.maxHeight = height;
+
         if (!TextUtils.isEmpty(url)) {
-            container = injector().instance(ImageLoader.class).get(url, this, width, height);
+            requestThumbnail();
+        }
+    }
+
+    /**
+     * Drops the request if the thumbnail hasn't loaded yet, used when the view is recycled. The url
+     * is kept so the thumbnail is requested again if the view gets attached without a new url.
+     */
+    public void cancelPendingRequest() {
+        if (container != null && container.getBitmap() == null) {
+            injector().instance(ThumbnailLoader.class).cancel(container);
+            container = null;
+        }
+    }
+
+    private void requestThumbnail() {
+        ThumbnailLoader thumbnailLoader = injector().instance(ThumbnailLoader.class);
+        error = false;
+        container = thumbnailLoader.get(url, this, maxWidth, maxHeight);
+        if (!isAttachedToWindow()) {
+            thumbnailLoader.setVisible(container, false);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        if (container != null) {
+            injector().instance(ThumbnailLoader.class).setVisible(container, true);
+        } else if (!TextUtils.isEmpty(url) && bitmap == null && !error) {
+            requestThumbnail();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        if (container != null) {
+            injector().instance(ThumbnailLoader.class).setVisible(container, false);
         }
     }
 
@@ -0,0 +1,125 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.utils;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bitmaps that nothing references anymore, kept so that a decode can reuse their memory through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}. Only put bitmaps in here that were
+ * never handed out, a reused bitmap is overwritten.
+ * <p>
+ * Bitmaps are kept per config, by allocation size. Any mutable bitmap of the same config that is
+ * large enough can be decoded into, so lookups take the smallest one that fits.
+ */
+public class BitmapPool {
+    private final long maxBytes;
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> pool = new EnumMap<>(Bitmap.Config.class);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return;
+        }
+
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            return;
+        }
+
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = pool.get(bitmap.getConfig());
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            pool.put(bitmap.getConfig(), sizes);
+        }
+        ArrayDeque<Bitmap> bitmaps = sizes.get(size);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            sizes.put(size, bitmaps);
+        }
+        bitmaps.push(bitmap);
+        bytes += size;
+
+        while (bytes > maxBytes) {
+            evictLargest();
+        }
+    }
+
+    /**
+     * Takes a bitmap out of the pool that can hold an image of this size and config.
+     *
+     * @return the bitmap, or null if none fits.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = pool.get(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = sizes == null ? null :
+                sizes.ceilingEntry(width * height * bytesPerPixel(config));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        Bitmap bitmap = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            sizes.remove(entry.getKey());
+        }
+        bytes -= entry.getKey();
+        hits++;
+        return bitmap;
+    }
+
+    public synchronized String getSummary() {
+        return (bytes / 1024) + "KB of " + (maxBytes / 1024) + "KB, " + hits + " reused, " + misses + " missed";
+    }
+
+    private void evictLargest() {
+        for (TreeMap<Integer, ArrayDeque<Bitmap>> sizes : pool.values()) {
+            if (!sizes.isEmpty()) {
+                Map.Entry<Integer, ArrayDeque<Bitmap>> entry = sizes.lastEntry();
+                entry.getValue().pop();
+                if (entry.getValue().isEmpty()) {
+                    sizes.remove(entry.getKey());
+                }
+                bytes -= entry.getKey();
+                return;
+            }
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
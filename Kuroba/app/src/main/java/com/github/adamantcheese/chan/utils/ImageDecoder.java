@@ -19,24 +19,60 @@ package com.github.adamantcheese.chan.utils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Simple ImageDecoder. Taken from Volley ImageRequest.
+ * Decodes images to a maximum size. Sizing taken from Volley ImageRequest.
+ * <p>
+ * Decodes run on the calling thread or on a pool with a thread per core. Either way they share
+ * two limits: one decode per core, and a budget for the memory of the bitmaps being decoded at
+ * the same time. Intermediate bitmaps that get scaled down go into a {@link BitmapPool}, so later
+ * decodes can reuse their memory.
  */
 public class ImageDecoder {
+    private static final String TAG = "ImageDecoder";
+
+    private static final int DECODE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // A single decode larger than the budget is still allowed, on its own
+    private static final long DECODE_BUDGET = Runtime.getRuntime().maxMemory() / 16;
+    private static final long POOL_SIZE = Runtime.getRuntime().maxMemory() / 64;
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            DECODE_THREADS, DECODE_THREADS,
+            30L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+    private static final BitmapPool bitmapPool = new BitmapPool(POOL_SIZE);
+
+    private static final Object decodeLock = new Object();
+    private static int decodesRunning;
+    private static long budgetInUse;
+    private static final LatencyStats waitLatency = new LatencyStats();
+    private static final LatencyStats decodeLatency = new LatencyStats();
+    private static long failedCount;
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
 
     public static void decodeFileOnBackgroundThread(final File file, final int maxWidth, final int maxHeight, ImageDecoderCallback callback) {
-        Thread thread = new Thread(() -> {
+        executor.execute(() -> {
             final Bitmap bitmap = decodeFile(file, maxWidth, maxHeight);
 
             AndroidUtils.runOnUiThread(() -> callback.onImageBitmap(bitmap));
         });
-        thread.start();
+    }
+
+    /**
+     * Runs a task on the decode pool, for decodes that have to read their data first.
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
     }
 
     public interface ImageDecoderCallback {
@@ -44,67 +80,141 @@ public class ImageDecoder {
     }
 
     public static Bitmap decodeFile(File file, int maxWidth, int maxHeight) {
+        return decodeFile(file, maxWidth, maxHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    public static Bitmap decodeFile(File file, int maxWidth, int maxHeight, Bitmap.Config config) {
         if (!file.exists())
             return null;
 
-        FileInputStream fis;
-
+        FileInputStream fis = null;
         try {
             fis = new FileInputStream(file);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            // decodeFileDescriptor leaves the position alone, so the descriptor can be read twice
+            FileDescriptor fd = fis.getFD();
+            return decode(options -> BitmapFactory.decodeFileDescriptor(fd, null, options), maxWidth, maxHeight, config);
+        } catch (IOException e) {
+            Logger.e(TAG, "Error decoding " + file.getName(), e);
             return null;
+        } finally {
+            IOUtils.closeQuietly(fis);
         }
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    public static Bitmap decode(byte[] data, int maxWidth, int maxHeight) {
+        return decode(data, maxWidth, maxHeight, Bitmap.Config.ARGB_8888);
+    }
 
-        Bitmap bitmap = null;
+    public static Bitmap decode(byte[] data, int maxWidth, int maxHeight, Bitmap.Config config) {
+        return decode(options -> BitmapFactory.decodeByteArray(data, 0, data.length, options), maxWidth, maxHeight, config);
+    }
 
-        try {
-            IOUtils.copy(fis, baos);
-            bitmap = decode(baos.toByteArray(), maxWidth, maxHeight);
-        } catch (IOException | OutOfMemoryError e) {
-            e.printStackTrace();
-        } finally {
-            IOUtils.closeQuietly(fis);
-            IOUtils.closeQuietly(baos);
+    /**
+     * Decode counts and timings, for the developer screen.
+     */
+    public static String getSummary() {
+        synchronized (decodeLock) {
+            return "Decodes: " + decodeLatency + ", " + failedCount + " failed\n" +
+                    "Waiting for a decode slot: " + waitLatency + "\n" +
+                    "Bitmap pool: " + bitmapPool.getSummary() + "\n";
         }
-
-        return bitmap;
     }
 
-    public static Bitmap decode(byte[] data, int maxWidth, int maxHeight) {
+    private static Bitmap decode(Source source, int maxWidth, int maxHeight, Bitmap.Config config) {
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
-        Bitmap bitmap;
 
         // If we have to resize this image, first get the natural bounds.
         decodeOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+        source.decode(decodeOptions);
         int actualWidth = decodeOptions.outWidth;
         int actualHeight = decodeOptions.outHeight;
+        if (actualWidth <= 0 || actualHeight <= 0) {
+            return null;
+        }
 
         // Then compute the dimensions we would ideally like to decode to.
-        int desiredWidth = getResizedDimension(maxWidth, maxHeight, actualWidth, actualHeight);
-        int desiredHeight = getResizedDimension(maxHeight, maxWidth, actualHeight, actualWidth);
+        int desiredWidth = Math.max(1, getResizedDimension(maxWidth, maxHeight, actualWidth, actualHeight));
+        int desiredHeight = Math.max(1, getResizedDimension(maxHeight, maxWidth, actualHeight, actualWidth));
 
         // Decode to the nearest power of two scaling factor.
         decodeOptions.inJustDecodeBounds = false;
-
-        // decodeOptions.inPreferQualityOverSpeed = PREFER_QUALITY_OVER_SPEED;
+        decodeOptions.inPreferredConfig = config;
         decodeOptions.inSampleSize = findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-        Bitmap tempBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-
-        // If necessary, scale down to the maximal acceptable size.
-        if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
-            bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth, desiredHeight, true);
-            tempBitmap.recycle();
-        } else {
-            bitmap = tempBitmap;
+        int sampledWidth = (actualWidth + decodeOptions.inSampleSize - 1) / decodeOptions.inSampleSize;
+        int sampledHeight = (actualHeight + decodeOptions.inSampleSize - 1) / decodeOptions.inSampleSize;
+
+        // The bitmap to decode into overrides the config, only use it for images without alpha
+        decodeOptions.inMutable = true;
+        if ("image/jpeg".equals(decodeOptions.outMimeType)) {
+            decodeOptions.inBitmap = bitmapPool.get(sampledWidth, sampledHeight, config);
+        }
+
+        long bytes = (long) sampledWidth * sampledHeight * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+        if (!acquire(bytes)) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Bitmap bitmap = null;
+        try {
+            Bitmap tempBitmap;
+            try {
+                tempBitmap = source.decode(decodeOptions);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap could not be decoded into after all
+                decodeOptions.inBitmap = null;
+                tempBitmap = source.decode(decodeOptions);
+            }
+
+            // If necessary, scale down to the maximal acceptable size.
+            if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
+                bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth, desiredHeight, true);
+                // Never handed out, so the next decode can have it
+                bitmapPool.put(tempBitmap);
+            } else {
+                bitmap = tempBitmap;
+            }
+        } catch (OutOfMemoryError e) {
+            Logger.e(TAG, "Out of memory decoding a " + actualWidth + "x" + actualHeight + " image");
+        } finally {
+            release(bytes, System.nanoTime() - start, bitmap != null);
         }
 
         return bitmap;
     }
 
+    private static boolean acquire(long bytes) {
+        long start = System.nanoTime();
+        synchronized (decodeLock) {
+            try {
+                while (decodesRunning >= DECODE_THREADS ||
+                        (decodesRunning > 0 && budgetInUse + bytes > DECODE_BUDGET)) {
+                    decodeLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            decodesRunning++;
+            budgetInUse += bytes;
+            waitLatency.add(System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    private static void release(long bytes, long decodeNanos, boolean decoded) {
+        synchronized (decodeLock) {
+            decodesRunning--;
+            budgetInUse -= bytes;
+            decodeLatency.add(decodeNanos);
+            if (!decoded) {
+                failedCount++;
+            }
+            decodeLock.notifyAll();
+        }
+    }
+
     private static int getResizedDimension(int maxPrimary, int maxSecondary, int actualPrimary, int actualSecondary) {
         // If no dominant value at all, just return the actual.
         if (maxPrimary == 0 && maxSecondary == 0) {
@@ -140,4 +250,8 @@ public class ImageDecoder {
 
         return (int) n;
     }
+
+    private interface Source {
+        Bitmap decode(BitmapFactory.Options options);
+    }
 }
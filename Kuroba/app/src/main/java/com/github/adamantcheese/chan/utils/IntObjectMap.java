@@ -0,0 +1,172 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to non-null values, with open addressing so that keys are not boxed and
+ * there are no entry objects. Not thread safe.
+ */
+public class IntObjectMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public IntObjectMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value for the key, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        // Keep the table at most half full so probe sequences stay short
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value, or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                break;
+            }
+        }
+
+        if (values[i] == null) {
+            return null;
+        }
+
+        V removed = (V) values[i];
+        values[i] = null;
+        size--;
+
+        // Move the entries after it back, so that no entry is behind an empty slot of its probe
+        // sequence.
+        int empty = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            boolean between = empty <= j ? (empty < home && home <= j) : (empty < home || home <= j);
+            if (!between) {
+                keys[empty] = keys[j];
+                values[empty] = values[j];
+                values[j] = null;
+                empty = j;
+            }
+        }
+
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(int key) {
+        // Post numbers are mostly sequential, spread them over the table
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Kuroba - *chan browser https://github.com/Adamantcheese/Kuroba/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.adamantcheese.chan.utils;
+
+import java.util.Locale;
+
+/**
+ * Latencies bucketed by powers of two of microseconds, so percentiles are within a factor two.
+ * Not thread safe, callers guard it with their own lock.
+ */
+public class LatencyStats {
+    private final long[] buckets = new long[32];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public void add(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        buckets[Math.min(buckets.length - 1, 63 - Long.numberOfLeadingZeros(micros))]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public double percentileMillis(double percentile) {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                // upper bound of the bucket
+                return Math.min((1L << (i + 1)) / 1000.0, maxNanos / 1e6);
+            }
+        }
+        return maxNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%d, avg %.1fms, p99 %.1fms, max %.1fms",
+                count, count == 0 ? 0.0 : totalNanos / (count * 1e6), percentileMillis(0.99), maxNanos / 1e6);
+    }
+}
@@ -6,7 +6,9 @@ import com.github.adamantcheese.chan.core.model.ChanThread;
 import com.github.adamantcheese.chan.core.model.Post;
 import com.github.adamantcheese.chan.core.model.orm.PostHide;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -20,31 +22,43 @@ public class PostUtils {
 
     public static Post findPostById(int id, ChanThread thread) {
         if (thread != null) {
-            for (Post post : thread.posts) {
-                if (post.no == id) {
-                    return post;
-                }
-            }
+            return thread.getPost(id);
         }
         return null;
     }
 
+    public static Set<Post> findPostWithReplies(int id, ChanThread thread) {
+        Set<Post> postsSet = new HashSet<>();
+        findPostWithReplies(id, thread::getPost, postsSet);
+        return postsSet;
+    }
+
     public static Set<Post> findPostWithReplies(int id, List<Post> posts) {
+        IntObjectMap<Post> postsByNo = new IntObjectMap<>(posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            Post post = posts.get(i);
+            postsByNo.put(post.no, post);
+        }
+
         Set<Post> postsSet = new HashSet<>();
-        findPostWithRepliesRecursive(id, posts, postsSet);
+        findPostWithReplies(id, postsByNo::get, postsSet);
         return postsSet;
     }
 
     /**
      * Finds a post by it's id and then finds all posts that has replied to this post recursively
      */
-    private static void findPostWithRepliesRecursive(int id, List<Post> posts, Set<Post> postsSet) {
-        for (Post post : posts) {
-            if (post.no == id && !postsSet.contains(post)) {
-                postsSet.add(post);
-
-                for (Integer replyId : post.repliesFrom) {
-                    findPostWithRepliesRecursive(replyId, posts, postsSet);
+    private static void findPostWithReplies(int id, PostLookup lookup, Set<Post> postsSet) {
+        Deque<Integer> toVisit = new ArrayDeque<>();
+        toVisit.push(id);
+
+        while (!toVisit.isEmpty()) {
+            Post post = lookup.find(toVisit.pop());
+            if (post != null && postsSet.add(post)) {
+                synchronized (post.repliesFrom) {
+                    for (Integer replyId : post.repliesFrom) {
+                        toVisit.push(replyId);
+                    }
                 }
             }
         }
@@ -123,4 +137,7 @@ public class PostUtils {
         return new ArrayList<>(newHiddenPosts);
     }
 
+    private interface PostLookup {
+        Post find(int no);
+    }
 }